@@ -0,0 +1,104 @@
+package eastsun.jgvm.bench;
+
+import eastsun.jgvm.module.Renderable;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.ram.ReadableMemory;
+import java.util.Random;
+
+/**
+ * 测量Renderable.drawRegion在每种绘制方式下绘制一个图块所用的时间<p>
+ * 对CLEAR,COPY,NOT,OR,AND,XOR,TCOPY七种方式,分别测试不带与带XNOT,以及x对齐到字节(x%8==0)与不对齐(x%8!=0)的情况.
+ * 图块在屏幕缓冲区中从左到右,从上到下依次绘制,每次绘制前都调用setDrawMode,与GVM执行绘图系统函数时相同.用法:<p>
+ * DrawRegionBenchmark [-count 每种情况绘制的次数] [-width 图块宽度] [-height 图块高度]
+ */
+public final class DrawRegionBenchmark {
+
+    private static final String USAGE = "Usage: DrawRegionBenchmark [-count n] [-width n] [-height n]";
+    private static final String[] MODE_NAMES = {"CLEAR", "COPY", "NOT", "OR", "AND", "XOR", "TCOPY"};
+    /**
+     * 不对齐时x相对字节边界的偏移
+     */
+    private static final int UNALIGNED_SHIFT = 3;
+
+    public static void main(String[] args) {
+        int count = 200000;
+        int width = 24;
+        int height = 16;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-count":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "-width":
+                        width = Integer.parseInt(value);
+                        break;
+                    case "-height":
+                        height = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (count <= 0 || width <= 0 || height <= 0) {
+                throw new IllegalArgumentException("count, width and height must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        byte[] data = new byte[((width + 7) >>> 3) * height];
+        new Random(0).nextBytes(data);
+        ReadableMemory source = addr -> data[addr];
+        Renderable render = ScreenModel.newScreenModel().getRender();
+
+        //先把每种情况运行一遍使JIT完成编译
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int xnot = 0; xnot < 2; xnot++) {
+                for (int shift : new int[]{0, UNALIGNED_SHIFT}) {
+                    run(render, source, mode | (xnot != 0 ? Renderable.RENDER_XNOT_TYPE : 0), shift, width, height, count / 4);
+                }
+            }
+        }
+        System.out.println("region: " + width + "x" + height + ", " + count + " draws per case");
+        System.out.println("mode   XNOT  aligned(ns)  unaligned(ns)");
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int xnot = 0; xnot < 2; xnot++) {
+                int drawMode = mode | (xnot != 0 ? Renderable.RENDER_XNOT_TYPE : 0);
+                double aligned = run(render, source, drawMode, 0, width, height, count);
+                double unaligned = run(render, source, drawMode, UNALIGNED_SHIFT, width, height, count);
+                System.out.printf("%-6s %-4s  %11.1f  %13.1f%n", MODE_NAMES[mode], xnot != 0 ? "yes" : "no", aligned, unaligned);
+            }
+        }
+    }
+
+    /**
+     * @param shift 每个图块的x除以8的余数
+     * @return 每次绘制的平均时间,单位为纳秒
+     */
+    private static double run(Renderable render, ReadableMemory source, int drawMode, int shift, int width, int height, int count) {
+        int columns = (ScreenModel.WIDTH - width - shift) / 8 + 1;
+        int rows = ScreenModel.HEIGHT - height + 1;
+        int column = 0, row = 0;
+        long start = System.nanoTime();
+        for (int n = 0; n < count; n++) {
+            render.setDrawMode(drawMode);
+            render.drawRegion(column * 8 + shift, row, width, height, source, 0);
+            if (++column == columns) {
+                column = 0;
+                if (++row == rows) {
+                    row = 0;
+                }
+            }
+        }
+        return (System.nanoTime() - start) / (double) count;
+    }
+}
@@ -0,0 +1,103 @@
+package eastsun.jgvm.bench;
+
+import eastsun.jgvm.platform.FrameRenderer;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Point;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.util.Random;
+
+/**
+ * 比较两种绘制屏幕帧的方式所用的时间:<p>
+ * 1.由Java2D缩放每像素1位的IndexColorModel图像<p>
+ * 2.先由FrameRenderer转换为已放大的RGB图像,再不缩放地绘制<p>
+ * 每种方式分别测试每帧全部改变和每帧只改变一行两种情况.用法: RenderBenchmark [帧数]
+ */
+public final class RenderBenchmark {
+
+    private static final int WIDTH = 160, HEIGHT = 80;
+    private static final int BG_COLOR = 0xffffff, FG_COLOR = 0x000000;
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        byte[][] frames = new byte[16][WIDTH * HEIGHT / 8];
+        Random random = new Random(0);
+        for (byte[] frame : frames) {
+            random.nextBytes(frame);
+        }
+        System.out.println("scale  changed   scaled-1bit(us)  prescaled(us)");
+        for (int scale : new int[]{2, 4, 8}) {
+            for (boolean full : new boolean[]{true, false}) {
+                byte[][] source = full ? frames : oneRowChanges(frames);
+                //先运行一遍使JIT完成编译
+                runScaled(source, scale, count / 4);
+                runPrescaled(source, scale, count / 4);
+                double scaled = runScaled(source, scale, count);
+                double prescaled = runPrescaled(source, scale, count);
+                System.out.printf("%5d  %-8s  %15.1f  %13.1f%n", scale, full ? "all" : "one row", scaled, prescaled);
+            }
+        }
+    }
+
+    //每一帧与前一帧只相差一行
+    private static byte[][] oneRowChanges(byte[][] frames) {
+        byte[][] result = new byte[frames.length][];
+        int bytesPerLine = WIDTH / 8;
+        for (int index = 0; index < frames.length; index++) {
+            result[index] = frames[0].clone();
+            int row = index * 5 % HEIGHT;
+            System.arraycopy(frames[index], row * bytesPerLine, result[index], row * bytesPerLine, bytesPerLine);
+        }
+        return result;
+    }
+
+    private static BufferedImage createTarget(int scale) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(WIDTH * scale, HEIGHT * scale, BufferedImage.TYPE_INT_RGB);
+        }
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        return gc.createCompatibleImage(WIDTH * scale, HEIGHT * scale, Transparency.OPAQUE);
+    }
+
+    /**
+     * @return 每帧的平均时间,单位为微秒
+     */
+    private static double runScaled(byte[][] frames, int scale, int count) {
+        IndexColorModel colorModel = new IndexColorModel(1, 2,
+                new int[]{BG_COLOR, FG_COLOR},
+                0, false, -1, DataBuffer.TYPE_BYTE);
+        BufferedImage[] images = new BufferedImage[frames.length];
+        for (int index = 0; index < frames.length; index++) {
+            WritableRaster raster = WritableRaster.createPackedRaster(
+                    new DataBufferByte(frames[index], frames[index].length),
+                    WIDTH, HEIGHT, 1, new Point(0, 0));
+            images[index] = new BufferedImage(colorModel, raster, false, null);
+        }
+        BufferedImage target = createTarget(scale);
+        Graphics2D g = target.createGraphics();
+        long start = System.nanoTime();
+        for (int n = 0; n < count; n++) {
+            g.drawImage(images[n % images.length], 0, 0, WIDTH * scale, HEIGHT * scale, null);
+        }
+        g.dispose();
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+
+    private static double runPrescaled(byte[][] frames, int scale, int count) {
+        FrameRenderer renderer = new FrameRenderer(WIDTH, HEIGHT, scale, BG_COLOR, FG_COLOR);
+        BufferedImage target = createTarget(scale);
+        Graphics2D g = target.createGraphics();
+        long start = System.nanoTime();
+        for (int n = 0; n < count; n++) {
+            g.drawImage(renderer.render(frames[n % frames.length]), 0, 0, null);
+        }
+        g.dispose();
+        return (System.nanoTime() - start) / 1000.0 / count;
+    }
+}
@@ -0,0 +1,165 @@
+package eastsun.jgvm.bench;
+
+import eastsun.jgvm.module.GvmConfig;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.RunControl;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.VirtualClock;
+import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.ScriptedKeyModel;
+import eastsun.jgvm.platform.FileSysSE;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 比较MainFrame.VMThread两种控制执行的方式每秒执行的指令数:<p>
+ * 1.原来的方式:每条指令前调用synchronized的isPaused(),再调用nextStep()<p>
+ * 2.RunControl:每批指令前调用一次acquire,再调用runSteps执行这一批<p>
+ * 两种方式使用与MainFrame相同的GVM配置,按键由ScriptedKeyModel提供,使用VirtualClock,不会真正等待.
+ * 每轮交替运行两种方式各一次,每次都新建GVM从头运行同样多的指令,输出各轮的中位数.用法:<p>
+ * RunControlBenchmark [-steps 每次执行的指令数] [-rounds 轮数] [-keys 按键序列] [-root 根目录] [lav文件,默认为maze.lav]
+ */
+public final class RunControlBenchmark {
+
+    private static final String USAGE = "Usage: RunControlBenchmark [-steps n] [-rounds n] [-keys script] [-root dir] [app.lav]";
+    /**
+     * 与MainFrame.VMThread相同的每批指令数
+     */
+    private static final int BATCH_STEPS = 10000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long steps = 5000000;
+        int rounds = 5;
+        String keys = "ENTER";
+        String root = "GVM_ROOT";
+        String lav = "maze.lav";
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-steps":
+                        steps = Long.parseLong(value);
+                        break;
+                    case "-rounds":
+                        rounds = Integer.parseInt(value);
+                        break;
+                    case "-keys":
+                        keys = value;
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (rounds <= 0 || steps <= 0) {
+                throw new IllegalArgumentException("steps and rounds must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(lav);
+        if (!file.isFile()) {
+            file = new File(root, lav);
+        }
+        LavApp app;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            app = LavApp.createLavApp(file.getName(), in);
+        }
+        char[] script = ScriptedKeyModel.parseKeys(keys);
+
+        //先各运行一次使JIT完成编译
+        runLocked(newGVM(app, script, root), steps);
+        runControlled(newGVM(app, script, root), steps);
+        double[] locked = new double[rounds];
+        double[] controlled = new double[rounds];
+        for (int round = 0; round < rounds; round++) {
+            locked[round] = runLocked(newGVM(app, script, root), steps);
+            controlled[round] = runControlled(newGVM(app, script, root), steps);
+        }
+        Arrays.sort(locked);
+        Arrays.sort(controlled);
+
+        System.out.println("app:          " + file.getName());
+        System.out.println("instructions: " + steps + " x " + rounds + " rounds");
+        System.out.printf("isPaused+nextStep:   median %.2f MIPS (min %.2f, max %.2f)%n",
+                locked[rounds / 2], locked[0], locked[rounds - 1]);
+        System.out.printf("RunControl+runSteps: median %.2f MIPS (min %.2f, max %.2f)%n",
+                controlled[rounds / 2], controlled[0], controlled[rounds - 1]);
+    }
+
+    private static JGVM newGVM(LavApp app, char[] script, String root) {
+        JGVM gvm = JGVM.newGVM(new GvmConfig(0x6000, 1024, 512, 0x10, true), new DefaultFileModel(new FileSysSE(root)),
+                ScreenModel.newScreenModel(), new ScriptedKeyModel(script, 50), new VirtualClock());
+        gvm.loadApp(app);
+        return gvm;
+    }
+
+    /**
+     * 原来VMThread的方式,返回MIPS
+     */
+    private static double runLocked(JGVM gvm, long steps) throws InterruptedException {
+        LockedPause pause = new LockedPause();
+        long start = System.nanoTime();
+        while (!gvm.isEnd() && gvm.getStepCount() < steps) {
+            while (pause.isPaused()) {
+                synchronized (pause) {
+                    pause.wait();
+                }
+            }
+            gvm.nextStep();
+        }
+        return mips(gvm, start);
+    }
+
+    /**
+     * 使用RunControl的方式,返回MIPS
+     */
+    private static double runControlled(JGVM gvm, long steps) throws InterruptedException {
+        RunControl control = new RunControl(false);
+        long start = System.nanoTime();
+        int count;
+        while (!gvm.isEnd() && gvm.getStepCount() < steps &&
+                (count = control.acquire((int) Math.min(BATCH_STEPS, steps - gvm.getStepCount()))) > 0) {
+            gvm.runSteps(count);
+        }
+        return mips(gvm, start);
+    }
+
+    private static double mips(JGVM gvm, long start) {
+        long time = System.nanoTime() - start;
+        long steps = gvm.getStepCount();
+        gvm.dispose();
+        return steps * 1e3 / Math.max(time, 1);
+    }
+
+    /**
+     * 原来VMThread中的暂停标志,每次读取都要获取监视器
+     */
+    private static final class LockedPause {
+
+        private boolean isPaused;
+
+        synchronized boolean isPaused() {
+            return isPaused;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package eastsun.jgvm.module;
+
+/**
+ * GVM使用的时钟,getms,getTime与Delay这几个系统函数通过它得到时间或等待<p>
+ * 每个方法都会得到调用时GVM已经执行的指令数,实现可以据此计算时间而不依赖真实的时间.<p>
+ * 注意:时钟只在GVM执行线程中被调用
+ * @see RealClock
+ * @see VirtualClock
+ */
+public interface Clock {
+
+    /**
+     * 得到当前时间
+     * @param stepCount GVM已经执行的指令数
+     * @return 与System.currentTimeMillis()含义相同的毫秒数
+     */
+    long currentTimeMillis(long stepCount);
+
+    /**
+     * 等待一段时间,由Delay函数调用
+     * @param millis 等待的毫秒数,大于0
+     * @param stepCount GVM已经执行的指令数
+     * @throws InterruptedException 等待期间线程被中断
+     */
+    void sleep(long millis, long stepCount) throws InterruptedException;
+}
@@ -1,5 +1,8 @@
 package eastsun.jgvm.module;
 
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
+
 /**
  * GVM的栈模块
  * @author Eastsun
@@ -84,4 +87,50 @@ public final class DataStack {
     public void clear() {
         pointer = 0;
     }
+
+    /**
+     * 得到栈数据占用的字节数
+     */
+    public int getRetainedBytes() {
+        return buffer.length * 4;
+    }
+
+    /**
+     * 把栈指针,最近的值以及栈中的数据写入out
+     */
+    public void saveState(ByteBuffer out) {
+        out.putInt(pointer);
+        out.putInt(last);
+        out.asIntBuffer().put(buffer, 0, pointer);
+        out.position(out.position() + pointer * 4);
+    }
+
+    /**
+     * 从in恢复saveState写入的状态
+     * @throws IllegalArgumentException 数据中的栈指针超出了栈的大小
+     */
+    public void loadState(ByteBuffer in) {
+        pointer = readPointer(in);
+        last = in.getInt();
+        in.asIntBuffer().get(buffer, 0, pointer);
+        in.position(in.position() + pointer * 4);
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变栈
+     * @throws IllegalArgumentException 数据中的栈指针超出了栈的大小
+     */
+    public void checkState(ByteBuffer in) {
+        int p = readPointer(in);
+        in.getInt();
+        IOUtil.skip(in, p * 4);
+    }
+
+    private int readPointer(ByteBuffer in) {
+        int p = in.getInt();
+        if (p < 0 || p > buffer.length) {
+            throw new IllegalArgumentException("Invalid stack pointer: " + p);
+        }
+        return p;
+    }
 }
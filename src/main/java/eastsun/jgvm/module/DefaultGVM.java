@@ -6,6 +6,11 @@ import eastsun.jgvm.module.ram.RuntimeRam;
 import eastsun.jgvm.module.ram.StringRam;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 
@@ -19,6 +24,15 @@ final class DefaultGVM extends JGVM {
 
     private static final int FALSE = 0;
     private static final int TRUE = -1;
+    /**
+     * runUntil每执行这么多条指令检查一次是否超时
+     */
+    private static final int DEADLINE_CHECK_STEPS = 1024;
+    //saveState数据的开头:"GVMS"与版本号
+    private static final int STATE_MAGIC = 0x534d5647;
+    private static final int STATE_VERSION = 2;
+    //FileList.select的返回值:还没有选择完,需要更多按键
+    private static final int SELECTING = 1;
     private GvmConfig config;
     private RamManager ramManager;
     private RuntimeRam runtimeRam;
@@ -31,18 +45,42 @@ final class DefaultGVM extends JGVM {
     private KeyModel.SysInfo keyInf;
     private InputMethod input;
     private LavApp app;
+    private LavCode code;
+    //程序指针:下一条指令在lav数据中的偏移量
+    private int pc;
     private DataStack dataStack;
     private int seed;
     private boolean end;
-    private Calendar cal = Calendar.getInstance();
-    private Date date = new Date();
+    //自加载app以来执行的指令数
+    private long stepCount;
+    //最近一次runSteps期间是否执行了可能阻塞的系统函数,runFrame期间执行refresh后也为true
+    private boolean blocked;
+    //是否在runFrame中,以及最近一次runFrame是否因为refresh而结束
+    private boolean stopOnRefresh, refreshed;
+    //是否以非阻塞模式运行,以及最近执行的指令是否因为没有按键而需要重新执行
+    private boolean nonBlocking, waiting;
+    //非阻塞模式下等待按键的fileList的选择状态
+    private FileList fileList;
+    private Clock clock;
+    //saveState使用的缓冲区,第一次使用时创建,空间不足时扩大
+    private ByteBuffer stateBuffer;
+    //每帧记录状态的倒带缓冲区,可以为null
+    private RewindBuffer rewind;
+    //getTime使用,第一次使用时创建
+    private Calendar cal;
+    private Date date;
+
+    public DefaultGVM(GvmConfig cfg, FileModel fileModel, ScreenModel screenModel, KeyModel keyModel, Clock clock) {
+        this(cfg, fileModel, screenModel, keyModel, clock, new RuntimeRam(cfg.runtimeRamSize()));
+    }
 
-    public DefaultGVM(GvmConfig cfg, FileModel fileModel, ScreenModel screenModel, KeyModel keyModel) {
+    private DefaultGVM(GvmConfig cfg, FileModel fileModel, ScreenModel screenModel, KeyModel keyModel, Clock clock, RuntimeRam runtimeRam) {
         this.config = cfg;
-        runtimeRam = new RuntimeRam(cfg.runtimeRamSize());
+        this.clock = clock;
+        this.runtimeRam = runtimeRam;
         stringRam = new StringRam(cfg.stringRamSize());
         dataStack = new DataStack(cfg.stackSize());
-        ramManager = new RamManager(runtimeRam, stringRam, dataStack);
+        ramManager = new RamManager(runtimeRam, stringRam, dataStack, cfg.isFlatMemory());
 
         text = new TextModel();
         screen = screenModel;
@@ -73,9 +111,15 @@ final class DefaultGVM extends JGVM {
         }
 
         this.app = app;
-        app.reset();
+        this.code = app.getCode();
+        pc = LavApp.ENTRY_OFFSET;
         end = false;
-
+        stepCount = 0;
+        fileList = null;
+        if (rewind != null) {
+            rewind.clear();
+            rewind.record(stepCount, writeState(false, stepCount), runtimeRam);
+        }
     }
 
     private void init() {
@@ -98,19 +142,195 @@ final class DefaultGVM extends JGVM {
         // ramManager.clear();
         // text.setTextMode(0);
         this.app = null;
+        this.code = null;
         this.end = true;
+        if (rewind != null) {
+            rewind.clear();
+        }
     }
 
     public boolean isEnd() {
         return end;
     }
 
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    public long getRetainedBytes() {
+        long bytes = ramManager.getRetainedBytes() + screen.getRetainedBytes() + text.getRetainedBytes() + file.getRetainedBytes();
+        if (stateBuffer != null) {
+            bytes += stateBuffer.capacity();
+        }
+        return bytes;
+    }
+
+    public byte[] saveState() throws IllegalStateException {
+        if (app == null) {
+            throw new IllegalStateException("没有加载程序!");
+        }
+        ByteBuffer out = writeState(true, stepCount);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * 把状态写入stateBuffer,运行时内存的数据放在最后,因此不含这部分数据时写出的正好是完整状态的开头部分
+     * @param withRuntimeData 是否写出运行时内存的数据
+     * @param steps 写出的指令数
+     * @return stateBuffer,数据位于[0,position())
+     */
+    private ByteBuffer writeState(boolean withRuntimeData, long steps) {
+        for (;;) {
+            ByteBuffer out = stateBuffer();
+            out.clear();
+            try {
+                out.putInt(STATE_MAGIC);
+                out.putInt(STATE_VERSION);
+                out.putInt(app.getChecksum());
+                out.putInt(config.runtimeRamSize());
+                out.putInt(config.stringRamSize());
+                out.putInt(config.stackSize());
+                out.putLong(steps);
+                out.putInt(pc);
+                out.putInt(seed);
+                out.put((byte) (end ? 1 : 0));
+                stringRam.saveState(out);
+                dataStack.saveState(out);
+                text.saveState(out);
+                screen.saveState(out);
+                file.saveState(out);
+                if (withRuntimeData) {
+                    runtimeRam.saveState(out);
+                } else {
+                    runtimeRam.saveRegion(out);
+                }
+                return out;
+            } catch (BufferOverflowException e) {
+                //打开的文件较大,扩大缓冲区后重试
+                stateBuffer = ByteBuffer.allocate(out.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    private ByteBuffer stateBuffer() {
+        if (stateBuffer == null) {
+            stateBuffer = ByteBuffer.allocate(config.runtimeRamSize() + config.stringRamSize() + config.stackSize() * 4 + 0x1000).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return stateBuffer;
+    }
+
+    public JGVM fork(ScreenModel screenModel, KeyModel keyModel, Clock clock) throws IllegalStateException {
+        if (app == null) {
+            throw new IllegalStateException("没有加载程序!");
+        }
+        DefaultGVM gvm = new DefaultGVM(config, file.fork(), screenModel, keyModel, clock, runtimeRam.share());
+        //较小的部分通过stateBuffer直接复制,它至少能放下运行时内存以外的这些数据
+        ByteBuffer buf = stateBuffer();
+        buf.clear();
+        stringRam.saveState(buf);
+        dataStack.saveState(buf);
+        text.saveState(buf);
+        screen.saveState(buf);
+        buf.flip();
+        gvm.stringRam.loadState(buf);
+        gvm.dataStack.loadState(buf);
+        gvm.text.loadState(buf);
+        gvm.screen.loadState(buf);
+        gvm.app = app;
+        gvm.pc = pc;
+        gvm.code = code;
+        gvm.input = input;
+        gvm.nonBlocking = nonBlocking;
+        if (fileList != null) {
+            gvm.fileList = gvm.new FileList(fileList);
+        }
+        gvm.seed = seed;
+        gvm.end = end;
+        gvm.stepCount = stepCount;
+        return gvm;
+    }
+
+    public void loadState(byte[] state) throws IllegalStateException, IllegalArgumentException {
+        if (app == null) {
+            throw new IllegalStateException("没有加载程序!");
+        }
+        ByteBuffer in = ByteBuffer.wrap(state).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (in.getInt() != STATE_MAGIC) {
+                throw new IllegalArgumentException("不是GVM状态数据!");
+            }
+            int version = in.getInt();
+            if (version != STATE_VERSION) {
+                throw new IllegalArgumentException("不支持的状态版本: " + version);
+            }
+            if (in.getInt() != app.getChecksum()) {
+                throw new IllegalArgumentException("状态不属于当前程序!");
+            }
+            if (in.getInt() != config.runtimeRamSize() || in.getInt() != config.stringRamSize() || in.getInt() != config.stackSize()) {
+                throw new IllegalArgumentException("状态与GVM配置不符!");
+            }
+            long newStepCount = in.getLong();
+            int newPc = in.getInt();
+            int newSeed = in.getInt();
+            boolean newEnd = in.get() != 0;
+            if (newStepCount < 0) {
+                throw new IllegalArgumentException("指令数不正确: " + newStepCount);
+            }
+            if (!newEnd && !code.isInstruction(newPc)) {
+                throw new IllegalArgumentException("程序指针超出程序范围: " + newPc);
+            }
+            //先在副本上检查其余的全部数据,都正确后才改变GVM的状态,出错时GVM保持原来的状态
+            ByteBuffer check = in.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            stringRam.checkState(check);
+            dataStack.checkState(check);
+            text.checkState(check);
+            screen.checkState(check);
+            file.checkState(check);
+            runtimeRam.checkState(check);
+            if (check.hasRemaining()) {
+                throw new IllegalArgumentException("状态数据末尾有多余的数据!");
+            }
+            stepCount = newStepCount;
+            pc = newPc;
+            seed = newSeed;
+            end = newEnd;
+            stringRam.loadState(in);
+            dataStack.loadState(in);
+            text.loadState(in);
+            screen.loadState(in);
+            file.loadState(in);
+            runtimeRam.loadState(in);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("状态数据不完整!");
+        }
+        blocked = false;
+        fileList = null;
+        screen.fireScreenChanged();
+    }
+
+    public void setRewindBuffer(RewindBuffer buffer) {
+        if (rewind != null) {
+            rewind.attach(null);
+        }
+        rewind = buffer;
+        if (rewind != null) {
+            rewind.attach(this);
+            if (app != null) {
+                rewind.record(stepCount, writeState(false, stepCount), runtimeRam);
+            }
+        }
+    }
+
     public InputMethod setInputMethod(InputMethod im) {
         InputMethod oldValue = input;
         input = im;
         return oldValue;
     }
 
+    public void setNonBlocking(boolean nonBlocking) {
+        this.nonBlocking = nonBlocking;
+    }
+
     /**
      * 运行下一个指令
      *
@@ -121,85 +341,169 @@ final class DefaultGVM extends JGVM {
         if (isEnd()) {
             throw new IllegalStateException("程序已经终止!");
         }
-        int cmd = app.getUint8();
+        waiting = false;
+        execute();
+        if (!waiting) {
+            stepCount++;
+        }
+    }
+
+    public int runSteps(int count) throws IllegalStateException, InterruptedException {
+        return run(count, false);
+    }
+
+    public int runFrame(int count) throws IllegalStateException, InterruptedException {
+        return run(count, true);
+    }
+
+    private int run(int count, boolean frame) throws IllegalStateException, InterruptedException {
+        if (isEnd()) {
+            throw new IllegalStateException("程序已经终止!");
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        blocked = waiting = false;
+        stopOnRefresh = frame;
+        refreshed = false;
+        int result = STOP_BY_COUNT;
+        while (--count >= 0) {
+            execute();
+            stepCount++;
+            if (end) {
+                result = STOP_BY_END;
+                break;
+            }
+            if (blocked) {
+                if (waiting) {
+                    //这条指令没有执行完,不计入指令数
+                    stepCount--;
+                    result = WAITING_FOR_INPUT;
+                } else {
+                    result = refreshed ? STOP_BY_REFRESH : STOP_BY_BLOCKING;
+                }
+                break;
+            }
+        }
+        screen.fireScreenChanged();
+        return result;
+    }
+
+    public int runUntil(long deadline) throws IllegalStateException, InterruptedException {
+        while (System.nanoTime() - deadline < 0) {
+            int result = runSteps(DEADLINE_CHECK_STEPS);
+            if (result != STOP_BY_COUNT) {
+                return result;
+            }
+        }
+        return STOP_BY_DEADLINE;
+    }
+
+    /**
+     * 在执行可能阻塞的系统函数前调用,使本批指令在该函数后结束,并先把已修改的屏幕区域通知给监听器
+     */
+    private void willBlock() {
+        blocked = true;
+        screen.fireScreenChanged();
+    }
+
+    /**
+     * 非阻塞模式下系统函数没有读到按键时调用:把程序指针退回到这条指令,使它在下次运行时重新执行,本批指令到此结束.
+     * 调用前系统函数应把弹出的参数放回栈中
+     */
+    private void waitForInput() {
+        //系统函数指令只有一个字节
+        pc--;
+        blocked = waiting = true;
+    }
+
+    /**
+     * 取指并执行一条指令,不检查程序是否已结束
+     */
+    private void execute() throws IllegalStateException, InterruptedException {
+        int pc = this.pc;
+        int inst = code.inst(pc);
+        int cmd = LavCode.opcode(inst);
+        int operand = code.operand(pc);
+        this.pc = pc + LavCode.length(inst);
         //System.out.println(Integer.toHexString(cmd));
         switch (cmd) {
         case 0x00:
             break;
         case 0x01:
-            dataStack.push(app.getUint8());
+            dataStack.push(operand);
             break;
         case 0x02:
-            dataStack.push(app.getInt16());
+            dataStack.push(operand);
             break;
         case 0x03:
-            dataStack.push(app.getInt32());
+            dataStack.push(operand);
             break;
         case 0x04:
-            dataStack.push(ramManager.getUint8(app.getInt16() & 0xffff));
+            dataStack.push(ramManager.getUint8(operand & 0xffff));
             break;
         case 0x05:
-            dataStack.push(ramManager.getInt16(app.getInt16() & 0xffff));
+            dataStack.push(ramManager.getInt16(operand & 0xffff));
             break;
         case 0x06:
-            dataStack.push(ramManager.getInt32(app.getInt16() & 0xffff));
+            dataStack.push(ramManager.getInt32(operand & 0xffff));
             break;
         case 0x07:
-            dataStack.push(ramManager.getUint8((dataStack.pop() + app.getInt16()) & 0xffff));
+            dataStack.push(ramManager.getUint8((dataStack.pop() + operand) & 0xffff));
             break;
         case 0x08:
-            dataStack.push(ramManager.getInt16((dataStack.pop() + app.getInt16()) & 0xffff));
+            dataStack.push(ramManager.getInt16((dataStack.pop() + operand) & 0xffff));
             break;
         case 0x09:
-            dataStack.push(ramManager.getInt32((dataStack.pop() + app.getInt16()) & 0xffff));
+            dataStack.push(ramManager.getInt32((dataStack.pop() + operand) & 0xffff));
             break;
         case 0x0a:
-            dataStack.push((app.getInt16() + dataStack.pop()) & 0xffff | 0x00010000);
+            dataStack.push((operand + dataStack.pop()) & 0xffff | 0x00010000);
             break;
         case 0x0b:
-            dataStack.push((app.getInt16() + dataStack.pop()) & 0xffff | 0x00020000);
+            dataStack.push((operand + dataStack.pop()) & 0xffff | 0x00020000);
             break;
         case 0x0c:
-            dataStack.push((app.getInt16() + dataStack.pop()) & 0xffff | 0x00040000);
+            dataStack.push((operand + dataStack.pop()) & 0xffff | 0x00040000);
             break;
         case 0x0d:
-            dataStack.push(stringRam.addString(app) | 0x00100000);
+            dataStack.push(stringRam.addString(app, pc + 1) | 0x00100000);
             break;
         case 0x0e:
-            dataStack.push(ramManager.getUint8((app.getInt16() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getUint8((operand + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x0f:
-            dataStack.push(ramManager.getInt16((app.getInt16() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getInt16((operand + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x10:
-            dataStack.push(ramManager.getInt32((app.getInt16() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getInt32((operand + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x11:
-            dataStack.push(ramManager.getUint8((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getUint8((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x12:
-            dataStack.push(ramManager.getInt16((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getInt16((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x13:
-            dataStack.push(ramManager.getInt32((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
+            dataStack.push(ramManager.getInt32((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff));
             break;
         case 0x14:
-            dataStack.push((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00010000);
+            dataStack.push((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00010000);
             break;
         case 0x15:
-            dataStack.push((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00020000);
+            dataStack.push((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00020000);
             break;
         case 0x16:
-            dataStack.push((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00040000);
+            dataStack.push((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff | 0x00040000);
             break;
         case 0x17:
-            dataStack.push((app.getInt16() + dataStack.pop()) & 0xffff);
+            dataStack.push((operand + dataStack.pop()) & 0xffff);
             break;
         case 0x18:
-            dataStack.push((app.getInt16() + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff);
+            dataStack.push((operand + dataStack.pop() + runtimeRam.getRegionStartAddr()) & 0xffff);
             break;
         case 0x19:
-            dataStack.push((app.getInt16() + runtimeRam.getRegionStartAddr()) & 0xffff);
+            dataStack.push((operand + runtimeRam.getRegionStartAddr()) & 0xffff);
             break;
         case 0x1a:
             dataStack.push(text.getTextRam().getStartAddr());
@@ -213,35 +517,9 @@ final class DefaultGVM extends JGVM {
         case 0x1d:
         case 0x1e:
         case 0x1f:
-        case 0x20: {
-            int data = dataStack.pop();
-            int addr = data & 0xffff;
-            if ((data & 0x00800000) != 0) { // ???，前面的指令不可能产生局部变量的指针？？？
-                addr += runtimeRam.getRegionStartAddr();
-            }
-            int len = (data >>> 16) & 0x7f;
-            int value = ramManager.getBytes(addr, len);
-            if (len == 2) {
-                //lvm的int为有符号两字节数据
-                value = (short) value;
-            }
-            switch (cmd) {
-            case 0x1d:
-                dataStack.push(++value);
-                break;
-            case 0x1e:
-                dataStack.push(--value);
-                break;
-            case 0x1f:
-                dataStack.push(value++);
-                break;
-            case 0x20:
-                dataStack.push(value--);
-                break;
-            }
-            ramManager.setBytes(addr, len, value);
-        }
-        break;
+        case 0x20:
+            increase(cmd);
+            break;
         case 0x21:
             dataStack.push(dataStack.pop() + dataStack.pop());
             break;
@@ -363,44 +641,44 @@ final class DefaultGVM extends JGVM {
             dataStack.pop();
             break;
         case 0x39: {
-            int addr = app.getUint24();
+            int addr = operand;
             // if (dataStack.peek(0) == 0) {
             if (dataStack.lastValue() == 0) {
-                app.setOffset(addr);
+                this.pc = addr;
             }
             break;
         }
         case 0x3a: {
-            int addr = app.getUint24();
+            int addr = operand;
             // if (dataStack.peek(0) != 0) {
             if (dataStack.lastValue() != 0) {
-                app.setOffset(addr);
+                this.pc = addr;
             }
             break;
         }
         case 0x3b:
-            app.setOffset(app.getUint24());
+            this.pc = operand;
             break;
         case 0x3c: {
-            int addr = app.getInt16() & 0xffff;
+            int addr = operand & 0xffff;
             runtimeRam.setRegionEndAddr(addr);
             runtimeRam.setRegionStartAddr(addr);
         }
         break;
         case 0x3d: {
             //invoke
-            int nextAddr = app.getUint24();
-            int currAddr = app.getOffset();
+            int nextAddr = operand;
+            int currAddr = this.pc;
             ramManager.setUint24(runtimeRam.getRegionEndAddr(), currAddr);
-            app.setOffset(nextAddr);
+            this.pc = nextAddr;
         }
         break;
         case 0x3e: {
             //function entry
             ramManager.setBytes(runtimeRam.getRegionEndAddr() + 3, 2, runtimeRam.getRegionStartAddr());
             runtimeRam.setRegionStartAddr(runtimeRam.getRegionEndAddr());
-            runtimeRam.setRegionEndAddr(runtimeRam.getRegionStartAddr() + (app.getInt16() & 0xffff));
-            int paramCount = app.getUint8();
+            runtimeRam.setRegionEndAddr(runtimeRam.getRegionStartAddr() + (operand & 0xffff));
+            int paramCount = operand >>> 16;
             while (--paramCount >= 0) {
                 ramManager.setInt32(runtimeRam.getRegionStartAddr() + 5 + 4 * paramCount, dataStack.pop());
             }
@@ -410,24 +688,15 @@ final class DefaultGVM extends JGVM {
             int addr = ramManager.getUint24(runtimeRam.getRegionStartAddr());
             runtimeRam.setRegionEndAddr(runtimeRam.getRegionStartAddr());
             runtimeRam.setRegionStartAddr(ramManager.getInt16(runtimeRam.getRegionEndAddr() + 3) & 0xffff);
-            app.setOffset(addr);
+            this.pc = addr;
         }
         break;
         case 0x40:
             end = true;
             break;
-        case 0x41: {
-            int addr = app.getInt16() & 0xffff;
-            int len = app.getInt16() & 0xffff;
-            byte b;
-            while (--len >= 0) {
-                //ramManager.setChar(addr++, app.getChar());
-                //正常GVmaker中,这些数据是保存在runtimeRam中
-                b = (byte) app.getUint8();
-                runtimeRam.setByte(addr++, b);
-            }
-        }
-        break;
+        case 0x41:
+            initData(pc + 5, operand & 0xffff, operand >>> 16);
+            break;
         case 0x42:
             dataStack.push(screen.getBufferRam().getStartAddr());
             break;
@@ -437,86 +706,137 @@ final class DefaultGVM extends JGVM {
             //loadall
             break;
         case 0x45:
-            dataStack.push(app.getInt16() + dataStack.pop());
+            dataStack.push(operand + dataStack.pop());
             break;
         case 0x46:
-            dataStack.push(dataStack.pop() - app.getInt16());
+            dataStack.push(dataStack.pop() - operand);
             break;
         case 0x47:
-            dataStack.push(dataStack.pop() * app.getInt16());
+            dataStack.push(dataStack.pop() * operand);
             break;
         case 0x48: {
-            int v1 = app.getInt16();
+            int v1 = operand;
             int v2 = dataStack.pop();
             dataStack.push(v1 == 0 ? -1 : v2 / v1);
         }
         break;
         case 0x49: {
-            int v1 = app.getInt16();
+            int v1 = operand;
             int v2 = dataStack.pop();
             dataStack.push(v1 == 0 ? 0 : v2 % v1);
         }
         break;
         case 0x4a:
-            dataStack.push(dataStack.pop() << app.getInt16());
+            dataStack.push(dataStack.pop() << operand);
             break;
         case 0x4b:
             // 无符号右移
-            dataStack.push(dataStack.pop() >>> app.getInt16());
+            dataStack.push(dataStack.pop() >>> operand);
             break;
         case 0x4c:
-            dataStack.push(app.getInt16() == dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand == dataStack.pop() ? TRUE : FALSE);
             break;
         case 0x4d:
-            dataStack.push(app.getInt16() != dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand != dataStack.pop() ? TRUE : FALSE);
             break;
         case 0x4e:
-            dataStack.push(app.getInt16() < dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand < dataStack.pop() ? TRUE : FALSE);
             break;
         case 0x4f:
-            dataStack.push(app.getInt16() > dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand > dataStack.pop() ? TRUE : FALSE);
             break;
         case 0x50:
-            dataStack.push(app.getInt16() <= dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand <= dataStack.pop() ? TRUE : FALSE);
             break;
         case 0x51:
-            dataStack.push(app.getInt16() >= dataStack.pop() ? TRUE : FALSE);
+            dataStack.push(operand >= dataStack.pop() ? TRUE : FALSE);
+            break;
+        default:
+            //system function
+            callSystem(cmd);
+            break;
+        }
+    }
+
+    /**
+     * 自增自减指令(0x1d~0x20)
+     */
+    private void increase(int cmd) {
+        int data = dataStack.pop();
+        int addr = data & 0xffff;
+        if ((data & 0x00800000) != 0) { // ???，前面的指令不可能产生局部变量的指针？？？
+            addr += runtimeRam.getRegionStartAddr();
+        }
+        int len = (data >>> 16) & 0x7f;
+        int value = ramManager.getBytes(addr, len);
+        if (len == 2) {
+            //lvm的int为有符号两字节数据
+            value = (short) value;
+        }
+        switch (cmd) {
+        case 0x1d:
+            dataStack.push(++value);
+            break;
+        case 0x1e:
+            dataStack.push(--value);
+            break;
+        case 0x1f:
+            dataStack.push(value++);
+            break;
+        case 0x20:
+            dataStack.push(value--);
             break;
+        }
+        ramManager.setBytes(addr, len, value);
+    }
+
+    /**
+     * 将lav数据中src开始的len字节数据复制到地址addr处(0x41)
+     */
+    private void initData(int src, int addr, int len) {
+        while (--len >= 0) {
+            //正常GVmaker中,这些数据是保存在runtimeRam中
+            runtimeRam.setByte(addr++, code.byteAt(src++));
+        }
+    }
 
-        //system function
+    /**
+     * 执行系统函数(0x80~0xca)<p>
+     * 与nextStep分开,使nextStep中的指令分派部分足够小,能够被JIT编译
+     * @param cmd 系统函数对应的指令
+     */
+    private void callSystem(int cmd) throws InterruptedException {
+        switch (cmd) {
         case 0x80:
             text.addChar((char) (dataStack.pop() & 0xff));
             text.updateLCD(0);
             break;
         case 0x81: {
-            int a = key.getchar();
-            dataStack.push(a);
+            willBlock();
+            int a = nonBlocking ? key.pollchar() : key.getchar();
+            if (a < 0) {
+                waitForInput();
+            } else {
+                dataStack.push(a);
+            }
             break;
         }
         case 0x82:
             printf();
             break;
-        //strcpy
-        case 0x83: {
-            int source = dataStack.pop() & 0xffff;
-            int dest = dataStack.pop() & 0xffff;
-            byte b;
-            do {
-                b = ramManager.getByte(source++);
-                ramManager.setByte(dest++, b);
-            } while (b != 0);
-            //这个应该不会改变显存与屏幕缓冲,但可能修改文本缓冲以及读取字符堆
+        case 0x83:
+        case 0x84:
+        case 0xa6:
+        case 0xa7:
+        case 0xa8:
+        case 0xa9:
+        case 0xac:
+        case 0xad:
+        case 0xbd:
+        case 0xbe:
+        case 0xbf:
+            callStringFunction(cmd);
             break;
-        }
-        case 0x84: {
-            int addr = dataStack.pop() & 0xffff;
-            int length = 0;
-            while (ramManager.getByte(addr++) != 0) {
-                length++;
-            }
-            dataStack.push(length);
-        }
-        break;
         case 0x85:
             text.setTextMode(dataStack.pop() & 0xff);
             break;
@@ -524,9 +844,10 @@ final class DefaultGVM extends JGVM {
             text.updateLCD(dataStack.pop());
             break;
         case 0x87: {
+            willBlock();
             int delayTime = dataStack.pop() & 0x7fff;
             if (delayTime * 3 / 4 > 0) {
-                Thread.sleep(delayTime * 3 / 4);
+                clock.sleep(delayTime * 3 / 4, stepCount);
             }
         }
         break;
@@ -539,6 +860,13 @@ final class DefaultGVM extends JGVM {
             break;
         case 0x89:
             render.refresh();
+            if (stopOnRefresh) {
+                blocked = refreshed = true;
+            }
+            //记录的是这条指令执行完后的状态,此时stepCount还没有计入这条指令
+            if (rewind != null && rewind.isFrameDue(stepCount + 1)) {
+                rewind.record(stepCount + 1, writeState(false, stepCount + 1), runtimeRam);
+            }
             break;
         case 0x8a:
             dataStack.movePointer(-4);
@@ -639,92 +967,164 @@ final class DefaultGVM extends JGVM {
         case 0x9a:
             //beep,do nothing
             break;
-        case 0x9b: {
-            int c = dataStack.pop() & 0xff;
-            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
-                dataStack.push(TRUE);
-            } else {
-                dataStack.push(FALSE);
-            }
+        case 0x9b:
+        case 0x9c:
+        case 0x9d:
+        case 0x9e:
+        case 0x9f:
+        case 0xa0:
+        case 0xa1:
+        case 0xa2:
+        case 0xa3:
+        case 0xa4:
+        case 0xa5:
+        case 0xaa:
+        case 0xab:
+            callCtypeFunction(cmd);
+            break;
+        case 0xae:
+        case 0xaf:
+        case 0xb0:
+        case 0xb1:
+        case 0xb2:
+        case 0xb3:
+        case 0xb4:
+        case 0xb5:
+        case 0xb6:
+        case 0xb7:
+        case 0xb9:
+        case 0xba:
+        case 0xc0:
+            callFileFunction(cmd);
+            break;
+        //sprintf
+        case 0xb8:
+            sprintf();
+            break;
+        //getms
+        case 0xbb: {
+            int ms = (int) (clock.currentTimeMillis(stepCount) % 1000);
+            ms = ms * 256 / 1000;
+            dataStack.push(ms);
         }
         break;
-        case 0x9c: {
-            int c = dataStack.pop() & 0xff;
-            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
-                dataStack.push(TRUE);
-            } else {
-                dataStack.push(FALSE);
-            }
+        //checkKey
+        case 0xbc: {
+            char c = (char) dataStack.pop();
+            dataStack.push(key.checkKey(c));
         }
         break;
-        case 0x9d: {
-            int c = dataStack.pop() & 0xff;
-            if ((c >= 0 && c <= 0x1f) || c == 0x7f) {
-                dataStack.push(TRUE);
+        //fileList
+        case 0xc1: {
+            willBlock();
+            int addr = dataStack.pop();
+            FileList list = fileList;
+            fileList = null;
+            if (list == null) {
+                list = new FileList();
+            }
+            int result = list.select(addr & 0xffff);
+            if (result == SELECTING) {
+                fileList = list;
+                dataStack.push(addr);
+                waitForInput();
             } else {
-                dataStack.push(FALSE);
+                dataStack.push(result);
             }
+            break;
         }
-        break;
-        case 0x9e: {
-            int c = dataStack.pop() & 0xff;
-            dataStack.push((c >= '0' && c <= '9') ? TRUE : FALSE);
+        //getTime
+        case 0xc2: {
+            if (cal == null) {
+                cal = Calendar.getInstance();
+                date = new Date();
+            }
+            date.setTime(clock.currentTimeMillis(stepCount));
+            cal.setTime(date);
+            int addr = dataStack.pop() & 0xffff;
+            ramManager.setBytes(addr, 2, cal.get(Calendar.YEAR));
+            ramManager.setBytes(addr + 2, 1, cal.get(Calendar.MONTH));
+            ramManager.setBytes(addr + 3, 1, cal.get(Calendar.DAY_OF_MONTH));
+            ramManager.setBytes(addr + 4, 1, cal.get(Calendar.HOUR_OF_DAY));
+            ramManager.setBytes(addr + 5, 1, cal.get(Calendar.MINUTE));
+            ramManager.setBytes(addr + 6, 1, cal.get(Calendar.SECOND));
+            ramManager.setBytes(addr + 7, 1, cal.get(Calendar.DAY_OF_WEEK));
+            break;
         }
-        break;
-        case 0x9f: {
-            int c = dataStack.pop() & 0xff;
-            dataStack.push((c >= 0x21 && c <= 0x7e) ? TRUE : FALSE);
+        //setTime
+        case 0xc3:
+            //忽略之
+            dataStack.pop();
+            break;
+//                throw new IllegalStateException("不支持的函数: SetTime");
+        //getWord
+        case 0xc4: {
+            willBlock();
+            int mode = dataStack.pop();
+            int c;
+            if (input == null) {
+                c = nonBlocking ? key.pollchar() : key.getchar();
+            } else {
+                input.setMode(mode);
+                c = input.getWord(key, screen);
+            }
+            if (c < 0) {
+                dataStack.push(mode);
+                waitForInput();
+            } else {
+                dataStack.push(c);
+            }
+            break;
         }
-        break;
-        case 0xa0: {
-            int c = dataStack.pop() & 0xff;
-            dataStack.push((c >= 'a' && c <= 'z') ? TRUE : FALSE);
+        //xDraw
+        case 0xc5:
+            render.xdraw(dataStack.pop());
+            break;
+        //releaseKey
+        case 0xc6:
+            key.releaseKey((char) dataStack.pop());
+            break;
+        //getBlock
+        case 0xc7: {
+            dataStack.movePointer(-6);
+            render.setDrawMode(dataStack.peek(4));
+            int addr = dataStack.peek(5) & 0xffff;
+            int length = render.getRegion((short) dataStack.peek(0), (short) dataStack.peek(1),
+                    (short) dataStack.peek(2), (short) dataStack.peek(3),
+                    ramManager, addr);
         }
         break;
-        case 0xa1: {
-            int c = dataStack.pop() & 0xff;
-            dataStack.push((c >= 0x20 && c <= 0x7e) ? TRUE : FALSE);
+        case 0xc8: {
+            int arc = (short) dataStack.pop();
+            dataStack.push(Util.cos(arc));
         }
         break;
-        //ispunct
-        case 0xa2: {
-            int c = dataStack.pop() & 0xff;
-            if (c < 0x20 || c > 0x7e) {
-                dataStack.push(FALSE);
-            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
-                dataStack.push(FALSE);
-            } else if ((c >= '0' && c <= '9') || c == 0x20) {
-                dataStack.push(FALSE);
-            } else {
-                dataStack.push(TRUE);
-            }
+        case 0xc9: {
+            int arc = (short) dataStack.pop();
+            dataStack.push(Util.sin(arc));
         }
         break;
-        case 0xa3: {
-            int c = dataStack.pop() & 0xff;
-            if (c == 0x09 || c == 0x0a || c == 0x0b || c == 0x0c || c == 0x0d || c == 0x20) {
-                dataStack.push(TRUE);
-            } else {
-                dataStack.push(FALSE);
-            }
+        case 0xca:
+            throw new IllegalStateException("不支持的函数: FillArea");
         }
-        break;
-        case 0xa4: {
-            int c = dataStack.pop() & 0xff;
-            dataStack.push((c <= 'Z' && c >= 'A') ? TRUE : FALSE);
+    }
+
+    /**
+     * 字符串与内存操作函数
+     */
+    private void callStringFunction(int cmd) {
+        switch (cmd) {
+        //strcpy
+        case 0x83: {
+            int source = dataStack.pop() & 0xffff;
+            int dest = dataStack.pop() & 0xffff;
+            ramManager.copyString(dest, source);
+            //这个应该不会改变显存与屏幕缓冲,但可能修改文本缓冲以及读取字符堆
+            break;
         }
-        break;
-        case 0xa5: {
-            int c = dataStack.pop() & 0xff;
-            if (c <= 'F' && c >= 'A') {
-                dataStack.push(TRUE);
-            } else if (c <= 'f' && c >= 'a') {
-                dataStack.push(TRUE);
-            } else if (c <= '9' && c >= '0') {
-                dataStack.push(TRUE);
-            } else {
-                dataStack.push(FALSE);
-            }
+        case 0x84: {
+            int addr = dataStack.pop() & 0xffff;
+            dataStack.push(ramManager.indexOfZero(addr) - addr);
         }
         break;
         //strcat
@@ -732,14 +1132,7 @@ final class DefaultGVM extends JGVM {
             //不会修改显存相关
             int src = dataStack.pop() & 0xffff;
             int dst = dataStack.pop() & 0xffff;
-            while (ramManager.getByte(dst) != 0) {
-                dst++;
-            }
-            byte b;
-            do {
-                b = ramManager.getByte(src++);
-                ramManager.setByte(dst++, b);
-            } while (b != 0);
+            ramManager.copyString(ramManager.indexOfZero(dst), src);
         }
         break;
         //strchr
@@ -763,16 +1156,7 @@ final class DefaultGVM extends JGVM {
         case 0xa8: {
             int str2 = dataStack.pop() & 0xffff;
             int str1 = dataStack.pop() & 0xffff;
-            int cmp = 0;
-            while (true) {
-                int c1 = ramManager.getUint8(str1++);
-                int c2 = ramManager.getUint8(str2++);
-                cmp = c1 - c2;
-                if (cmp != 0 || c1 == 0) {
-                    break;
-                }
-            }
-            dataStack.push(cmp);
+            dataStack.push(ramManager.compare(str1, str2));
         }
         break;
         //strstr
@@ -803,6 +1187,139 @@ final class DefaultGVM extends JGVM {
             dataStack.push(addr);
         }
         break;
+        case 0xac: {
+            int len = (short) dataStack.pop();
+            byte b = (byte) dataStack.pop();
+            int addr = dataStack.pop() & 0xffff;
+            ramManager.fill(addr, len, b);
+        }
+        break;
+        case 0xad: {
+            int len = (short) dataStack.pop();
+            int str2 = dataStack.pop() & 0xffff;
+            int str1 = dataStack.pop() & 0xffff;
+            ramManager.copy(str1, str2, len);
+        }
+        break;
+        //memmove
+        case 0xbd: {
+            int len = (short) dataStack.pop();
+            int src = dataStack.pop() & 0xffff;
+            int dst = dataStack.pop() & 0xffff;
+            ramManager.move(dst, src, len);
+        }
+        break;
+        //crc16
+        case 0xbe: {
+            int length = (short) dataStack.pop();
+            int addr = dataStack.pop() & 0xffff;
+            dataStack.push(ramManager.crc16(addr, length));
+        }
+        break;
+        //secret
+        case 0xbf: {
+            int strAddr = dataStack.pop() & 0xffff;
+            int length = (short) dataStack.pop();
+            int memAddr = dataStack.pop() & 0xffff;
+            ramManager.xor(memAddr, length, strAddr);
+        }
+        break;
+        }
+    }
+
+    /**
+     * 字符分类与大小写转换函数
+     */
+    private void callCtypeFunction(int cmd) {
+        switch (cmd) {
+        case 0x9b: {
+            int c = dataStack.pop() & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+                dataStack.push(TRUE);
+            } else {
+                dataStack.push(FALSE);
+            }
+        }
+        break;
+        case 0x9c: {
+            int c = dataStack.pop() & 0xff;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                dataStack.push(TRUE);
+            } else {
+                dataStack.push(FALSE);
+            }
+        }
+        break;
+        case 0x9d: {
+            int c = dataStack.pop() & 0xff;
+            if ((c >= 0 && c <= 0x1f) || c == 0x7f) {
+                dataStack.push(TRUE);
+            } else {
+                dataStack.push(FALSE);
+            }
+        }
+        break;
+        case 0x9e: {
+            int c = dataStack.pop() & 0xff;
+            dataStack.push((c >= '0' && c <= '9') ? TRUE : FALSE);
+        }
+        break;
+        case 0x9f: {
+            int c = dataStack.pop() & 0xff;
+            dataStack.push((c >= 0x21 && c <= 0x7e) ? TRUE : FALSE);
+        }
+        break;
+        case 0xa0: {
+            int c = dataStack.pop() & 0xff;
+            dataStack.push((c >= 'a' && c <= 'z') ? TRUE : FALSE);
+        }
+        break;
+        case 0xa1: {
+            int c = dataStack.pop() & 0xff;
+            dataStack.push((c >= 0x20 && c <= 0x7e) ? TRUE : FALSE);
+        }
+        break;
+        //ispunct
+        case 0xa2: {
+            int c = dataStack.pop() & 0xff;
+            if (c < 0x20 || c > 0x7e) {
+                dataStack.push(FALSE);
+            } else if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                dataStack.push(FALSE);
+            } else if ((c >= '0' && c <= '9') || c == 0x20) {
+                dataStack.push(FALSE);
+            } else {
+                dataStack.push(TRUE);
+            }
+        }
+        break;
+        case 0xa3: {
+            int c = dataStack.pop() & 0xff;
+            if (c == 0x09 || c == 0x0a || c == 0x0b || c == 0x0c || c == 0x0d || c == 0x20) {
+                dataStack.push(TRUE);
+            } else {
+                dataStack.push(FALSE);
+            }
+        }
+        break;
+        case 0xa4: {
+            int c = dataStack.pop() & 0xff;
+            dataStack.push((c <= 'Z' && c >= 'A') ? TRUE : FALSE);
+        }
+        break;
+        case 0xa5: {
+            int c = dataStack.pop() & 0xff;
+            if (c <= 'F' && c >= 'A') {
+                dataStack.push(TRUE);
+            } else if (c <= 'f' && c >= 'a') {
+                dataStack.push(TRUE);
+            } else if (c <= '9' && c >= '0') {
+                dataStack.push(TRUE);
+            } else {
+                dataStack.push(FALSE);
+            }
+        }
+        break;
         case 0xaa: {
             int c = dataStack.pop() & 0xff;
             if (c >= 'A' && c <= 'Z') {
@@ -819,27 +1336,14 @@ final class DefaultGVM extends JGVM {
             dataStack.push(c);
         }
         break;
-        case 0xac: {
-            int len = (short) dataStack.pop();
-            byte b = (byte) dataStack.pop();
-            int addr = dataStack.pop() & 0xffff;
-            //System.out.println(addr+","+len+","+b);
-            int start = addr;
-            while (--len >= 0) {
-                ramManager.setByte(addr++, b);
-            }
-        }
-        break;
-        case 0xad: {
-            int len = (short) dataStack.pop();
-            int str2 = dataStack.pop() & 0xffff;
-            int str1 = dataStack.pop() & 0xffff;
-            int start = str1;
-            while (--len >= 0) {
-                ramManager.setByte(str1++, ramManager.getByte(str2++));
-            }
         }
-        break;
+    }
+
+    /**
+     * 文件操作函数
+     */
+    private void callFileFunction(int cmd) {
+        switch (cmd) {
         //fopen
         case 0xae:
             dataStack.movePointer(-2);
@@ -895,10 +1399,6 @@ final class DefaultGVM extends JGVM {
             dataStack.push(file.putc(ch, fp));
         }
         break;
-        //sprintf
-        case 0xb8:
-            sprintf();
-            break;
         //makeDir
         case 0xb9:
             dataStack.push(file.makeDir(ramManager, dataStack.pop() & 0xffff) ? TRUE : FALSE);
@@ -907,132 +1407,10 @@ final class DefaultGVM extends JGVM {
         case 0xba:
             dataStack.push(file.deleteFile(ramManager, dataStack.pop() & 0xffff) ? TRUE : FALSE);
             break;
-        //getms
-        case 0xbb: {
-            int ms = (int) (System.currentTimeMillis() % 1000);
-            ms = ms * 256 / 1000;
-            dataStack.push(ms);
-        }
-        break;
-        //checkKey
-        case 0xbc: {
-            char c = (char) dataStack.pop();
-            dataStack.push(key.checkKey(c));
-        }
-        break;
-        //memmove
-        case 0xbd: {
-            int len = (short) dataStack.pop();
-            int src = dataStack.pop() & 0xffff;
-            int dst = dataStack.pop() & 0xffff;
-            if (src > dst) {
-                for (int index = 0; index < len; index++) {
-                    ramManager.setByte(dst + index, ramManager.getByte(src + index));
-                }
-            } else {
-                for (int index = len - 1; index >= 0; index--) {
-                    ramManager.setByte(dst + index, ramManager.getByte(src + index));
-                }
-            }
-        }
-        break;
-        //crc16
-        case 0xbe: {
-            int length = (short) dataStack.pop();
-            int addr = dataStack.pop() & 0xffff;
-            dataStack.push(Util.getCrc16Value(ramManager, addr, length));
-        }
-        break;
-        //secret
-        case 0xbf: {
-            int strAddr = dataStack.pop() & 0xffff;
-            int length = (short) dataStack.pop();
-            int memAddr = dataStack.pop() & 0xffff;
-            int index = 0;
-            while (--length >= 0) {
-                byte mask = ramManager.getByte(strAddr + index);
-                if (mask == 0) {
-                    index = 0;
-                    mask = ramManager.getByte(strAddr + index);
-                }
-                byte value = ramManager.getByte(memAddr);
-                ramManager.setByte(memAddr, (byte) (value ^ mask));
-                index++;
-                memAddr++;
-            }
-        }
-        break;
         //chDir
         case 0xc0:
             dataStack.push(file.changeDir(ramManager, dataStack.pop() & 0xffff) ? TRUE : FALSE);
             break;
-        //fileList
-        case 0xc1:
-            dataStack.push(fileList());
-            break;
-        //getTime
-        case 0xc2: {
-            date.setTime(System.currentTimeMillis());
-            cal.setTime(date);
-            int addr = dataStack.pop() & 0xffff;
-            ramManager.setBytes(addr, 2, cal.get(Calendar.YEAR));
-            ramManager.setBytes(addr + 2, 1, cal.get(Calendar.MONTH));
-            ramManager.setBytes(addr + 3, 1, cal.get(Calendar.DAY_OF_MONTH));
-            ramManager.setBytes(addr + 4, 1, cal.get(Calendar.HOUR_OF_DAY));
-            ramManager.setBytes(addr + 5, 1, cal.get(Calendar.MINUTE));
-            ramManager.setBytes(addr + 6, 1, cal.get(Calendar.SECOND));
-            ramManager.setBytes(addr + 7, 1, cal.get(Calendar.DAY_OF_WEEK));
-            break;
-        }
-        //setTime
-        case 0xc3:
-            //忽略之
-            dataStack.pop();
-            break;
-//                throw new IllegalStateException("不支持的函数: SetTime");
-        //getWord
-        case 0xc4: {
-            int mode = dataStack.pop();
-            char c;
-            if (input == null) {
-                c = key.getchar();
-            } else {
-                input.setMode(mode);
-                c = input.getWord(key, screen);
-            }
-            dataStack.push(c);
-            break;
-        }
-        //xDraw
-        case 0xc5:
-            render.xdraw(dataStack.pop());
-            break;
-        //releaseKey
-        case 0xc6:
-            key.releaseKey((char) dataStack.pop());
-            break;
-        //getBlock
-        case 0xc7: {
-            dataStack.movePointer(-6);
-            render.setDrawMode(dataStack.peek(4));
-            int addr = dataStack.peek(5) & 0xffff;
-            int length = render.getRegion((short) dataStack.peek(0), (short) dataStack.peek(1),
-                    (short) dataStack.peek(2), (short) dataStack.peek(3),
-                    ramManager, addr);
-        }
-        break;
-        case 0xc8: {
-            int arc = (short) dataStack.pop();
-            dataStack.push(Util.cos(arc));
-        }
-        break;
-        case 0xc9: {
-            int arc = (short) dataStack.pop();
-            dataStack.push(Util.sin(arc));
-        }
-        break;
-        case 0xca:
-            throw new IllegalStateException("不支持的函数: FillArea");
         }
     }
 
@@ -1040,25 +1418,53 @@ final class DefaultGVM extends JGVM {
         return config;
     }
 
-    private int fileList() throws InterruptedException {
-        int addr = dataStack.pop() & 0xffff;
-        int count = file.getFileNum();
-        byte[][] encodes = new byte[count + 1][];
-        String[] dirName = new String[1];
-        encodes[0] = new byte[]{'.', '.'};
-        for (int index = 0; index < count; index++) {
-            file.listFiles(dirName, index, 1);
-            try {
-                encodes[index + 1] = dirName[0].getBytes("gb2312");
-            } catch (UnsupportedEncodingException uee) {
-                encodes[index + 1] = dirName[0].getBytes();
+    /**
+     * fileList的文件列表与选择状态<p>
+     * 创建时列出当前目录并绘制列表,之后select读取按键移动反显条,直到按下输入键或跳出键.
+     * 非阻塞模式下没有按键时select返回SELECTING,选择状态保留在该对象中,指令重新执行时接着选择
+     */
+    private final class FileList {
+
+        //".."以及当前目录下各文件名的gb2312编码
+        private final byte[][] encodes;
+        private final int count;
+        private final int maxRow;
+        //第一行显示的文件以及反显条所在的行
+        private int first, current;
+
+        FileList() {
+            count = file.getFileNum();
+            encodes = new byte[count + 1][];
+            String[] dirName = new String[1];
+            encodes[0] = new byte[]{'.', '.'};
+            for (int index = 0; index < count; index++) {
+                file.listFiles(dirName, index, 1);
+                try {
+                    encodes[index + 1] = dirName[0].getBytes("gb2312");
+                } catch (UnsupportedEncodingException uee) {
+                    encodes[index + 1] = dirName[0].getBytes();
+                }
             }
+            maxRow = screen.getHeight() / 13;
+            draw();
         }
-        GetableImp getter = new GetableImp();
-        int maxRow = screen.getHeight() / 13;
-        int first = 0, current = 0;
-        for (; ; ) {
-            //绘制文件名与反显条
+
+        /**
+         * 复制list的选择状态,用于fork,此时屏幕已经复制,不再绘制
+         */
+        FileList(FileList list) {
+            encodes = list.encodes;
+            count = list.count;
+            maxRow = list.maxRow;
+            first = list.first;
+            current = list.current;
+        }
+
+        /**
+         * 绘制文件名与反显条,并通知监听器,因为之后select可能阻塞在读取按键中
+         */
+        private void draw() {
+            GetableImp getter = new GetableImp();
             render.setDrawMode(Renderable.RENDER_FILL_TYPE |
                     Renderable.DRAW_CLEAR_TYPE |
                     Renderable.RENDER_GRAPH_TYPE);
@@ -1072,9 +1478,20 @@ final class DefaultGVM extends JGVM {
                     Renderable.RENDER_FILL_TYPE |
                     Renderable.RENDER_GRAPH_TYPE);
             render.drawRect(0, 13 * current, screen.getWidth(), 13 * current + 12);
-            //接受按键
-            for (; ; ) {
-                int keyValue = key.getRawKey();
+            screen.fireScreenChanged();
+        }
+
+        /**
+         * 读取按键并移动反显条,直到选择结束
+         * @param addr 按下输入键时保存所选文件名的地址
+         * @return 按下输入键时为TRUE,按下跳出键时为FALSE;非阻塞模式下没有按键时为SELECTING
+         */
+        int select(int addr) throws InterruptedException {
+            for (;;) {
+                int keyValue = nonBlocking ? key.pollRawKey() : key.getRawKey();
+                if (keyValue < 0) {
+                    return SELECTING;
+                }
                 if (keyValue == keyInf.getEnter()) {
                     int index = 0;
                     while (index < encodes[first + current].length) {
@@ -1087,27 +1504,22 @@ final class DefaultGVM extends JGVM {
                     return FALSE;
                 }
                 if (keyValue == keyInf.getDown() || keyValue == keyInf.getRight()) {
-                    if (first + current >= count) {
-                        continue;
-                    } else {
+                    if (first + current < count) {
                         if (current < maxRow - 1) {
                             current++;
                         } else {
                             first++;
                         }
-                        break;
+                        draw();
                     }
-                }
-                if (keyValue == keyInf.getUp() || keyValue == keyInf.getLeft()) {
-                    if (first + current == 0) {
-                        continue;
-                    } else {
+                } else if (keyValue == keyInf.getUp() || keyValue == keyInf.getLeft()) {
+                    if (first + current > 0) {
                         if (current > 0) {
                             current--;
                         } else {
                             first--;
                         }
-                        break;
+                        draw();
                     }
                 }
             }
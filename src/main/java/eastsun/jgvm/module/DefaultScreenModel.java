@@ -6,6 +6,8 @@ import eastsun.jgvm.module.ram.ReadableMemory;
 import eastsun.jgvm.module.ram.Ram;
 import eastsun.jgvm.module.ram.RelativeRam;
 import eastsun.jgvm.module.ram.WritableMemory;
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
 
 /**
  * ScreenModel的实现类,该类实现了Renderable接口<p>
@@ -23,19 +25,22 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
      * 每行20字节,共80行
      */
     private static final int BUFFER_SIZE = WIDTH * HEIGHT / 8;
-    //显存与缓存数据
-    private byte[] graphData,  bufferData;
-    private RelativeRam graphRam,  bufferRam;
+    //显存与缓存,其数据可能被RamManager迁移到平坦内存中,所以每次使用前从Ram中取得数组与偏移
+    private ScreenRam graphRam,  bufferRam;
     private int drawMode;
     //下列变量与drawMode有关
-    private boolean isFill,  isBig;
+    private boolean isFill,  isBig,  isGraph;
+    //当前绘制目标的数据及其在数组中的开始位置
     private byte[] currData;
+    private int currBase;
+    //drawRegion使用的一行图像数据,开头留一个空字节,结尾留出按4字节读取的余量
+    private final byte[] rowData = new byte[BYTES_PER_LINE + 8];
+    //当前绘制方式,见prepareRop
+    private int ropK0,  ropK1,  ropK2,  ropK3;
 
     public DefaultScreenModel() {
-        graphData = new byte[BUFFER_SIZE];
-        bufferData = new byte[BUFFER_SIZE];
-        graphRam = new ScreenRam(this, graphData, Ram.RAM_GRAPH_TYPE);
-        bufferRam = new ScreenRam(this, bufferData, Ram.RAM_BUFFER_TYPE);
+        graphRam = new ScreenRam(this, new byte[BUFFER_SIZE], Ram.RAM_GRAPH_TYPE);
+        bufferRam = new ScreenRam(this, new byte[BUFFER_SIZE], Ram.RAM_BUFFER_TYPE);
     }
 
     public boolean hasRelativeRam() {
@@ -50,12 +55,39 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         return bufferRam;
     }
 
+    @Override
+    public int getRetainedBytes() {
+        return super.getRetainedBytes() + graphRam.getRetainedBytes() + bufferRam.getRetainedBytes() + rowData.length;
+    }
+
+    @Override
+    public void saveState(ByteBuffer out) {
+        out.putInt(drawMode);
+        out.put(graphRam.getInternalData(), graphRam.getInternalOffset(), BUFFER_SIZE);
+        out.put(bufferRam.getInternalData(), bufferRam.getInternalOffset(), BUFFER_SIZE);
+    }
+
+    @Override
+    public void loadState(ByteBuffer in) {
+        setDrawMode(in.getInt());
+        in.get(graphRam.getInternalData(), graphRam.getInternalOffset(), BUFFER_SIZE);
+        in.get(bufferRam.getInternalData(), bufferRam.getInternalOffset(), BUFFER_SIZE);
+        addDirtyRegion(0, 0, WIDTH, HEIGHT);
+    }
+
+    @Override
+    public void checkState(ByteBuffer in) {
+        IOUtil.skip(in, 4 + 2 * BUFFER_SIZE);
+    }
+
     public void setDrawMode(int m) {
         drawMode = m;
         isFill = (m & RENDER_FILL_TYPE) != 0;
-        boolean isGraph = (m & RENDER_GRAPH_TYPE) != 0;
+        isGraph = (m & RENDER_GRAPH_TYPE) != 0;
         isBig = (m & TEXT_BIG_TYPE) != 0;
-        currData = isGraph ? graphData : bufferData;
+        ScreenRam ram = isGraph ? graphRam : bufferRam;
+        currData = ram.getInternalData();
+        currBase = ram.getInternalOffset();
     }
 
     public void drawString(int x, int y, ReadableMemory source, int addr) {
@@ -67,10 +99,8 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
     }
 
     public void drawString(int x, int y, ReadableMemory source, int addr, int length) {
-        //这个调用drawRegion时会修改区域,所以这儿不需要再修改区域
-        byte[] data = isBig ? new byte[32] : new byte[24];
-        int h = isBig ? 16 : 12;
-        ReadableMemory getter = Util.asAccessable(data);
+        GlyphCache font = isBig ? GlyphCache.BIG : GlyphCache.SMALL;
+        int h = font.height();
         while (length > 0) {
             char c = (char) (source.getByte(addr++) & 0xff);
             length--;
@@ -78,12 +108,86 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
                 c |= source.getByte(addr++) << 8;
                 length--;
             }
-            int w = (isBig ? Util.getGB16Data(c, data) : Util.getGB12Data(c, data)) / 2;
-            drawRegion(x, y, w, h, getter, 0);
+            int w = font.width(c);
+            drawGlyph(x, y, w, h, font.get(c));
             x += w;
         }
     }
 
+    /**
+     * 绘制一个字符点阵,效果与用drawRegion绘制该字符的点阵数据相同
+     * @param glyph GlyphCache中该字符的数据
+     */
+    private void drawGlyph(int x, int y, int w, int h, int[] glyph) {
+        if (x >= WIDTH || y >= HEIGHT || x + w <= 0 || y + h <= 0) {
+            return;
+        }
+        if (isGraph) {
+            addDirtyRegion(x, y, w, h);
+        }
+        int align = x & 0x07;
+        //字符左边所在字节,可能为负
+        int col = x >> 3;
+        int mask = (-1 << (32 - w)) >>> align;
+        int bytes = (align + w + 7) >>> 3;
+        //在屏幕范围内的字节与行
+        int begin = col < 0 ? -col : 0;
+        int end = col + bytes > BYTES_PER_LINE ? BYTES_PER_LINE - col : bytes;
+        int top = y < 0 ? -y : 0;
+        int bottom = y + h > HEIGHT ? HEIGHT - y : h;
+        prepareRop();
+        int k0 = ropK0, k1 = ropK1, k2 = ropK2, k3 = ropK3;
+        byte[] dst = currData;
+        int offset = currBase + BYTES_PER_LINE * (y + top) + col;
+        int base = align * h;
+        for (int row = top; row < bottom; row++) {
+            int s = glyph[base + row];
+            for (int index = begin; index < end; index++) {
+                int shift = 24 - (index << 3);
+                int m = mask >>> shift & 0xff;
+                int d = dst[offset + index];
+                d ^= (d ^ (k0 ^ (s >>> shift & k1) ^ (d & k2) ^ (s >>> shift & d & k3))) & m;
+                dst[offset + index] = (byte) d;
+            }
+            offset += BYTES_PER_LINE;
+        }
+    }
+
+    /**
+     * 根据drawMode计算ropK0~ropK3,使绘制结果为 r = k0 ^ (s & k1) ^ (d & k2) ^ (s & d & k3),s为图像数据,d为屏幕数据<p>
+     * 与原有行为一致: XNOT方式下的取反绘制会使drawMode变为清除方式
+     */
+    private void prepareRop() {
+        int mode = drawMode & 0x07;
+        int inv = (drawMode & RENDER_XNOT_TYPE) != 0 ? -1 : 0;
+        int k0 = 0, k1 = -1, k2 = 0, k3 = 0;
+        switch (mode) {
+            case DRAW_NOT_TYPE:
+                //不论是否XNOT都是取反
+                k0 = -1;
+                if (inv != 0) {
+                    drawMode &= ~0x07;
+                    inv = 0;
+                }
+                break;
+            case DRAW_OR_TYPE:
+                k2 = -1;
+                k3 = -1;
+                break;
+            case DRAW_AND_TYPE:
+                k1 = 0;
+                k3 = -1;
+                break;
+            case DRAW_XOR_TYPE:
+                k2 = -1;
+                break;
+        }
+        ropK0 = k0 ^ (inv & k1);
+        ropK1 = k1;
+        ropK2 = k2 ^ (inv & k3);
+        ropK3 = k3;
+    }
+
     public void drawRect(int x0, int y0, int x1, int y1) {
         if (x0 > x1) {
             int tmp = x1;
@@ -101,6 +205,9 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         if (y0 >= HEIGHT || y1 < 0) {
             return;
         }
+        if (isGraph) {
+            addDirtyRegion(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+        }
 
         if (isFill) {
             x0 = x0 < 0 ? 0 : x0;
@@ -145,8 +252,8 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         if (x2 >= WIDTH) {
             x2 = WIDTH - 1;
         }
-        int start = BYTES_PER_LINE * y + (x1 >> 3);
-        int end = BYTES_PER_LINE * y + (x2 >> 3);
+        int start = currBase + BYTES_PER_LINE * y + (x1 >> 3);
+        int end = currBase + BYTES_PER_LINE * y + (x2 >> 3);
         for (int index = start; index <= end; index++) {
             int mask = 0;
             if (index == start) {
@@ -183,6 +290,10 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         if (oy + b < 0 || oy - b >= HEIGHT) {
             return;
         }
+        if (isGraph) {
+            int ra = Math.abs(a), rb = Math.abs(b);
+            addDirtyRegion(ox - ra, oy - rb, 2 * ra + 1, 2 * rb + 1);
+        }
         int asq = a * a, bsq = b * b;
         int asq2 = asq * 2, bsq2 = bsq * 2;
         int p;
@@ -240,7 +351,9 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
     }
 
     public void drawPoint(int x, int y) {
-        drawPointImp(x, y);
+        if (drawPointImp(x, y) && isGraph) {
+            addDirtyRegion(x, y, 1, 1);
+        }
     }
 
     /**
@@ -251,7 +364,7 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         if (x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT) {
             return false;
         }
-        int offset = y * 20 + (x >>> 3);
+        int offset = currBase + y * 20 + (x >>> 3);
         int mask = 0x80 >> (x & 0x07);
         switch (drawMode & 0x03) {
             case DRAW_CLEAR_TYPE:
@@ -278,7 +391,7 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         }
         */
         int mask = 0x80 >> (x & 0x07);
-        return graphData[offset] & mask;
+        return graphRam.getInternalData()[graphRam.getInternalOffset() + offset] & mask;
     }
 
     public void drawLine(int x0, int y0, int x1, int y1) {
@@ -290,6 +403,9 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
             y0 = y1;
             y1 = tmp;
         }
+        if (isGraph) {
+            addDirtyRegion(x0, Math.min(y0, y1), x1 - x0 + 1, Math.abs(y1 - y0) + 1);
+        }
         int detx = x1 - x0, dety = y1 - y0;
         int sign = 1;
         if (dety < 0) {
@@ -330,6 +446,9 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
             return;
         }
         //System.out.println("drawRegion " + x + "," + y + "," + width + "," + height + " isGraph:" + isGraph);
+        if (isGraph) {
+            addDirtyRegion(x, y, width, height);
+        }
 
         //每行数据占用byte数
         int bytePerLine = (width + 7) >>> 3;
@@ -356,58 +475,79 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         //绘制处前无用的bit数
         int unuseScreenBits = x % 8;
         //绘制开始地址
-        int offset = BYTES_PER_LINE * y + x / 8;
+        int offset = currBase + BYTES_PER_LINE * y + x / 8;
         //实际每行用到数据的byte数
         int count = (unuseDataBits + width + 7) / 8;
         //实际绘制影响到的byte数
         int size = (unuseScreenBits + width + 7) / 8;
         //绘制结尾剩下的bit数
         int remain = size * 8 - unuseScreenBits - width;
-        //用于存储图像数据
-        byte[] mapData = new byte[count + 1];
+        //数据相对屏幕向左移动的bit数,加上rowData开头的一个空字节
+        int shift = unuseDataBits - unuseScreenBits + 8;
+        int first = shift >> 3;
+        int bits = shift & 0x07;
+        //首尾字节中需要修改的bit
+        int headMask = ~maskH[unuseScreenBits] & 0xff;
+        int tailMask = ~maskT[remain] & 0xff;
+
+        int k0 = 0, k1 = 0, k2 = 0, k3 = 0;
+        boolean prepared = false;
+        byte[] src = rowData;
+        byte[] dst = currData;
+        src[0] = 0;
+        for (int index = count + 1; index < src.length; index++) {
+            src[index] = 0;
+        }
         while (height-- > 0) {
             for (int index = 0; index < count; index++) {
-                mapData[index] = source.getByte(addr + index);
+                src[index + 1] = source.getByte(addr + index);
             }
             addr += bytePerLine;
-            adjustData(mapData, 0, mapData.length, unuseDataBits - unuseScreenBits);
-            for (int index = 0; index < size; index++) {
-                int s = mapData[index], d = currData[offset + index];
-                int mask = 0;
+            if (size > 0 && !prepared) {
+                //在第一次修改屏幕前计算,以保持drawMode的变化与原有行为一致
+                prepareRop();
+                k0 = ropK0;
+                k1 = ropK1;
+                k2 = ropK2;
+                k3 = ropK3;
+                prepared = true;
+            }
+            int index = 0;
+            //每次处理4个字节
+            for (; index + 4 <= size; index += 4) {
+                int p = first + index;
+                int s = ((src[p] & 0xff) << 24 | (src[p + 1] & 0xff) << 16 | (src[p + 2] & 0xff) << 8 | src[p + 3] & 0xff) << bits |
+                        (src[p + 4] & 0xff) >>> (8 - bits);
+                int q = offset + index;
+                int d = (dst[q] & 0xff) << 24 | (dst[q + 1] & 0xff) << 16 | (dst[q + 2] & 0xff) << 8 | dst[q + 3] & 0xff;
+                int m = -1;
                 if (index == 0) {
-                    mask |= maskH[unuseScreenBits];
-
+                    m &= headMask << 24 | 0x00ffffff;
                 }
-                if (index == size - 1) {
-                    mask |= maskT[remain];
+                if (index + 4 == size) {
+                    m &= tailMask | 0xffffff00;
                 }
-                if ((drawMode & 0x08) != 0) {
-                    s ^= 0xff;
-                    if ((drawMode & 0x07) == 2) {
-                        drawMode &= ~0x07;
-                    }
+                d ^= (d ^ (k0 ^ (s & k1) ^ (d & k2) ^ (s & d & k3))) & m;
+                dst[q] = (byte) (d >>> 24);
+                dst[q + 1] = (byte) (d >>> 16);
+                dst[q + 2] = (byte) (d >>> 8);
+                dst[q + 3] = (byte) d;
+            }
+            //剩余不足4个字节
+            for (; index < size; index++) {
+                int p = first + index;
+                int s = (src[p] & 0xff) << bits | (src[p + 1] & 0xff) >>> (8 - bits);
+                int d = dst[offset + index];
+                int m = 0xff;
+                if (index == 0) {
+                    m &= headMask;
                 }
-                s &= ~mask;
-                d &= ~mask;
-                currData[offset + index] &= mask;
-                switch (drawMode & 0x07) {
-                    case 2:
-                        s ^= ~mask;
-                        break;
-                    case 3:
-                        s |= d;
-                        break;
-                    case 4:
-                        s &= d;
-                        break;
-                    case 5:
-                        s ^= d;
-                        break;
-
+                if (index == size - 1) {
+                    m &= tailMask;
                 }
-                currData[offset + index] |= s;
-            }//for
-
+                d ^= (d ^ (k0 ^ (s & k1) ^ (d & k2) ^ (s & d & k3))) & m;
+                dst[offset + index] = (byte) d;
+            }
             offset += BYTES_PER_LINE;
         }
     }
@@ -460,7 +600,7 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
         //每行占用的byte数,忽略低3位
         int bytePerLine = width / 8;
         //图片数据在显存中开始地址,x忽略低三位
-        int dataOffset = y * BYTES_PER_LINE + x / 8;
+        int dataOffset = currBase + y * BYTES_PER_LINE + x / 8;
         int size = height * bytePerLine;
         while (height-- > 0) {
             for (int byteCount = 0; byteCount < bytePerLine; byteCount++) {
@@ -477,14 +617,24 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
     }
 
     public void refresh() {
-        System.arraycopy(bufferData, 0, graphData, 0, BUFFER_SIZE);
+        System.arraycopy(bufferRam.getInternalData(), bufferRam.getInternalOffset(),
+                graphRam.getInternalData(), graphRam.getInternalOffset(), BUFFER_SIZE);
+        addDirtyRegion(0, 0, WIDTH, HEIGHT);
+        fireScreenChanged();
+    }
+
+    @Override
+    public void copyFrame(byte[] frame, int offset) {
+        System.arraycopy(graphRam.getInternalData(), graphRam.getInternalOffset(), frame, offset, BUFFER_SIZE);
     }
 
     public void xdraw(int mode) {
+        byte[] bufferData = bufferRam.getInternalData();
+        int bufferBase = bufferRam.getInternalOffset();
         switch (mode & 0x07) {
             case 0:
                  {
-                    int byteOffset = 0;
+                    int byteOffset = bufferBase;
                     for (int h = 0; h < HEIGHT; h++) {
                         adjustData(bufferData, byteOffset, BYTES_PER_LINE, 1);
                         byteOffset += BYTES_PER_LINE;
@@ -493,7 +643,7 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
                 break;
             case 1:
                  {
-                    int byteOffset = 0;
+                    int byteOffset = bufferBase;
                     for (int h = 0; h < HEIGHT; h++) {
                         adjustData(bufferData, byteOffset, BYTES_PER_LINE, -1);
                         byteOffset += BYTES_PER_LINE;
@@ -502,7 +652,7 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
                 break;
             case 4:
                  {
-                    int byteOffset = 0;
+                    int byteOffset = bufferBase;
                     for (int h = 0; h < HEIGHT; h++) {
                         for (int index = 0; index < BYTES_PER_LINE / 2; index++) {
                             int tmp = bufferData[byteOffset + BYTES_PER_LINE - 1 - index] & 0xff;
@@ -516,8 +666,8 @@ final class DefaultScreenModel extends ScreenModel implements Renderable {
             case 5:
                  {
                     for (int h = 0; h < HEIGHT / 2; h++) {
-                        int topOffset = h * BYTES_PER_LINE;
-                        int bottomOffset = (HEIGHT - 1 - h) * BYTES_PER_LINE;
+                        int topOffset = bufferBase + h * BYTES_PER_LINE;
+                        int bottomOffset = bufferBase + (HEIGHT - 1 - h) * BYTES_PER_LINE;
                         for (int index = 0; index < BYTES_PER_LINE; index++) {
                             byte tmp = bufferData[topOffset + index];
                             bufferData[topOffset + index] = bufferData[bottomOffset + index];
@@ -2,6 +2,7 @@ package eastsun.jgvm.module;
 
 import eastsun.jgvm.module.ram.ReadableMemory;
 import eastsun.jgvm.module.ram.WritableMemory;
+import java.nio.ByteBuffer;
 
 /**
  * 文件系统,实现GVM中的各种文件操作功能<p>
@@ -127,4 +128,36 @@ public interface FileModel {
      * 关闭所有文件,释放占用的资源
      */
     public void dispose();
+
+    /**
+     * 把当前工作目录以及所有打开文件的状态与内容写入out,不访问实际的文件系统
+     */
+    public void saveState(ByteBuffer out);
+
+    /**
+     * 从in恢复saveState写入的状态,之前打开的文件被直接丢弃,不会写回文件系统
+     * @throws IllegalArgumentException 数据格式不正确
+     */
+    public void loadState(ByteBuffer in);
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变该FileModel,也不访问实际的文件系统
+     * @throws IllegalArgumentException 数据格式不正确
+     * @throws java.nio.BufferUnderflowException 数据不完整
+     */
+    public void checkState(ByteBuffer in);
+
+    /**
+     * 得到一个与当前状态相同的FileModel,供JGVM.fork创建的GVM使用<p>
+     * 两者的工作目录与打开的文件相同,打开文件的内容以写时复制的方式共享,之后互不影响.
+     * 新FileModel可以读取实际的文件系统,但不会改动它:关闭可写的文件时不写回,也不能创建文件夹或删除文件,
+     * 因此同时运行的多个分出的GVM不会互相覆盖文件
+     * @return 新的FileModel
+     */
+    public FileModel fork();
+
+    /**
+     * 得到该FileModel独占的字节数,包括打开文件中不与其他FileModel共享的数据
+     */
+    public int getRetainedBytes();
 }
@@ -0,0 +1,74 @@
+package eastsun.jgvm.module;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在GVM执行线程与显示线程之间传递完整屏幕帧的三重缓冲<p>
+ * 执行线程把一帧写入getBackFrame()后调用publish发布;显示线程调用acquire得到最近发布的完整帧.<p>
+ * 两个线程各自持有一个缓冲区,第三个缓冲区通过一个原子变量交换,双方都不会阻塞,显示线程也不会读到写了一半的帧.<p>
+ * 注意:只支持一个写线程和一个读线程
+ */
+public final class FrameExchange {
+
+    //middle中表示该缓冲区是尚未被读取的新帧的标志位
+    private static final int FRESH = 4;
+    private static final int INDEX_MASK = 3;
+    private final byte[][] frames;
+    //在两个线程间交换的缓冲区下标
+    private final AtomicInteger middle = new AtomicInteger(1);
+    //写线程使用的缓冲区下标
+    private int back = 2;
+    //读线程使用的缓冲区下标
+    private int front = 0;
+
+    /**
+     * 创建一个FrameExchange
+     * @param size 每帧的字节数
+     */
+    public FrameExchange(int size) {
+        frames = new byte[3][size];
+    }
+
+    /**
+     * 得到写线程用于写入下一帧的缓冲区,只能由写线程调用
+     * @return 缓冲区,在publish之后不应再访问
+     */
+    public byte[] getBackFrame() {
+        return frames[back];
+    }
+
+    /**
+     * 发布getBackFrame()中已写好的一帧,只能由写线程调用
+     */
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+    }
+
+    /**
+     * 得到最近发布的一帧所在缓冲区的编号,只能由读线程调用<p>
+     * 在下次调用acquire之前,该缓冲区的内容不会被写线程修改
+     * @return 缓冲区编号,0~2
+     * @see #getFrame(int)
+     */
+    public int acquire() {
+        if ((middle.get() & FRESH) != 0) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return front;
+    }
+
+    /**
+     * 得到编号为index的缓冲区,可以用来预先为每个缓冲区创建图像
+     * @param index 缓冲区编号,0~2
+     */
+    public byte[] getFrame(int index) {
+        return frames[index];
+    }
+
+    /**
+     * 得到三个缓冲区的总字节数
+     */
+    public int getRetainedBytes() {
+        return frames.length * frames[0].length;
+    }
+}
@@ -0,0 +1,90 @@
+package eastsun.jgvm.module;
+
+import eastsun.jgvm.module.io.Util;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 字符点阵缓存,为一种字号的每个字符保存8种x对齐方式下预先移位的点阵<p>
+ * 点阵的每一行保存为一个int,最高位对应屏幕上一个字节的最高位,对齐方式为a时整行右移a位.<p>
+ * 字符按高低字节分页,在第一次使用时从Util的点阵库中取得并生成所有对齐方式的数据.
+ * 点阵只取决于点阵库,因此每种字号只有一个缓存,由所有ScreenModel共用.
+ * 页与点阵通过AtomicReferenceArray发布,可以被多个线程同时使用;
+ * 两个线程同时加载同一字符时各自生成的点阵相同,保留先发布的一个
+ */
+final class GlyphCache {
+
+    /**
+     * 12点阵小字体的缓存
+     */
+    static final GlyphCache SMALL = new GlyphCache(false);
+    /**
+     * 16点阵大字体的缓存
+     */
+    static final GlyphCache BIG = new GlyphCache(true);
+    private final boolean isBig;
+    private final int height;
+    //pages[c>>8][c&0xff]: 8*height个int,第a*height+row个为对齐方式a下第row行的数据
+    private final AtomicReferenceArray<AtomicReferenceArray<int[]>> pages = new AtomicReferenceArray<AtomicReferenceArray<int[]>>(256);
+
+    private GlyphCache(boolean isBig) {
+        this.isBig = isBig;
+        this.height = isBig ? 16 : 12;
+    }
+
+    /**
+     * 字符点阵的高度
+     */
+    int height() {
+        return height;
+    }
+
+    /**
+     * 字符c的宽度,与Util.getGB12Data或getGB16Data返回的字节数的一半相同
+     */
+    int width(char c) {
+        if (c <= 0xff) {
+            return isBig ? 8 : 6;
+        }
+        else {
+            return isBig ? 16 : 12;
+        }
+    }
+
+    /**
+     * 得到字符c的点阵数据
+     * @return 8*height()个int,对齐方式a下第row行的数据下标为a*height()+row
+     */
+    int[] get(char c) {
+        AtomicReferenceArray<int[]> page = pages.get(c >>> 8);
+        if (page == null) {
+            pages.compareAndSet(c >>> 8, null, new AtomicReferenceArray<int[]>(256));
+            page = pages.get(c >>> 8);
+        }
+        int[] glyph = page.get(c & 0xff);
+        if (glyph == null) {
+            page.compareAndSet(c & 0xff, null, load(c));
+            glyph = page.get(c & 0xff);
+        }
+        return glyph;
+    }
+
+    private int[] load(char c) {
+        byte[] data = new byte[isBig ? 32 : 24];
+        int count = isBig ? Util.getGB16Data(c, data) : Util.getGB12Data(c, data);
+        int width = count / 2;
+        int bytePerLine = (width + 7) >>> 3;
+        int mask = -1 << (32 - width);
+        int[] glyph = new int[8 * height];
+        for (int row = 0; row < height; row++) {
+            int bits = (data[row * bytePerLine] & 0xff) << 24;
+            if (bytePerLine > 1) {
+                bits |= (data[row * bytePerLine + 1] & 0xff) << 16;
+            }
+            bits &= mask;
+            for (int align = 0; align < 8; align++) {
+                glyph[align * height + row] = bits >>> align;
+            }
+        }
+        return glyph;
+    }
+}
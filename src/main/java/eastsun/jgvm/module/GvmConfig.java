@@ -8,6 +8,7 @@ package eastsun.jgvm.module;
 public final class GvmConfig {
 
     private int runtimeRamSize,  stringRamSize,  stackSize,  version;
+    private boolean flatMemory;
 
     /**
      * 默认的JLVM配置
@@ -24,10 +25,23 @@ public final class GvmConfig {
      * @param version GVM的版本
      */
     public GvmConfig(int runtimeRamSize, int stringRamSize, int stackSize, int version) {
+        this(runtimeRamSize, stringRamSize, stackSize, version, false);
+    }
+
+    /**
+     * 构造函数
+     * @param runtimeRamSize 运行内存大小
+     * @param stringRamSize 字符堆内存大小
+     * @param stackSize     栈大小
+     * @param version GVM的版本
+     * @param flatMemory 是否让RamManager把所有内存模块放到同一个数组中
+     */
+    public GvmConfig(int runtimeRamSize, int stringRamSize, int stackSize, int version, boolean flatMemory) {
         this.runtimeRamSize = runtimeRamSize;
         this.stringRamSize = stringRamSize;
         this.stackSize = stackSize;
         this.version = version;
+        this.flatMemory = flatMemory;
     }
 
     public int stringRamSize() {
@@ -50,10 +64,20 @@ public final class GvmConfig {
         return version;
     }
 
+    /**
+     * 是否使用平坦内存模式<p>
+     * 平坦内存模式下JGVM.fork需要复制全部运行时内存,不能按页共享
+     * @return flatMemory
+     */
+    public boolean isFlatMemory() {
+        return flatMemory;
+    }
+
     public String toString() {
         return "[Version: 0x" + Integer.toHexString(version) +
                 ",runtimeRamSize: " + runtimeRamSize +
                 ",stringRamSize: " + stringRamSize +
-                ", stackSize: " + stackSize + "]";
+                ", stackSize: " + stackSize +
+                ", flatMemory: " + flatMemory + "]";
     }
 }
@@ -1,7 +1,5 @@
 package eastsun.jgvm.module;
 
-import java.awt.*;
-
 /**
  * 规定实现GVM所需的接口.注意,除了getConfig,其它方法都不是线程安全的<p>
  * 可以使用GVM加载LavApp,然后逐步执行<p>
@@ -16,7 +14,7 @@ import java.awt.*;
  *              try{
  *                  gvm.loadApp(app);
  *                  while(!(isInterrupted()||gvm.isEnd())){
- *                      gvm.nextStep();
+ *                      gvm.runSteps(10000);
  *                  }
  *              }catch(IllegalStateException ise){
  *                 //do something
@@ -35,6 +33,32 @@ import java.awt.*;
  */
 public abstract class JGVM {
 
+    /**
+     * runSteps的返回值: 已执行完指定条数的指令
+     */
+    public static final int STOP_BY_COUNT = 0;
+    /**
+     * runUntil的返回值: 已到达指定的时间
+     */
+    public static final int STOP_BY_DEADLINE = 1;
+    /**
+     * runSteps/runUntil的返回值: 程序已经结束
+     */
+    public static final int STOP_BY_END = 2;
+    /**
+     * runSteps/runUntil的返回值: 刚执行了一个可能阻塞的系统函数,如getchar,Delay,getWord或fileList
+     */
+    public static final int STOP_BY_BLOCKING = 3;
+    /**
+     * runFrame的返回值: 刚执行了refresh,屏幕上是完整的一帧
+     */
+    public static final int STOP_BY_REFRESH = 4;
+    /**
+     * 非阻塞模式下runSteps/runFrame/runUntil的返回值: getchar,getWord或fileList没有读到按键,这条指令还没有执行完
+     * @see #setNonBlocking(boolean)
+     */
+    public static final int WAITING_FOR_INPUT = 5;
+
     /**
      * 工厂方法,通过给定的配置得到一个GVM
      * @param config 配置
@@ -42,8 +66,19 @@ public abstract class JGVM {
      * @exception IllegalStateException 不支持该配置的GVM
      */
     public static JGVM newGVM(GvmConfig config, FileModel fileModel, ScreenModel screenModel, KeyModel keyModel) throws IllegalStateException {
+        return newGVM(config, fileModel, screenModel, keyModel, RealClock.INSTANCE);
+    }
+
+    /**
+     * 工厂方法,通过给定的配置得到一个使用指定时钟的GVM
+     * @param config 配置
+     * @param clock getms,getTime与Delay使用的时钟
+     * @return 一个新的GVM实例
+     * @exception IllegalStateException 不支持该配置的GVM
+     */
+    public static JGVM newGVM(GvmConfig config, FileModel fileModel, ScreenModel screenModel, KeyModel keyModel, Clock clock) throws IllegalStateException {
         //当前实现忽略GvmConfig的version参数,总是返回一个GVM1.0的实例
-        return new DefaultGVM(config, fileModel, screenModel, keyModel);
+        return new DefaultGVM(config, fileModel, screenModel, keyModel, clock);
     }
 
     /**
@@ -60,18 +95,108 @@ public abstract class JGVM {
     public abstract void dispose();
 
     /**
-     * 执行下一个指令,该方法可能会阻塞
+     * 执行下一个指令,该方法可能会阻塞;非阻塞模式下没有读到按键时这条指令不算执行,之后调用时重新执行它
      * @throws java.lang.IllegalStateException 程序已经结束或不支持的操作
      * @throws InterruptedException 执行期间被其他线程中断
      */
     public abstract void nextStep() throws IllegalStateException, InterruptedException;
 
+    /**
+     * 连续执行最多count条指令,遇到程序结束或执行了可能阻塞的系统函数时提前返回<p>
+     * 线程的中断状态只在开始时检查一次,适合在一个循环中分批执行<p>
+     * 返回前以及执行可能阻塞的系统函数前会调用ScreenModel的fireScreenChanged方法
+     * @param count 最多执行的指令数
+     * @return 停止的原因,STOP_BY_COUNT,STOP_BY_END,STOP_BY_BLOCKING,非阻塞模式下还可能是WAITING_FOR_INPUT
+     * @throws IllegalStateException 程序已经结束或不支持的操作
+     * @throws InterruptedException 开始执行前或执行期间线程被中断
+     */
+    public abstract int runSteps(int count) throws IllegalStateException, InterruptedException;
+
+    /**
+     * 与runSteps相同,但执行refresh后也立即返回,适合以帧为单位驱动GVM
+     * @param count 最多执行的指令数
+     * @return 停止的原因,STOP_BY_COUNT,STOP_BY_END,STOP_BY_BLOCKING,STOP_BY_REFRESH或WAITING_FOR_INPUT
+     * @throws IllegalStateException 程序已经结束或不支持的操作
+     * @throws InterruptedException 开始执行前或执行期间线程被中断
+     * @see #runSteps(int)
+     */
+    public abstract int runFrame(int count) throws IllegalStateException, InterruptedException;
+
+    /**
+     * 连续执行指令直到System.nanoTime()到达deadline,遇到程序结束或执行了可能阻塞的系统函数时提前返回<p>
+     * 时间与线程中断状态每执行一批指令才检查一次,因此实际返回时间可能稍晚于deadline
+     * @param deadline 以System.nanoTime()计的截止时间
+     * @return 停止的原因,STOP_BY_DEADLINE,STOP_BY_END,STOP_BY_BLOCKING或WAITING_FOR_INPUT
+     * @throws IllegalStateException 程序已经结束或不支持的操作
+     * @throws InterruptedException 执行期间线程被中断
+     */
+    public abstract int runUntil(long deadline) throws IllegalStateException, InterruptedException;
+
     /**
      * 程序是否正常结束,如果没有加载app,总是返回true
      * @return 程序运行是否已经正常结束
      */
     public abstract boolean isEnd();
 
+    /**
+     * 得到自加载当前app以来已经执行的指令数
+     * @return 已执行的指令数
+     */
+    public abstract long getStepCount();
+
+    /**
+     * 得到该GVM独占的内存字节数,可以用来估计同时运行的GVM各自实际占用多少内存<p>
+     * 包括运行时内存,字符堆,栈,显存,已创建的帧缓冲,文本缓冲区以及打开文件中只属于该GVM的数据.
+     * 不包括多个GVM共用的部分:LavApp与LavCode,字符点阵缓存,运行时内存的全0页,fork后仍然共享的页,
+     * 文件缓冲池中空闲的页,以及倒带缓冲区(见RewindBuffer.getCapacity)
+     * @return 字节数,不含对象头等开销
+     */
+    public abstract long getRetainedBytes();
+
+
+    /**
+     * 把GVM的完整运行状态保存为一个字节数组,之后可以用loadState恢复<p>
+     * 状态包括所有内存,栈,程序指针,文本与屏幕状态,随机数种子以及打开的文件,不包括KeyModel与Clock的状态.
+     * 数据为带版本号的二进制格式,未使用的内存为0,适合压缩
+     * @return 状态数据
+     * @throws IllegalStateException 没有加载app
+     */
+    public abstract byte[] saveState() throws IllegalStateException;
+
+    /**
+     * 恢复saveState保存的状态,状态必须来自同一个app以及相同配置的GVM<p>
+     * 先检查全部数据,数据不正确时抛出异常,GVM保持原来的状态不变.恢复后会通知ScreenModel的监听器整个屏幕已改变
+     * @param state saveState得到的数据
+     * @throws IllegalStateException 没有加载app
+     * @throws IllegalArgumentException 数据格式不正确,版本不支持,或者与当前app及配置不符
+     */
+    public abstract void loadState(byte[] state) throws IllegalStateException, IllegalArgumentException;
+
+    /**
+     * 从当前状态分出一个新的GVM,它从完全相同的状态开始运行,之后与该GVM互不影响<p>
+     * 新GVM使用相同的配置,输入法与阻塞模式,给定的ScreenModel,KeyModel与Clock,以及由FileModel.fork得到的FileModel,不带倒带缓冲区.
+     * 程序数据直接共享;运行时内存与打开文件的内容按页以写时复制的方式共享,任何一方改写一页时才复制这一页,
+     * 因此分出的GVM占用的内存主要取决于之后实际改写的页数.字符堆,栈,文本与显存较小,直接复制;
+     * 平坦内存模式下运行时内存也需要全部复制,因此需要大量fork的宿主应使用非平坦内存.
+     * 分出的GVM不会改动实际的文件系统,见FileModel.fork.
+     * 共享的页在复制前不会被任何一方改写,因此分出后两者可以在不同的线程中运行,但fork本身应在运行该GVM的线程中调用
+     * @param screenModel 新GVM使用的ScreenModel,应是与该GVM所用的同一种类的新实例
+     * @param keyModel 新GVM使用的KeyModel
+     * @param clock 新GVM使用的时钟,通常与该GVM的时钟种类相同但状态独立
+     * @return 新的GVM
+     * @throws IllegalStateException 没有加载app
+     * @see FileModel#fork()
+     */
+    public abstract JGVM fork(ScreenModel screenModel, KeyModel keyModel, Clock clock) throws IllegalStateException;
+
+    /**
+     * 设置记录每一帧状态的倒带缓冲区,可以为null<p>
+     * 安装后GVM在加载程序时以及每次执行refresh后在缓冲区中记录一帧,之前缓冲区中的帧被丢弃.
+     * 之后可以在GVM执行线程中,或者GVM没有运行时,调用缓冲区的stepBack退回到之前的帧
+     * @param buffer 倒带缓冲区,为null时不再记录
+     * @see RewindBuffer
+     */
+    public abstract void setRewindBuffer(RewindBuffer buffer);
 
     /**
      * 设置该GVM使用的输入法,可以为null
@@ -80,6 +205,17 @@ public abstract class JGVM {
      */
     public abstract InputMethod setInputMethod(InputMethod im);
 
+    /**
+     * 设置是否以非阻塞模式运行,默认为阻塞模式<p>
+     * 阻塞模式下getchar,getWord与fileList通过KeyModel的getchar与getRawKey读取按键,没有按键时阻塞执行线程.
+     * 非阻塞模式下改用pollchar与pollRawKey,没有读到按键时立即以WAITING_FOR_INPUT返回:程序指针,栈与指令数
+     * 都停在这条指令执行之前,fileList的选择状态保留在GVM中;有键按下后再次运行,重新执行这条指令并继续.
+     * 这样一个线程可以轮流运行许多GVM,不会因为其中一个等待按键而阻塞.<p>
+     * 注意:Delay仍然调用Clock.sleep;设置了输入法时getWord仍然调用会阻塞的InputMethod.getWord
+     * @param nonBlocking 是否以非阻塞模式运行
+     */
+    public abstract void setNonBlocking(boolean nonBlocking);
+
     /**
      * 得到该GVM的配置
      * @return config
@@ -70,6 +70,20 @@ public interface KeyModel {
      */
     int getRawKey() throws InterruptedException;
 
+    /**
+     * 不阻塞的getchar:当前有键按下时与getchar相同,否则立即返回-1<p>
+     * 用于非阻塞模式的GVM,见JGVM.setNonBlocking
+     * @return key,没有键按下时为-1
+     */
+    int pollchar();
+
+    /**
+     * 不阻塞的getRawKey:当前有键按下时与getRawKey相同,否则立即返回-1
+     * @return rawKey,没有键按下时为-1
+     * @see #pollchar()
+     */
+    int pollRawKey();
+
     /**
      * 得到一些必须的系统按键值,这些值用于fileList与输入法之用
      */
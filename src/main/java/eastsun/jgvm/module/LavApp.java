@@ -3,16 +3,24 @@ package eastsun.jgvm.module;
 import eastsun.jgvm.util.IOUtil;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.CRC32;
 
 /**
- * 封装一个可执行的lav程序数据,其内部维持一个文件指针
+ * 封装一个可执行的lav程序数据<p>
+ * LavApp创建后不再改变,程序指针由执行它的GVM各自保存,
+ * 因此同一个LavApp可以同时被任意多个GVM(包括不同线程中的GVM)加载,它们共用同一份程序数据与预解码指令流
  * @author Eastsun
  */
 public final class LavApp {
 
+    /**
+     * 程序开始执行的位置,紧接在16字节的文件头之后
+     */
+    public static final int ENTRY_OFFSET = 16;
     private final String name;
-    private byte[] appData;
-    private int offset;
+    private final byte[] appData;
+    private final LavCode code;
+    private final int checksum;
 
     /**
      * 通过一个输入流创建一个LavApp对象
@@ -26,7 +34,10 @@ public final class LavApp {
         this.name = name;
         this.appData = IOUtil.readAll(in);
         verifyData();
-        reset();
+        CRC32 crc = new CRC32();
+        crc.update(appData, 0, appData.length);
+        checksum = (int) crc.getValue() | 1;
+        code = new LavCode(appData);
     }
 
     public String getName() {
@@ -42,58 +53,27 @@ public final class LavApp {
     }
 
     /**
-     * 在pointer处读取一字节无符号整数,并使pointer加一<p>
-     */
-    public final int getUint8() {
-        return appData[offset++] & 0xff;
-    }
-
-    /**
-     * 从app中读取两字节有符号整数,对应lav中的int类型
-     * @return int
+     * 读取程序数据中addr处的一字节
+     * @param addr 偏移量
+     * @return 该字节
      */
-    public final short getInt16() {
-        return (short) (appData[offset++] & 0xff | (appData[offset++] & 0xff) << 8);
-    }
-
-    public final int getUint16() {
-        return appData[offset++] & 0xff | (appData[offset++] & 0xff) << 8;
+    public final byte getByte(int addr) {
+        return appData[addr];
     }
 
     /**
-     * 从app中读取三字节数据(无符号),对应lav中文件指针数据
-     */
-    public final int getUint24() {
-        return appData[offset++] & 0xff | (appData[offset++] & 0xff) << 8 | (appData[offset++] & 0xff) << 16;
-    }
-
-    /**
-     * 从app中读取四字节数据,对应lav中的long类型
-     */
-    public final int getInt32() {
-        return appData[offset++] & 0xff | (appData[offset++] & 0xff) << 8 | (appData[offset++] & 0xff) << 16 | (appData[offset++] & 0xff) << 24;
-    }
-
-    /**
-     * 得到当前数据偏移量
-     * @return pointer 下次读取时的位置
-     */
-    public final int getOffset() {
-        return offset;
-    }
-
-    /** 设置读取偏移量
-     * @param pos 偏移量,下次读取数据时开始位置
+     * 得到程序数据的CRC32校验值,用于确认GVM状态属于哪个程序
      */
-    public final void setOffset(int pos) {
-        offset = pos;
+    public int getChecksum() {
+        return checksum;
     }
 
     /**
-     * 复位数据指针
+     * 得到该程序的预解码指令流
+     * @return code
      */
-    public final void reset() {
-        offset = 16;
+    final LavCode getCode() {
+        return code;
     }
 
     /**
@@ -101,7 +81,7 @@ public final class LavApp {
      * @throws java.lang.IllegalArgumentException 不正确的lava格式
      */
     private void verifyData() throws IllegalArgumentException {
-        if (appData.length <= 16) {
+        if (appData.length <= ENTRY_OFFSET) {
             throw new IllegalArgumentException("不是有效的LAV文件");
         }
         if (appData[0] != 0x4c || appData[1] != 0x41 || appData[2] != 0x56) {
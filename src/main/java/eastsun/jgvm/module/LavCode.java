@@ -0,0 +1,183 @@
+package eastsun.jgvm.module;
+
+/**
+ * lav程序的预解码指令流<p>
+ * 以指令在lav数据中的偏移量为下标,保存已解码指令的操作码,指令长度以及预先取出的操作数.<p>
+ * 构造时把每个偏移量都当作一条指令的开始解码一遍,执行时不需要再逐字节读取lav数据.
+ * 数据区等不是指令开始的位置也会被解码,只是不会被执行.
+ * 构造后不再改变,因此同一个LavCode可以被多个线程中的GVM同时使用.<p>
+ * 跳转指令(0x39,0x3a,0x3b,0x3d)的操作数即为跳转目标的偏移量
+ */
+final class LavCode {
+
+    /**
+     * 指令字中表示该位置是一条完整指令的标志位,指令超出lav数据末尾的位置没有该标志
+     */
+    private static final int DECODED = 0x100;
+    private final byte[] data;
+    //insts[pc]: 低8位为操作码,第9位为解码标志,其余高位为指令长度
+    private final int[] insts;
+    private final int[] operands;
+
+    LavCode(byte[] data) {
+        this.data = data;
+        insts = new int[data.length];
+        operands = new int[data.length];
+        //从后向前解码,zero为pc之后第一个0字节的位置,用于得到常字符串的长度
+        int zero = -1;
+        for (int pc = data.length - 1; pc >= 0; pc--) {
+            decode(pc, zero);
+            if (data[pc] == 0) {
+                zero = pc;
+            }
+        }
+    }
+
+    /**
+     * 得到pc处的指令字
+     * @param pc 指令偏移量
+     * @return inst 指令字,可以用opcode与length分解
+     * @throws IndexOutOfBoundsException pc或指令数据超出lav数据范围
+     */
+    int inst(int pc) {
+        int inst = insts[pc];
+        if (inst == 0) {
+            throw new IndexOutOfBoundsException("指令超出程序数据范围: " + pc);
+        }
+        return inst;
+    }
+
+    /**
+     * pc处是否是一条完整的指令,可以用inst取得
+     */
+    boolean isInstruction(int pc) {
+        return pc >= 0 && pc < insts.length && insts[pc] != 0;
+    }
+
+    /**
+     * 得到pc处指令的操作数
+     */
+    int operand(int pc) {
+        return operands[pc];
+    }
+
+    /**
+     * 读取lav数据中addr处的一字节
+     */
+    byte byteAt(int addr) {
+        return data[addr];
+    }
+
+    /**
+     * 从指令字中得到操作码
+     */
+    static int opcode(int inst) {
+        return inst & 0xff;
+    }
+
+    /**
+     * 从指令字中得到指令长度(字节数)
+     */
+    static int length(int inst) {
+        return inst >>> 9;
+    }
+
+    /**
+     * 解码pc处的指令,指令超出lav数据末尾时不做任何事
+     * @param zero pc之后第一个0字节的位置,没有时为-1
+     */
+    private void decode(int pc, int zero) {
+        int cmd = data[pc] & 0xff;
+        int length = 1;
+        int operand = 0;
+        switch (cmd) {
+            case 0x01:
+                operand = uint8(pc + 1);
+                length = 2;
+                break;
+            case 0x02:
+            case 0x04:
+            case 0x05:
+            case 0x06:
+            case 0x07:
+            case 0x08:
+            case 0x09:
+            case 0x0a:
+            case 0x0b:
+            case 0x0c:
+            case 0x0e:
+            case 0x0f:
+            case 0x10:
+            case 0x11:
+            case 0x12:
+            case 0x13:
+            case 0x14:
+            case 0x15:
+            case 0x16:
+            case 0x17:
+            case 0x18:
+            case 0x19:
+            case 0x3c:
+            case 0x45:
+            case 0x46:
+            case 0x47:
+            case 0x48:
+            case 0x49:
+            case 0x4a:
+            case 0x4b:
+            case 0x4c:
+            case 0x4d:
+            case 0x4e:
+            case 0x4f:
+            case 0x50:
+            case 0x51:
+                operand = (short) uint16(pc + 1);
+                length = 3;
+                break;
+            case 0x03:
+                operand = uint16(pc + 1) | uint16(pc + 3) << 16;
+                length = 5;
+                break;
+            case 0x0d:
+                //常字符串,以0结尾
+                if (zero < 0) {
+                    return;
+                }
+                length = zero + 1 - pc;
+                break;
+            case 0x39:
+            case 0x3a:
+            case 0x3b:
+            case 0x3d:
+                operand = uint16(pc + 1) | uint8(pc + 3) << 16;
+                length = 4;
+                break;
+            case 0x3e:
+                //函数入口: 局部内存大小与参数个数
+                operand = uint16(pc + 1) | uint8(pc + 3) << 16;
+                length = 4;
+                break;
+            case 0x41: {
+                //初始化数据: 地址,长度与其后的数据
+                int len = uint16(pc + 3);
+                operand = uint16(pc + 1) | len << 16;
+                length = 5 + len;
+            }
+            break;
+        }
+        if (pc + length > data.length) {
+            return;
+        }
+        operands[pc] = operand;
+        insts[pc] = cmd | DECODED | length << 9;
+    }
+
+    //超出lav数据末尾的字节当作0读取,这样的指令会因为长度超出范围而不被记录
+    private int uint8(int addr) {
+        return addr < data.length ? data[addr] & 0xff : 0;
+    }
+
+    private int uint16(int addr) {
+        return uint8(addr) | uint8(addr + 1) << 8;
+    }
+}
@@ -1,15 +1,20 @@
 package eastsun.jgvm.module;
 
+import eastsun.jgvm.module.io.Util;
 import eastsun.jgvm.module.ram.Accessable;
 import eastsun.jgvm.module.ram.Ram;
 import eastsun.jgvm.module.ram.RelativeRam;
+import eastsun.jgvm.module.ram.RelocatableRam;
 import eastsun.jgvm.module.ram.RuntimeRam;
 import eastsun.jgvm.module.ram.StringRam;
+import java.util.Arrays;
 
 /**
  * 内存管理模块,默认维持运行时内存与字符堆并提供对栈的支持<p>
  * 并且通过install方法支持对显存与文本缓冲区的可选支持<p>
  * GVM可以通过RamManager提供的内存读写访问所有内在Ram,而不需要知道里面的具体结构<p>
+ * 平坦内存模式下,如果所有安装的Ram都是RelocatableRam,它们会按resetRamAddress的布局迁移到同一个byte数组中,
+ * 此时getByte与setByte只需一次范围判断与一次数组访问,多字节的读写在不跨越内存模块边界时也直接按低字节在前的顺序读写数组
  * @version 2.0 2008/3/19
  * @author Eastsun
  */
@@ -25,17 +30,35 @@ public final class RamManager implements Accessable {
     public static final int START_ADDR = 0x2000;
     private RelativeRam textRam,  graphRam,  bufferRam;
     private ScreenModel screen;
+    //显存的开始与结束地址(不包括),没有安装显存时都为0
+    private int graphStart,  graphEnd;
     private RuntimeRam runRam;
     private StringRam strRam;
     private DataStack dataStack;
     private Ram[] rams = new Ram[3];
     private int ramCount;
+    //是否使用平坦内存模式
+    private final boolean flat;
+    //平坦内存,为null表示当前不能使用平坦内存
+    private byte[] memory;
+    //平坦内存中字符堆的开始与结束地址,运行时内存的开始与结束地址
+    private int strStart,  strEnd,  runStart,  runEnd;
 
     public RamManager(RuntimeRam runRam, StringRam strRam, DataStack dataStack) {
+        this(runRam, strRam, dataStack, false);
+    }
+
+    /**
+     * 构造函数
+     * @param flat 是否使用平坦内存模式
+     * @see GvmConfig#isFlatMemory()
+     */
+    public RamManager(RuntimeRam runRam, StringRam strRam, DataStack dataStack, boolean flat) {
         if (runRam == null || strRam == null || dataStack == null) {
             throw new IllegalArgumentException("param can't be null");
         }
         this.dataStack = dataStack;
+        this.flat = flat;
         install(runRam);
         install(strRam);
     }
@@ -56,10 +79,18 @@ public final class RamManager implements Accessable {
      * @return int
      */
     public short getInt16(int addr) {
+        byte[] mem = memory;
+        if (mem != null && isReadable(addr, SIZE_OF_INT)) {
+            return (short) (mem[addr] & 0xff | mem[addr + 1] << 8);
+        }
         return (short) getBytes(addr, SIZE_OF_INT);
     }
 
     public int getUint16(int addr) {
+        byte[] mem = memory;
+        if (mem != null && isReadable(addr, SIZE_OF_INT)) {
+            return mem[addr] & 0xff | (mem[addr + 1] & 0xff) << 8;
+        }
         return getBytes(addr, SIZE_OF_INT);
     }
 
@@ -69,6 +100,10 @@ public final class RamManager implements Accessable {
      * @return 文件指针
      */
     public int getUint24(int addr) {
+        byte[] mem = memory;
+        if (mem != null && isReadable(addr, SIZE_OF_ADDR)) {
+            return mem[addr] & 0xff | (mem[addr + 1] & 0xff) << 8 | (mem[addr + 2] & 0xff) << 16;
+        }
         return getBytes(addr, SIZE_OF_ADDR);
     }
 
@@ -78,6 +113,10 @@ public final class RamManager implements Accessable {
      * @return long
      */
     public int getInt32(int addr) {
+        byte[] mem = memory;
+        if (mem != null && isReadable(addr, SIZE_OF_LONG)) {
+            return mem[addr] & 0xff | (mem[addr + 1] & 0xff) << 8 | (mem[addr + 2] & 0xff) << 16 | mem[addr + 3] << 24;
+        }
         return getBytes(addr, SIZE_OF_LONG);
     }
 
@@ -95,6 +134,13 @@ public final class RamManager implements Accessable {
      * 设置一个lava中的int数据
      */
     public void setInt16(int addr, short i) {
+        byte[] mem = memory;
+        if (mem != null && isWritable(addr, SIZE_OF_INT)) {
+            mem[addr] = (byte) i;
+            mem[addr + 1] = (byte) (i >>> 8);
+            changed(addr, SIZE_OF_INT);
+            return;
+        }
         setBytes(addr, SIZE_OF_INT, i);
     }
 
@@ -102,6 +148,14 @@ public final class RamManager implements Accessable {
      * 设置一个lava中的文件指针数据
      */
     public void setUint24(int addr, int a) {
+        byte[] mem = memory;
+        if (mem != null && isWritable(addr, SIZE_OF_ADDR)) {
+            mem[addr] = (byte) a;
+            mem[addr + 1] = (byte) (a >>> 8);
+            mem[addr + 2] = (byte) (a >>> 16);
+            changed(addr, SIZE_OF_ADDR);
+            return;
+        }
         setBytes(addr, SIZE_OF_ADDR, a);
     }
 
@@ -109,6 +163,15 @@ public final class RamManager implements Accessable {
      * 设置一个lava中的long数据
      */
     public void setInt32(int addr, int l) {
+        byte[] mem = memory;
+        if (mem != null && isWritable(addr, SIZE_OF_LONG)) {
+            mem[addr] = (byte) l;
+            mem[addr + 1] = (byte) (l >>> 8);
+            mem[addr + 2] = (byte) (l >>> 16);
+            mem[addr + 3] = (byte) (l >>> 24);
+            changed(addr, SIZE_OF_LONG);
+            return;
+        }
         setBytes(addr, SIZE_OF_LONG, l);
     }
 
@@ -119,6 +182,15 @@ public final class RamManager implements Accessable {
      * @return 整值
      */
     public int getBytes(int addr, int count) {
+        byte[] mem = memory;
+        if (mem != null && isReadable(addr, count)) {
+            int data = 0;
+            while (--count >= 0) {
+                data <<= 8;
+                data |= mem[addr + count] & 0xff;
+            }
+            return data;
+        }
         int data = 0;
         while (--count >= 0) {
             data <<= 8;
@@ -129,10 +201,18 @@ public final class RamManager implements Accessable {
 
     /**
      * 用一个整值来设置内存中连续count个字节值<p>
-     * 注意:这些内存地址中可能涉及到显存或屏幕缓冲区,该方法不负责通知相应组件<p>
-     *      应该自己调用intersectWithGraph()方法判断并做出相应反应
+     * 注意:写入显存的区域会被记录到ScreenModel中,但该方法不会调用fireScreenChanged;写入运行时内存的页会被记入其脏页表
      */
     public void setBytes(int addr, int count, int data) {
+        byte[] mem = memory;
+        if (mem != null && isWritable(addr, count)) {
+            changed(addr, count);
+            while (--count >= 0) {
+                mem[addr++] = (byte) data;
+                data >>>= 8;
+            }
+            return;
+        }
         while (--count >= 0) {
             setByte(addr++, (byte) data);
             data >>>= 8;
@@ -162,12 +242,38 @@ public final class RamManager implements Accessable {
         return runRam;
     }
 
+    /**
+     * 得到平坦内存,运行时内存,字符堆与栈独占的字节数.<p>
+     * 其他安装的Ram由提供它们的ScreenModel与TextModel统计,迁移到平坦内存后它们的数据算在这里
+     * @see RelocatableRam#getRetainedBytes()
+     */
+    public int getRetainedBytes() {
+        int bytes = dataStack.getRetainedBytes();
+        if (runRam != null) {
+            bytes += runRam.getRetainedBytes();
+        }
+        if (strRam != null) {
+            bytes += strRam.getRetainedBytes();
+        }
+        if (memory != null) {
+            bytes += memory.length;
+        }
+        return bytes;
+    }
+
     /**
      * 读取指定内存地址一字节数据,并以byte返回
      * @param addr 地址
      * @return byte数据
      */
     public byte getByte(int addr) {
+        byte[] mem = memory;
+        if (mem != null) {
+            if (isReadable(addr, 1)) {
+                return mem[addr];
+            }
+            throw new IndexOutOfBoundsException("内存读越界:" + addr);
+        }
         //Notice: 该实现与resetRamAddress的实现方式有关
         if (addr >= runRam.getStartAddr()) {
             return runRam.getByte(addr);
@@ -186,13 +292,24 @@ public final class RamManager implements Accessable {
 
     /**
      * 将地址为addr的数据设为b
-     * 注意:这些内存地址中可能涉及到显存或屏幕缓冲区,该方法不负责通知相应组件<p>
-     *      应该自己调用intersectWithGraph()方法判断并做出相应反应
+     * 注意:写入显存的区域会被记录到ScreenModel中,但该方法不会调用fireScreenChanged;写入运行时内存的页会被记入其脏页表
      * @param addr 地址
      * @param b 数据
      * @throws IndexOutOfBoundsException 内存写越界
      */
     public void setByte(int addr, byte b) {
+        byte[] mem = memory;
+        if (mem != null) {
+            if (isWritable(addr, 1)) {
+                mem[addr] = b;
+                changed(addr, 1);
+                return;
+            }
+            if (addr >= strStart && addr < strEnd) {
+                throw new IndexOutOfBoundsException("常字符串不能修改: " + addr);
+            }
+            throw new IndexOutOfBoundsException("内存写越界:" + addr);
+        }
         //Notice: 该实现与resetRamAddress的实现方式有关
         if (addr >= runRam.getStartAddr()) {
             runRam.setByte(addr, b);
@@ -206,12 +323,214 @@ public final class RamManager implements Accessable {
             Ram ram = rams[index];
             if (addr >= ram.getStartAddr()) {
                 ram.setByte(addr, b);
+                if (ram == graphRam) {
+                    graphChanged(addr, 1);
+                }
                 return;
             }
         }
         throw new IndexOutOfBoundsException("内存写越界:" + addr);
     }
 
+    /**
+     * 从addr开始查找第一个值为0的字节
+     * @param addr 开始地址
+     * @return 该字节的地址
+     */
+    public int indexOfZero(int addr) {
+        byte[] mem = memory;
+        if (mem != null) {
+            int limit = readLimit(addr);
+            while (addr < limit) {
+                if (mem[addr] == 0) {
+                    return addr;
+                }
+                addr++;
+            }
+        }
+        while (getByte(addr) != 0) {
+            addr++;
+        }
+        return addr;
+    }
+
+    /**
+     * 从src逐字节向前复制len个字节到dst,即使两块区域重叠,结果也与逐字节复制相同
+     * @param dst 目标地址
+     * @param src 源地址
+     * @param len 字节数,小于等于0时什么也不做
+     */
+    public void copy(int dst, int src, int len) {
+        byte[] mem = memory;
+        if (mem != null && len > 0) {
+            int n = Math.min(len, Math.min(readLimit(src) - src, writeLimit(dst) - dst));
+            if (n > 0) {
+                if (dst > src && dst < src + n) {
+                    for (int index = 0; index < n; index++) {
+                        mem[dst + index] = mem[src + index];
+                    }
+                } else {
+                    System.arraycopy(mem, src, mem, dst, n);
+                }
+                changed(dst, n);
+                src += n;
+                dst += n;
+                len -= n;
+            }
+        }
+        while (--len >= 0) {
+            setByte(dst++, getByte(src++));
+        }
+    }
+
+    /**
+     * 复制以0结尾的字符串(包括结尾的0)从src到dst
+     * @param dst 目标地址
+     * @param src 源字符串地址
+     */
+    public void copyString(int dst, int src) {
+        byte[] mem = memory;
+        if (mem != null) {
+            int end = findZero(mem, src, readLimit(src));
+            //目标区域覆盖源字符串结尾时逐字节复制会改写结尾的0,这种情况交给下面的循环
+            if (end >= 0 && !(dst > src && dst <= end) && end - src < writeLimit(dst) - dst) {
+                System.arraycopy(mem, src, mem, dst, end - src + 1);
+                changed(dst, end - src + 1);
+                return;
+            }
+        }
+        byte b;
+        do {
+            b = getByte(src++);
+            setByte(dst++, b);
+        } while (b != 0);
+    }
+
+    /**
+     * 复制len个字节从src到dst,两块区域重叠时结果与先复制到临时区域相同
+     * @param dst 目标地址
+     * @param src 源地址
+     * @param len 字节数,小于等于0时什么也不做
+     */
+    public void move(int dst, int src, int len) {
+        byte[] mem = memory;
+        if (mem != null && len > 0 && len <= readLimit(src) - src && len <= writeLimit(dst) - dst) {
+            System.arraycopy(mem, src, mem, dst, len);
+            changed(dst, len);
+            return;
+        }
+        if (src > dst) {
+            for (int index = 0; index < len; index++) {
+                setByte(dst + index, getByte(src + index));
+            }
+        } else {
+            for (int index = len - 1; index >= 0; index--) {
+                setByte(dst + index, getByte(src + index));
+            }
+        }
+    }
+
+    /**
+     * 将从addr开始的len个字节设为b
+     * @param addr 开始地址
+     * @param len 字节数,小于等于0时什么也不做
+     * @param b 数据
+     */
+    public void fill(int addr, int len, byte b) {
+        byte[] mem = memory;
+        if (mem != null && len > 0) {
+            int n = Math.min(len, writeLimit(addr) - addr);
+            if (n > 0) {
+                Arrays.fill(mem, addr, addr + n, b);
+                changed(addr, n);
+                addr += n;
+                len -= n;
+            }
+        }
+        while (--len >= 0) {
+            setByte(addr++, b);
+        }
+    }
+
+    /**
+     * 按无符号字节比较两个以0结尾的字符串
+     * @return 第一个不同字节的差值,相同时为0
+     */
+    public int compare(int addr1, int addr2) {
+        byte[] mem = memory;
+        if (mem != null) {
+            int limit1 = readLimit(addr1), limit2 = readLimit(addr2);
+            while (addr1 < limit1 && addr2 < limit2) {
+                int c1 = mem[addr1++] & 0xff;
+                int c2 = mem[addr2++] & 0xff;
+                if (c1 != c2 || c1 == 0) {
+                    return c1 - c2;
+                }
+            }
+        }
+        while (true) {
+            int c1 = getUint8(addr1++);
+            int c2 = getUint8(addr2++);
+            if (c1 != c2 || c1 == 0) {
+                return c1 - c2;
+            }
+        }
+    }
+
+    /**
+     * 用以0结尾的密钥字符串循环异或从addr开始的len个字节
+     * @param addr 数据开始地址
+     * @param len 字节数,小于等于0时什么也不做
+     * @param key 密钥字符串地址
+     */
+    public void xor(int addr, int len, int key) {
+        if (len <= 0) {
+            return;
+        }
+        byte[] mem = memory;
+        if (mem != null && len <= writeLimit(addr) - addr) {
+            int end = findZero(mem, key, readLimit(key));
+            //密钥为空串(会读到结尾0之后的字节)或数据与密钥重叠(密钥会在异或过程中改变)时交给下面的循环
+            if (end > key && (end < addr || key >= addr + len)) {
+                changed(addr, len);
+                int index = key;
+                for (int limit = addr + len; addr < limit; addr++) {
+                    byte mask = mem[index];
+                    if (mask == 0) {
+                        index = key;
+                        mask = mem[index];
+                    }
+                    mem[addr] ^= mask;
+                    index++;
+                }
+                return;
+            }
+        }
+        int index = 0;
+        while (--len >= 0) {
+            byte mask = getByte(key + index);
+            if (mask == 0) {
+                index = 0;
+                mask = getByte(key + index);
+            }
+            setByte(addr, (byte) (getByte(addr) ^ mask));
+            index++;
+            addr++;
+        }
+    }
+
+    /**
+     * 计算从addr开始的len个字节的crc16码
+     * @see Util#getCrc16Value(eastsun.jgvm.module.ram.ReadableMemory,int,int)
+     */
+    public char crc16(int addr, int len) {
+        byte[] mem = memory;
+        if (mem != null && len > 0 && len <= readLimit(addr) - addr) {
+            return Util.getCrc16Value(mem, addr, len);
+        }
+        return Util.getCrc16Value(this, addr, len);
+    }
+
     /**
      * 将所有内存模块清零
      */
@@ -222,6 +541,9 @@ public final class RamManager implements Accessable {
         for (int index = 0; index < ramCount; index++) {
             rams[index].clear();
         }
+        if (graphRam != null) {
+            graphChanged(graphStart, graphRam.size());
+        }
 
     }
 
@@ -364,5 +686,118 @@ public final class RamManager implements Accessable {
         if (startAddr > START_ADDR) {
             throw new IllegalStateException("靠,内存模块这么大!");
         }
+        if (graphRam != null) {
+            graphStart = graphRam.getStartAddr();
+            graphEnd = graphStart + graphRam.size();
+        } else {
+            graphStart = graphEnd = 0;
+        }
+        if (flat) {
+            relocateRams();
+        }
+    }
+
+    /**
+     * 平坦内存中从addr开始的count个字节是否都可读,即都在同一个内存模块或相邻的几个低地址内存模块中
+     */
+    private boolean isReadable(int addr, int count) {
+        return addr >= runStart ? addr + count <= runEnd : addr >= 0 && addr + count <= strEnd;
+    }
+
+    /**
+     * 平坦内存中从addr开始的count个字节是否都可写
+     */
+    private boolean isWritable(int addr, int count) {
+        return addr >= runStart ? addr + count <= runEnd : addr >= 0 && addr + count <= strStart;
+    }
+
+    /**
+     * 记录平坦内存中从addr开始的len个字节已被改写:运行时内存记录到脏页表中,显存对应的屏幕区域记录到ScreenModel中
+     */
+    private void changed(int addr, int len) {
+        if (addr >= runStart) {
+            runRam.markDirty(addr, len);
+        } else if (addr < graphEnd) {
+            graphChanged(addr, len);
+        }
+    }
+
+    /**
+     * 把显存中从addr开始的len个字节对应的屏幕区域记录到ScreenModel中,超出显存的部分被忽略
+     */
+    private void graphChanged(int addr, int len) {
+        int start = Math.max(addr, graphStart) - graphStart;
+        int end = Math.min(addr + len, graphEnd) - graphStart;
+        if (start >= end) {
+            return;
+        }
+        int bytesPerLine = screen.getWidth() / 8;
+        int top = start / bytesPerLine;
+        int bottom = (end - 1) / bytesPerLine;
+        if (top == bottom) {
+            screen.addDirtyRegion(start % bytesPerLine * 8, top, (end - start) * 8, 1);
+        } else {
+            screen.addDirtyRegion(0, top, screen.getWidth(), bottom - top + 1);
+        }
+    }
+
+    /**
+     * 平坦内存中addr所在可读区域的结束地址(不包括),addr不可读时返回addr
+     */
+    private int readLimit(int addr) {
+        if (addr >= runStart) {
+            return addr < runEnd ? runEnd : addr;
+        }
+        return addr >= 0 && addr < strEnd ? strEnd : addr;
+    }
+
+    /**
+     * 平坦内存中addr所在可写区域的结束地址(不包括),addr不可写时返回addr
+     */
+    private int writeLimit(int addr) {
+        if (addr >= runStart) {
+            return addr < runEnd ? runEnd : addr;
+        }
+        return addr >= 0 && addr < strStart ? strStart : addr;
+    }
+
+    /**
+     * 在mem的[addr,limit)中查找0
+     * @return 0所在的下标,没有找到时返回-1
+     */
+    private static int findZero(byte[] mem, int addr, int limit) {
+        while (addr < limit) {
+            if (mem[addr] == 0) {
+                return addr;
+            }
+            addr++;
+        }
+        return -1;
+    }
+
+    /**
+     * 把所有Ram迁移到一个新的平坦内存中,如果有Ram不支持迁移则不使用平坦内存
+     */
+    private void relocateRams() {
+        memory = null;
+        if (runRam == null || strRam == null) {
+            return;
+        }
+        for (int index = 0; index < ramCount; index++) {
+            if (!(rams[index] instanceof RelocatableRam)) {
+                return;
+            }
+        }
+        strStart = strRam.getStartAddr();
+        strEnd = strStart + strRam.size();
+        runStart = runRam.getStartAddr();
+        runEnd = runStart + runRam.size();
+        byte[] mem = new byte[runEnd];
+        for (int index = 0; index < ramCount; index++) {
+            ((RelocatableRam) rams[index]).relocate(mem, rams[index].getStartAddr());
+        }
+        strRam.relocate(mem, strStart);
+        runRam.relocate(mem, runStart);
+        memory = mem;
     }
 }
@@ -0,0 +1,23 @@
+package eastsun.jgvm.module;
+
+/**
+ * 使用系统时间的时钟,sleep会真正挂起当前线程
+ */
+public final class RealClock implements Clock {
+
+    /**
+     * 唯一的实例
+     */
+    public static final RealClock INSTANCE = new RealClock();
+
+    private RealClock() {
+    }
+
+    public long currentTimeMillis(long stepCount) {
+        return System.currentTimeMillis();
+    }
+
+    public void sleep(long millis, long stepCount) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -5,7 +5,8 @@ import eastsun.jgvm.module.ram.WritableMemory;
 
 /**
  * 绘图接口,通过该接口向屏幕或缓冲区绘制图像<p>
- * 注意:除了refresh方法会激发fireScreenChanged方法外,其他方法均不会自动激发fireScreenChanged
+ * 注意:除了refresh方法会激发fireScreenChanged方法外,其他方法均不会自动激发fireScreenChanged<p>
+ * 但在RENDER_GRAPH_TYPE模式下绘制时,被修改的区域会被记录下来,在下次fireScreenChanged时通知监听器
  * @author Eastsun
  * @version 1.0 2008/1/21
  */
@@ -0,0 +1,351 @@
+package eastsun.jgvm.module;
+
+import eastsun.jgvm.module.ram.RuntimeRam;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * 倒带缓冲区,保存GVM最近若干帧的状态,可以退回到其中任意一帧<p>
+ * 通过JGVM.setRewindBuffer安装后,GVM在加载程序时以及执行refresh后记录一帧.
+ * 与上一帧相隔不到frameSteps条指令的refresh不记录,因此不停调用refresh的程序也不会很快用完缓冲区,
+ * 每秒记录的帧数与占用的内存都有上限.
+ * 缓冲区只保存最新一帧的完整状态(关键帧),以及每相邻两帧之间的差:较新一帧异或较早一帧,再把连续的0压缩掉.
+ * 退回时从关键帧开始依次异或这些差,因此退回n帧只需解码n个差.<p>
+ * 运行时内存只比较自上一帧以来脏页表中记录的页,其余较小的部分(字符堆,栈,文本,显存,文件等)每帧完整比较.<p>
+ * 所有的差保存在一个固定大小的环形缓冲区中,空间不足或帧数超过上限时丢弃最早的帧,因此占用的内存不会超过构造时给定的大小.<p>
+ * 注意:不是线程安全的,应只在GVM执行线程中使用,或者在GVM没有运行时使用
+ */
+public final class RewindBuffer {
+
+    /**
+     * 差中两段不同的数据之间至少有这么多相同的字节才分开记录
+     */
+    private static final int MIN_GAP = 4;
+    private final byte[] ring;
+    //每一帧的差在ring中的长度,下标同样是环形的
+    private final int[] lengths;
+    //最早一帧的差在ring中的开始位置,所有差的总长度,最早一帧在lengths中的下标,保存的差的个数
+    private int ringStart, ringUsed, first, count;
+    private final int frameSteps;
+    //最新一帧的指令数
+    private long lastSteps;
+    private DefaultGVM gvm;
+    private RuntimeRam runtimeRam;
+    //关键帧:除运行时内存数据以外的状态,head中headLength之后的字节总为0
+    private byte[] head = new byte[0];
+    private int headLength = -1;
+    //关键帧的运行时内存数据
+    private byte[] ram;
+    private byte[] page = new byte[RuntimeRam.PAGE_SIZE];
+    //正在编码的差
+    private byte[] delta = new byte[0x1000];
+    private int deltaLength;
+    //encode已经编码到的位置
+    private int encoded;
+    //decode读取ring的位置
+    private int readPos;
+
+    /**
+     * 创建一个RewindBuffer
+     * @param capacity 保存所有差的环形缓冲区的字节数
+     * @param maxFrames 最多保存的帧数
+     * @param frameSteps 相邻两帧之间至少间隔的指令数,为0时每次refresh都记录
+     * @throws IllegalArgumentException capacity或maxFrames不是正数,或者frameSteps为负数
+     */
+    public RewindBuffer(int capacity, int maxFrames, int frameSteps) {
+        if (capacity <= 0 || maxFrames <= 0 || frameSteps < 0) {
+            throw new IllegalArgumentException("capacity and maxFrames must be positive, frameSteps can't be negative!");
+        }
+        ring = new byte[capacity];
+        lengths = new int[maxFrames];
+        this.frameSteps = frameSteps;
+    }
+
+    /**
+     * 得到环形缓冲区的字节数
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * 得到最多保存的帧数
+     */
+    public int getMaxFrames() {
+        return lengths.length;
+    }
+
+    /**
+     * 得到相邻两帧之间至少间隔的指令数
+     */
+    public int getFrameSteps() {
+        return frameSteps;
+    }
+
+    /**
+     * 得到当前最多可以退回的帧数
+     */
+    public int getFrameCount() {
+        return count;
+    }
+
+    /**
+     * 得到环形缓冲区中已使用的字节数
+     */
+    public int getUsedBytes() {
+        return ringUsed;
+    }
+
+    /**
+     * 丢弃保存的所有帧,GVM下次记录的帧成为新的关键帧
+     */
+    public void clear() {
+        ringStart = ringUsed = first = count = 0;
+        Arrays.fill(head, (byte) 0);
+        headLength = -1;
+    }
+
+    /**
+     * 退回frames帧:恢复最新一帧之前第frames帧的状态,并丢弃之后的帧.
+     * 可以退回的帧数不足时退回到最早的一帧;frames为0时恢复到最新一帧<p>
+     * 恢复后会通知ScreenModel的监听器整个屏幕已改变
+     * @param frames 退回的帧数
+     * @return 实际退回的帧数,没有可以恢复的帧时返回-1
+     * @throws IllegalArgumentException frames为负数
+     */
+    public int stepBack(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("frames: " + frames);
+        }
+        if (gvm == null || headLength < 0) {
+            return -1;
+        }
+        frames = Math.min(frames, count);
+        for (int n = 0; n < frames; n++) {
+            int index = (first + count - 1) % lengths.length;
+            ringUsed -= lengths[index];
+            count--;
+            readPos = (ringStart + ringUsed) % ring.length;
+            decode();
+        }
+        byte[] state = Arrays.copyOf(head, headLength + ram.length);
+        System.arraycopy(ram, 0, state, headLength, ram.length);
+        gvm.loadState(state);
+        //恢复后运行时内存与关键帧相同
+        runtimeRam.clearDirty();
+        lastSteps = gvm.getStepCount();
+        return frames;
+    }
+
+    /**
+     * 由GVM在安装时调用
+     */
+    void attach(DefaultGVM gvm) {
+        this.gvm = gvm;
+        clear();
+    }
+
+    /**
+     * GVM执行到第steps条指令时执行了refresh,是否应该记录一帧
+     */
+    boolean isFrameDue(long steps) {
+        return headLength < 0 || steps - lastSteps >= frameSteps;
+    }
+
+    /**
+     * 由GVM在加载程序后以及refresh后调用,记录一帧
+     * @param steps 这一帧的指令数
+     * @param state 除运行时内存数据以外的状态,位于[0,position())
+     * @param runtimeRam 运行时内存,它的脏页表会被清空
+     */
+    void record(long steps, ByteBuffer state, RuntimeRam runtimeRam) {
+        lastSteps = steps;
+        int length = state.position();
+        byte[] data = state.array();
+        if (headLength < 0 || this.runtimeRam != runtimeRam) {
+            //新的关键帧
+            this.runtimeRam = runtimeRam;
+            ram = new byte[runtimeRam.size()];
+            runtimeRam.getBytes(runtimeRam.getStartAddr(), ram, 0, ram.length);
+            runtimeRam.clearDirty();
+            setHead(data, length);
+            return;
+        }
+        deltaLength = 0;
+        writeVarInt(headLength);
+        encoded = 0;
+        //head中headLength之后都是0,较新一帧较长时多出的部分与0比较
+        ensureHead(length);
+        encode(head, 0, data, 0, length);
+        if (headLength > length) {
+            //较早一帧较长,多出的部分与0异或就是它本身
+            writeRun(length, headLength);
+            System.arraycopy(head, length, delta, deltaLength, headLength - length);
+            deltaLength += headLength - length;
+        }
+        endSection();
+
+        encoded = 0;
+        int start = runtimeRam.getStartAddr();
+        for (int p = runtimeRam.nextDirtyPage(0); p >= 0; p = runtimeRam.nextDirtyPage(p + 1)) {
+            int offset = p * RuntimeRam.PAGE_SIZE;
+            int len = Math.min(RuntimeRam.PAGE_SIZE, ram.length - offset);
+            runtimeRam.getBytes(start + offset, page, 0, len);
+            encode(ram, offset, page, 0, len);
+            System.arraycopy(page, 0, ram, offset, len);
+        }
+        runtimeRam.clearDirty();
+        endSection();
+
+        setHead(data, length);
+        store();
+    }
+
+    private void ensureHead(int length) {
+        if (head.length < length) {
+            head = Arrays.copyOf(head, Math.max(length, head.length * 2));
+        }
+    }
+
+    private void setHead(byte[] data, int length) {
+        ensureHead(length);
+        System.arraycopy(data, 0, head, 0, length);
+        if (headLength > length) {
+            Arrays.fill(head, length, headLength, (byte) 0);
+        }
+        headLength = length;
+    }
+
+    /**
+     * 把较早一帧old与较新一帧now中各len个字节的不同之处编码到delta中,记录的位置以oldOffset为准
+     */
+    private void encode(byte[] old, int oldOffset, byte[] now, int nowOffset, int len) {
+        int index = mismatch(old, oldOffset, now, nowOffset, 0, len);
+        while (index < len) {
+            int begin = index, last = index;
+            while (++index < len && index - last <= MIN_GAP) {
+                if (old[oldOffset + index] != now[nowOffset + index]) {
+                    last = index;
+                }
+            }
+            writeRun(oldOffset + begin, oldOffset + last + 1);
+            for (int i = begin; i <= last; i++) {
+                delta[deltaLength++] = (byte) (old[oldOffset + i] ^ now[nowOffset + i]);
+            }
+            index = mismatch(old, oldOffset, now, nowOffset, last + 1, len);
+        }
+    }
+
+    /**
+     * 得到a与b在[from,to)中第一个不同字节的位置,都相同时返回to
+     */
+    private static int mismatch(byte[] a, int aOffset, byte[] b, int bOffset, int from, int to) {
+        int index = from;
+        while (index < to && a[aOffset + index] == b[bOffset + index]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * 写出一段不同数据的开头:与上一段之间跳过的字节数及这段的长度,并保证delta有足够空间放下这段数据
+     */
+    private void writeRun(int begin, int end) {
+        ensureDelta(end - begin + 10);
+        writeVarInt(begin - encoded);
+        writeVarInt(end - begin);
+        encoded = end;
+    }
+
+    private void endSection() {
+        ensureDelta(2);
+        delta[deltaLength++] = 0;
+        delta[deltaLength++] = 0;
+    }
+
+    private void ensureDelta(int extra) {
+        if (deltaLength + extra > delta.length) {
+            delta = Arrays.copyOf(delta, Math.max(deltaLength + extra, delta.length * 2));
+        }
+    }
+
+    private void writeVarInt(int value) {
+        ensureDelta(5);
+        while ((value & ~0x7f) != 0) {
+            delta[deltaLength++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        delta[deltaLength++] = (byte) value;
+    }
+
+    /**
+     * 把delta作为最新的一帧放入环形缓冲区,必要时丢弃最早的帧
+     */
+    private void store() {
+        if (deltaLength > ring.length) {
+            //一帧的差就超过了缓冲区大小,无法退回到之前的任何一帧
+            ringStart = ringUsed = first = count = 0;
+            return;
+        }
+        while (count == lengths.length || ringUsed + deltaLength > ring.length) {
+            ringStart = (ringStart + lengths[first]) % ring.length;
+            ringUsed -= lengths[first];
+            first = (first + 1) % lengths.length;
+            count--;
+        }
+        int pos = (ringStart + ringUsed) % ring.length;
+        int n = Math.min(deltaLength, ring.length - pos);
+        System.arraycopy(delta, 0, ring, pos, n);
+        System.arraycopy(delta, n, ring, 0, deltaLength - n);
+        lengths[(first + count) % lengths.length] = deltaLength;
+        ringUsed += deltaLength;
+        count++;
+    }
+
+    /**
+     * 从ring中readPos处解码一帧的差,把关键帧变为较早的一帧
+     */
+    private void decode() {
+        int length = readVarInt();
+        ensureHead(length);
+        decodeSection(head);
+        if (length < headLength) {
+            Arrays.fill(head, length, headLength, (byte) 0);
+        }
+        headLength = length;
+        decodeSection(ram);
+    }
+
+    private void decodeSection(byte[] data) {
+        int pos = 0;
+        for (;;) {
+            pos += readVarInt();
+            int len = readVarInt();
+            if (len == 0) {
+                return;
+            }
+            while (--len >= 0) {
+                data[pos++] ^= readByte();
+            }
+        }
+    }
+
+    private byte readByte() {
+        byte b = ring[readPos];
+        if (++readPos == ring.length) {
+            readPos = 0;
+        }
+        return b;
+    }
+
+    private int readVarInt() {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
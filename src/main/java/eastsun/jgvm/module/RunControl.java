@@ -0,0 +1,114 @@
+package eastsun.jgvm.module;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 控制一个GVM执行线程的运行,暂停,单步与停止<p>
+ * 执行线程在每批指令开始前调用acquire,得到本批允许执行的指令数;其它线程通过pause,resume,step,stop改变状态.<p>
+ * 状态保存在一个原子变量中,执行线程只在批与批之间读取一次,运行时不需要获取任何锁.暂停时执行线程通过LockSupport.park挂起
+ */
+public final class RunControl {
+
+    /**
+     * 正常运行
+     */
+    public static final int RUNNING = 0;
+    /**
+     * 暂停
+     */
+    public static final int PAUSED = 1;
+    /**
+     * 暂停状态下请求执行一条指令,执行后回到PAUSED
+     */
+    public static final int STEPPING = 2;
+    /**
+     * 已停止,不能再恢复运行
+     */
+    public static final int STOPPED = 3;
+    private final AtomicInteger state;
+    private volatile Thread runner;
+
+    /**
+     * 创建一个RunControl
+     * @param paused 初始是否为暂停状态
+     */
+    public RunControl(boolean paused) {
+        state = new AtomicInteger(paused ? PAUSED : RUNNING);
+    }
+
+    /**
+     * 得到当前状态
+     * @return RUNNING,PAUSED,STEPPING或STOPPED之一
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    /**
+     * 暂停运行,执行线程在当前这批指令结束后挂起
+     */
+    public void pause() {
+        state.compareAndSet(RUNNING, PAUSED);
+    }
+
+    /**
+     * 从暂停或单步状态恢复运行
+     */
+    public void resume() {
+        int s;
+        do {
+            s = state.get();
+            if (s == RUNNING || s == STOPPED) {
+                return;
+            }
+        } while (!state.compareAndSet(s, RUNNING));
+        LockSupport.unpark(runner);
+    }
+
+    /**
+     * 在暂停状态下执行一条指令,其它状态下无效
+     */
+    public void step() {
+        if (state.compareAndSet(PAUSED, STEPPING)) {
+            LockSupport.unpark(runner);
+        }
+    }
+
+    /**
+     * 停止运行,执行线程在当前这批指令结束后退出
+     */
+    public void stop() {
+        state.set(STOPPED);
+        LockSupport.unpark(runner);
+    }
+
+    /**
+     * 由执行线程在每批指令开始前调用,暂停时阻塞直到恢复,单步或停止
+     * @param count 运行状态下本批最多执行的指令数
+     * @return 本批允许执行的指令数:运行时为count,单步时为1,已停止时为0
+     * @throws InterruptedException 挂起期间线程被中断
+     */
+    public int acquire(int count) throws InterruptedException {
+        runner = Thread.currentThread();
+        for (;;) {
+            switch (state.get()) {
+                case RUNNING:
+                    return count;
+                case STEPPING:
+                    if (state.compareAndSet(STEPPING, PAUSED)) {
+                        return 1;
+                    }
+                    break;
+                case STOPPED:
+                    return 0;
+                default:
+                    LockSupport.park(this);
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    break;
+            }
+        }
+    }
+}
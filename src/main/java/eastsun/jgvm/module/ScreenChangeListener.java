@@ -0,0 +1,18 @@
+package eastsun.jgvm.module;
+
+/**
+ * 屏幕内容改变的监听器
+ * @see ScreenModel#addScreenChangeListener(ScreenChangeListener)
+ */
+public interface ScreenChangeListener {
+
+    /**
+     * 屏幕(显存)内容发生了改变,该方法在GVM的执行线程中调用,不应在其中做耗时的操作
+     * @param screen 发生改变的屏幕
+     * @param x 改变区域的左上角横坐标
+     * @param y 改变区域的左上角纵坐标
+     * @param width 改变区域的宽度
+     * @param height 改变区域的高度
+     */
+    public void screenChanged(ScreenModel screen, int x, int y, int width, int height);
+}
@@ -1,6 +1,9 @@
 package eastsun.jgvm.module;
 
 import eastsun.jgvm.module.ram.RelativeRam;
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * 屏幕模块,该模块保留对显存及缓冲区访问的可选实现
@@ -26,9 +29,176 @@ public abstract class ScreenModel {
         return new DefaultScreenModel();
     }
 
+    private final CopyOnWriteArrayList<ScreenChangeListener> listeners = new CopyOnWriteArrayList<ScreenChangeListener>();
+    //自上次fireScreenChanged以来显存被修改的区域,right与bottom不包括在内
+    private int dirtyLeft = WIDTH,  dirtyTop = HEIGHT,  dirtyRight,  dirtyBottom;
+    //第一次调用getFrameExchange时才创建,没有显示线程读取帧的ScreenModel不分配帧缓冲
+    private volatile FrameExchange frames;
+    //fireScreenChanged最近一次发布帧的FrameExchange,只在GVM执行线程中使用
+    private FrameExchange published;
+
     protected ScreenModel() {
     }
 
+    /**
+     * 得到发布完整屏幕帧的FrameExchange,每帧为显存内容的一份拷贝<p>
+     * 显示线程应从这里读取屏幕内容,而不是直接读取正在被GVM修改的显存.
+     * FrameExchange在第一次调用该方法时创建,之后的fireScreenChanged即使屏幕没有改变也会先发布一次当前屏幕.
+     * 只在GVM执行线程中或GVM没有运行时读取屏幕的使用者应调用copyFrame,不必创建FrameExchange
+     */
+    public final FrameExchange getFrameExchange() {
+        FrameExchange exchange = frames;
+        if (exchange == null) {
+            synchronized (listeners) {
+                exchange = frames;
+                if (exchange == null) {
+                    frames = exchange = new FrameExchange(WIDTH * HEIGHT / 8);
+                }
+            }
+        }
+        return exchange;
+    }
+
+    /**
+     * 得到该ScreenModel独占的字节数<p>
+     * 默认实现只统计已创建的FrameExchange中的帧,子类应加上显存等自己保存的数据;迁移到平坦内存的Ram不计在内
+     * @see RamManager#getRetainedBytes()
+     */
+    public int getRetainedBytes() {
+        FrameExchange exchange = frames;
+        return exchange == null ? 0 : exchange.getRetainedBytes();
+    }
+
+    /**
+     * 把当前显存内容复制到frame中从offset开始的WIDTH*HEIGHT/8个字节,每行WIDTH/8字节,高位在左<p>
+     * 直接读取显存,只应在GVM执行线程中或者GVM没有运行时调用,其它线程应通过getFrameExchange读取.
+     * 默认实现通过getGraphRam()逐字节读取,子类可以提供更快的实现
+     * @param frame 目标数组
+     * @param offset 在frame中的开始位置
+     */
+    public void copyFrame(byte[] frame, int offset) {
+        RelativeRam ram = getGraphRam();
+        int start = ram.getStartAddr();
+        for (int index = 0; index < WIDTH * HEIGHT / 8; index++) {
+            frame[offset + index] = ram.getByte(start + index);
+        }
+    }
+
+    /**
+     * 添加屏幕改变监听器
+     * @param l 监听器
+     */
+    public void addScreenChangeListener(ScreenChangeListener l) {
+        listeners.addIfAbsent(l);
+    }
+
+    /**
+     * 移除屏幕改变监听器
+     * @param l 监听器
+     */
+    public void removeScreenChangeListener(ScreenChangeListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * 把一块区域标记为已修改,超出屏幕的部分被忽略
+     */
+    protected final void addDirtyRegion(int x, int y, int width, int height) {
+        int right = x + width, bottom = y + height;
+        if (x < 0) {
+            x = 0;
+        }
+        if (y < 0) {
+            y = 0;
+        }
+        if (right > WIDTH) {
+            right = WIDTH;
+        }
+        if (bottom > HEIGHT) {
+            bottom = HEIGHT;
+        }
+        if (x >= right || y >= bottom) {
+            return;
+        }
+        if (x < dirtyLeft) {
+            dirtyLeft = x;
+        }
+        if (y < dirtyTop) {
+            dirtyTop = y;
+        }
+        if (right > dirtyRight) {
+            dirtyRight = right;
+        }
+        if (bottom > dirtyBottom) {
+            dirtyBottom = bottom;
+        }
+    }
+
+    /**
+     * 如果自上次调用以来显存有被修改的区域,则先把当前显存作为完整的一帧发布到FrameExchange(已经创建时),
+     * 再把包含这些区域的矩形通知给所有监听器并清除记录<p>
+     * Renderable的refresh方法会自动调用该方法,JGVM在runSteps结束时以及执行可能阻塞的系统函数前也会调用该方法
+     */
+    public void fireScreenChanged() {
+        FrameExchange exchange = frames;
+        boolean fresh = exchange != published;
+        if (dirtyLeft >= dirtyRight && !fresh) {
+            return;
+        }
+        if (exchange != null) {
+            copyFrame(exchange.getBackFrame(), 0);
+            exchange.publish();
+            published = exchange;
+        }
+        if (dirtyLeft >= dirtyRight) {
+            return;
+        }
+        int x = dirtyLeft, y = dirtyTop;
+        int width = dirtyRight - x, height = dirtyBottom - y;
+        dirtyLeft = WIDTH;
+        dirtyTop = HEIGHT;
+        dirtyRight = dirtyBottom = 0;
+        for (ScreenChangeListener l : listeners) {
+            l.screenChanged(this, x, y, width, height);
+        }
+    }
+
+    /**
+     * 把屏幕的状态写入out<p>
+     * 默认实现逐字节写入显存与屏幕缓冲区的内容,子类应写入其它需要保存的状态
+     */
+    public void saveState(ByteBuffer out) {
+        for (RelativeRam ram : new RelativeRam[]{getGraphRam(), getBufferRam()}) {
+            int start = ram.getStartAddr();
+            for (int index = 0; index < ram.size(); index++) {
+                out.put(ram.getByte(start + index));
+            }
+        }
+    }
+
+    /**
+     * 从in恢复saveState写入的状态,并把整个屏幕标记为已修改
+     */
+    public void loadState(ByteBuffer in) {
+        for (RelativeRam ram : new RelativeRam[]{getGraphRam(), getBufferRam()}) {
+            int start = ram.getStartAddr();
+            for (int index = 0; index < ram.size(); index++) {
+                ram.setByte(start + index, in.get());
+            }
+        }
+        addDirtyRegion(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变屏幕<p>
+     * 默认实现跳过显存与屏幕缓冲区的内容,重写saveState的子类也应重写该方法
+     * @throws IllegalArgumentException 数据不正确
+     * @throws java.nio.BufferUnderflowException 数据不完整
+     */
+    public void checkState(ByteBuffer in) {
+        IOUtil.skip(in, getGraphRam().size() + getBufferRam().size());
+    }
+
     /**
      * 得到屏幕的宽度
      * @return width
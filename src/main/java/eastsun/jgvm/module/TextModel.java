@@ -3,6 +3,9 @@ package eastsun.jgvm.module;
 import eastsun.jgvm.module.ram.ReadableMemory;
 import eastsun.jgvm.module.ram.Ram;
 import eastsun.jgvm.module.ram.RelativeRam;
+import eastsun.jgvm.module.ram.RelocatableRam;
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
 
 /**
  * 文本输出模式的操作接口 <p>
@@ -20,9 +23,11 @@ public final class TextModel {
     private int maxRow,  maxCol;
     private int curRow,  curCol;
     private boolean isBigMode;
+    //文本缓冲区数据保存在buffer中从base开始的位置,安装到平坦内存模式的RamManager后buffer会被替换
     private byte[] buffer;
+    private int base;
     private ReadableMemory getter;
-    private RelativeRam ram;
+    private ByteArrayRam ram;
 
     public TextModel() {
         //..
@@ -40,8 +45,9 @@ public final class TextModel {
         if (this.screen != screen) {
             this.screen = screen;
             this.buffer = new byte[(screen.getWidth() / 6) * (screen.getHeight() / 13)];
-            this.getter = new ByteArrayGetter(buffer);
-            this.ram = new ByteArrayRam(buffer, screen);
+            this.base = 0;
+            this.getter = new ByteArrayGetter();
+            this.ram = new ByteArrayRam(buffer.length, screen);
             this.render = screen.getRender();
         }
         else {
@@ -79,6 +85,13 @@ public final class TextModel {
         return ram;
     }
 
+    /**
+     * 得到文本缓冲区独占的字节数,迁移到平坦内存后为0
+     */
+    public int getRetainedBytes() {
+        return ram == null ? 0 : ram.getRetainedBytes();
+    }
+
     /**
      * 往文本缓冲区添加一个gb2312编码的字符,不刷新到屏幕
      * @param c
@@ -92,16 +105,16 @@ public final class TextModel {
             //如果是一个gb2312字符
             if (curCol + 1 >= maxCol) {
                 //空位不足,转下一行
-                buffer[maxCol * curRow + curCol] = (byte) 0x20;
+                buffer[base + maxCol * curRow + curCol] = (byte) 0x20;
                 curCol = 0;
                 curRow++;
                 if (curRow >= maxRow) {
                     textMoveUp();
                 }
             }
-            buffer[maxCol * curRow + curCol] = (byte) c;
+            buffer[base + maxCol * curRow + curCol] = (byte) c;
             curCol++;
-            buffer[maxCol * curRow + curCol] = (byte) (c >>> 8);
+            buffer[base + maxCol * curRow + curCol] = (byte) (c >>> 8);
             curCol++;
             if (curCol >= maxCol) {
                 curCol = 0;
@@ -121,7 +134,7 @@ public final class TextModel {
             case 0x0d:
                 break;
             default:
-                buffer[maxCol * curRow + curCol] = (byte) c;
+                buffer[base + maxCol * curRow + curCol] = (byte) c;
                 curCol++;
                 if (curCol >= maxCol) {
                     curCol = 0;
@@ -190,6 +203,13 @@ public final class TextModel {
 
         curRow = curCol = 0;
         isBigMode = (mode == 0);
+        updateSize();
+    }
+
+    /**
+     * 根据isBigMode设置每行字符数与行数
+     */
+    private void updateSize() {
         if (isBigMode) {
             maxCol = screen.getWidth() / 8;
             maxRow = screen.getHeight() / 16;
@@ -200,6 +220,34 @@ public final class TextModel {
         }
     }
 
+    /**
+     * 把字体模式,输出指针与文本缓冲区内容写入out
+     */
+    public void saveState(ByteBuffer out) {
+        out.put((byte) (isBigMode ? 1 : 0));
+        out.putInt(curRow);
+        out.putInt(curCol);
+        out.put(buffer, base, ram.size());
+    }
+
+    /**
+     * 从in恢复saveState写入的状态
+     */
+    public void loadState(ByteBuffer in) {
+        isBigMode = in.get() != 0;
+        updateSize();
+        curRow = in.getInt();
+        curCol = in.getInt();
+        in.get(buffer, base, ram.size());
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变文本缓冲区
+     */
+    public void checkState(ByteBuffer in) {
+        IOUtil.skip(in, 9 + ram.size());
+    }
+
     /**
      * 将文本缓冲区内容整体上移一行,curRow--
      */
@@ -207,43 +255,38 @@ public final class TextModel {
         if (curRow <= 0) {
             return;
         }
-        int index = 0;
-        while (index < maxCol * maxRow - maxCol) {
+        int index = base;
+        while (index < base + maxCol * maxRow - maxCol) {
             buffer[index] = buffer[index + maxCol];
             index++;
         }
-        while (index < maxCol * maxRow) {
+        while (index < base + maxCol * maxRow) {
             buffer[index++] = (byte) 0;
         }
         curRow--;
     }
 
-    private static final class ByteArrayGetter implements ReadableMemory {
-
-        private byte[] buffer;
-
-        public ByteArrayGetter(byte[] buffer) {
-            this.buffer = buffer;
-        }
+    private final class ByteArrayGetter implements ReadableMemory {
 
         public byte getByte(int addr) {
-            return buffer[addr];
+            return buffer[base + addr];
         }
     }
 
     /**
-     * 使用一个外部byte数组作为数据存储的Ram,注意:外部修改此byte数组会影响到此Ram
+     * 使用文本缓冲区数组作为数据存储的Ram,注意:外部修改此byte数组会影响到此Ram
      * @author Eastsun
      * @version 2008-1-3
      */
-    private static final class ByteArrayRam implements RelativeRam {
+    private final class ByteArrayRam implements RelativeRam, RelocatableRam {
 
-        private byte[] buffer;
+        private final int size;
         private ScreenModel screen;
         private int startAddr;
+        private boolean relocated;
 
-        public ByteArrayRam(byte[] buffer, ScreenModel screen) {
-            this.buffer = buffer;
+        public ByteArrayRam(int size, ScreenModel screen) {
+            this.size = size;
             this.screen = screen;
         }
 
@@ -252,7 +295,7 @@ public final class TextModel {
         }
 
         public int size() {
-            return buffer.length;
+            return size;
         }
 
         public int getRamType() {
@@ -268,17 +311,28 @@ public final class TextModel {
         }
 
         public byte getByte(int addr) {
-            return buffer[addr - startAddr];
+            return buffer[addr - startAddr + base];
         }
 
         public void setByte(int addr, byte data) {
-            buffer[addr - startAddr] = data;
+            buffer[addr - startAddr + base] = data;
         }
 
         public void clear() {
-            for (int index = buffer.length - 1; index >= 0; index--) {
+            for (int index = base + size - 1; index >= base; index--) {
                 buffer[index] = 0;
             }
         }
+
+        public void relocate(byte[] data, int offset) {
+            System.arraycopy(buffer, base, data, offset, size);
+            buffer = data;
+            base = offset;
+            relocated = true;
+        }
+
+        public int getRetainedBytes() {
+            return relocated ? 0 : size;
+        }
     }
 }
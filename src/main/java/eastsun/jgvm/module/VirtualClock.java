@@ -0,0 +1,50 @@
+package eastsun.jgvm.module;
+
+/**
+ * 只由GVM执行的指令数与Delay的时间推进的时钟,sleep不会挂起线程<p>
+ * 当前时间为:起始时间 + 已执行的指令数 / 每毫秒的指令数 + 所有sleep的时间之和.<p>
+ * 使用这个时钟,程序可以以CPU的最快速度运行,并且在相同的输入下每次运行的结果都相同
+ */
+public final class VirtualClock implements Clock {
+
+    /**
+     * 默认的起始时间,2008年1月1日0时(UTC)
+     */
+    public static final long DEFAULT_START_TIME = 1199145600000L;
+    /**
+     * 默认每毫秒执行的指令数
+     */
+    public static final int DEFAULT_STEPS_PER_MILLIS = 1000;
+    private final long startTime;
+    private final int stepsPerMillis;
+    //所有sleep的时间之和
+    private long sleptMillis;
+
+    /**
+     * 使用默认的起始时间与速度创建一个时钟
+     */
+    public VirtualClock() {
+        this(DEFAULT_START_TIME, DEFAULT_STEPS_PER_MILLIS);
+    }
+
+    /**
+     * 创建一个时钟
+     * @param startTime 起始时间,与System.currentTimeMillis()含义相同
+     * @param stepsPerMillis 每毫秒执行的指令数,必须大于0
+     */
+    public VirtualClock(long startTime, int stepsPerMillis) {
+        if (stepsPerMillis <= 0) {
+            throw new IllegalArgumentException("stepsPerMillis must be positive!");
+        }
+        this.startTime = startTime;
+        this.stepsPerMillis = stepsPerMillis;
+    }
+
+    public long currentTimeMillis(long stepCount) {
+        return startTime + stepCount / stepsPerMillis + sleptMillis;
+    }
+
+    public void sleep(long millis, long stepCount) {
+        sleptMillis += millis;
+    }
+}
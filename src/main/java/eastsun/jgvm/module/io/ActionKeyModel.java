@@ -0,0 +1,178 @@
+package eastsun.jgvm.module.io;
+
+import eastsun.jgvm.module.KeyModel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 由程序直接注入按键的KeyModel,用于自动玩家等以"动作"驱动GVM的场合<p>
+ * 每次press给出一个动作:按下一个键并保持,直到下一次press;press(0)表示松开所有键.
+ * 与DefaultKeyModel一样,按下的键可以被inkey或getchar读取一次,checkKey在键保持期间总是返回该键.<p>
+ * getchar与getRawKey在没有可读取的键时调用等待监听器,然后阻塞直到下一次press或cancel;pollchar与pollRawKey不阻塞也不调用监听器.
+ * 等待使用ReentrantLock与Condition.<p>
+ * 按键值直接使用GVM的键值,见ScriptedKeyModel中的常量.press与cancel可以在任意线程中调用,其余方法应只在GVM执行线程中调用
+ * @see ScriptedKeyModel
+ */
+public final class ActionKeyModel implements KeyModel {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pressed = lock.newCondition();
+    //当前保持按下的键,0表示没有
+    private char key;
+    //key是否还可以被inkey或getchar读取
+    private boolean hasKey;
+    private boolean waiting;
+    private boolean cancelled;
+    private Runnable waitListener;
+
+    /**
+     * 设置等待监听器,getchar与getRawKey开始等待按键时在GVM执行线程中调用它,可以为null
+     */
+    public void setWaitListener(Runnable listener) {
+        waitListener = listener;
+    }
+
+    /**
+     * 按下key并保持到下一次press,之前保持的键被松开;正在等待按键的getchar会得到这个键
+     * @param key GVM键值,为0时只松开之前的键
+     */
+    public void press(char key) {
+        lock.lock();
+        try {
+            this.key = key;
+            hasKey = key != 0;
+            if (hasKey) {
+                pressed.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 使正在等待以及之后调用的getchar与getRawKey抛出InterruptedException,用于结束等待按键的GVM
+     */
+    public void cancel() {
+        lock.lock();
+        try {
+            cancelled = true;
+            pressed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * GVM是否正在getchar或getRawKey中等待按键,或者最近一次pollchar与pollRawKey没有读到键
+     */
+    public boolean isWaiting() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseKey(char key) {
+        lock.lock();
+        try {
+            if (this.key != 0 && ((key & 0x80) != 0 || key == this.key)) {
+                hasKey = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public char checkKey(char key) {
+        lock.lock();
+        try {
+            if ((key & 0x80) != 0) {
+                return this.key;
+            }
+            return key == this.key ? key : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public char getchar() throws InterruptedException {
+        return (char) getRawKey();
+    }
+
+    public char inkey() {
+        lock.lock();
+        try {
+            if (hasKey) {
+                hasKey = false;
+                return key;
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRawKey() throws InterruptedException {
+        int result = take();
+        if (result < 0) {
+            Runnable listener = waitListener;
+            if (listener != null) {
+                listener.run();
+            }
+            lock.lock();
+            try {
+                while (!hasKey && !cancelled) {
+                    pressed.await();
+                }
+                result = take();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    public int pollchar() {
+        return pollRawKey();
+    }
+
+    /**
+     * 读取按下的键;没有可读取的键时标记为正在等待并返回-1,直到读到下一个键
+     */
+    public int pollRawKey() {
+        lock.lock();
+        try {
+            if (hasKey) {
+                hasKey = false;
+                waiting = false;
+                return key;
+            }
+            waiting = true;
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 与pollRawKey相同,但已经调用过cancel时抛出InterruptedException
+     */
+    private int take() throws InterruptedException {
+        lock.lock();
+        try {
+            if (cancelled) {
+                waiting = false;
+                throw new InterruptedException();
+            }
+            return pollRawKey();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SysInfo getSysInfo() {
+        return ScriptedKeyModel.SYS_INFO;
+    }
+}
@@ -6,6 +6,8 @@ import eastsun.jgvm.module.ram.WritableMemory;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * 文件操作模型的默认实现,该实现通过FileSystem接口得到本地文件的输入与输出流,并在内存中模拟文件的各种操作
@@ -39,12 +41,26 @@ public class DefaultFileModel implements FileModel {
     private String[] fileNames;
     //是否可用,也就是是否空闲
     private boolean[] usable;
+    //打开的文件,空闲时为null
     private VirtualFile[] files;
     //用于生成String的byte数组
     private byte[] strBuf;
+    //是否改动实际的文件系统,fork得到的FileModel总是为false
+    private final boolean writeBack;
 
     public DefaultFileModel(FileSystem fileSys) {
+        this(fileSys, true);
+    }
+
+    /**
+     * 构造函数
+     * @param fileSys 文件系统
+     * @param writeBack 是否改动实际的文件系统.为false时可以读取文件,但关闭文件时不写回,makeDir与deleteFile总是返回false,
+     * 适合同时运行许多GVM而不希望它们改动或争用同一个目录的场合
+     */
+    public DefaultFileModel(FileSystem fileSys, boolean writeBack) {
         this.fileSys = fileSys;
+        this.writeBack = writeBack;
         workDir = "/";
         workDirInf = fileSys.getFileInf(workDir);
         canRead = new boolean[MAX_FILE_COUNT];
@@ -55,12 +71,35 @@ public class DefaultFileModel implements FileModel {
 
         for (int index = 0; index < MAX_FILE_COUNT; index++) {
             usable[index] = true;
-            //初始容量:64K
-            files[index] = new VirtualFile(0x10000);
         }
         strBuf = new byte[400];
     }
 
+    private DefaultFileModel(DefaultFileModel src) {
+        fileSys = src.fileSys;
+        workDir = src.workDir;
+        workDirInf = src.workDirInf;
+        canRead = src.canRead.clone();
+        canWrite = src.canWrite.clone();
+        usable = src.usable.clone();
+        fileNames = src.fileNames.clone();
+        files = new VirtualFile[MAX_FILE_COUNT];
+        for (int index = 0; index < MAX_FILE_COUNT; index++) {
+            if (src.files[index] != null) {
+                files[index] = src.files[index].share();
+            }
+        }
+        strBuf = new byte[400];
+        writeBack = false;
+    }
+
+    /**
+     * 得到的FileModel不改动实际的文件系统,与writeBack为false时相同
+     */
+    public FileModel fork() {
+        return new DefaultFileModel(this);
+    }
+
     public boolean changeDir(ReadableMemory source, int addr) {
         int pre = -2;
         int length = 0;
@@ -116,6 +155,9 @@ public class DefaultFileModel implements FileModel {
     }
 
     public boolean makeDir(ReadableMemory source, int addr) {
+        if (!writeBack) {
+            return false;
+        }
         String dir = getFileName(source, addr);
         boolean result = fileSys.makeDir(dir);
         if (result && isParent(workDir, dir)) {
@@ -211,11 +253,8 @@ public class DefaultFileModel implements FileModel {
         else {
             return 0;
         }
-        VirtualFile file = files[num];
-        if (clear) {
-            file.refresh();
-        }
-        else {
+        VirtualFile file = new VirtualFile();
+        if (!clear) {
             int length = 0;
             try {
                 InputStream in = fileSys.getInputStream(name);
@@ -223,10 +262,12 @@ public class DefaultFileModel implements FileModel {
                 length = file.limit();
                 in.close();
             } catch (Exception ex) {
+                file.release();
                 return 0;
             }
             file.position(pointer ? 0 : length);
         }
+        files[num] = file;
         fileNames[num] = name;
         usable[num] = false;
         return num | 0x80;
@@ -243,7 +284,7 @@ public class DefaultFileModel implements FileModel {
         if (usable[fp]) {
             return;
         }
-        if (canWrite[fp]) {
+        if (canWrite[fp] && writeBack) {
             try {
                 OutputStream out = fileSys.getOutputStream(fileNames[fp]);
                 files[fp].writeToStream(out);
@@ -256,6 +297,8 @@ public class DefaultFileModel implements FileModel {
             //do nothing
             }
         }
+        files[fp].release();
+        files[fp] = null;
         usable[fp] = true;
     }
 
@@ -331,6 +374,9 @@ public class DefaultFileModel implements FileModel {
     }
 
     public boolean deleteFile(ReadableMemory source, int addr) {
+        if (!writeBack) {
+            return false;
+        }
         String file = getFileName(source, addr);
         boolean result = fileSys.deleteFile(file);
         //如果当前目录信息被修改,重置之
@@ -405,6 +451,83 @@ public class DefaultFileModel implements FileModel {
         }
     }
 
+    public void saveState(ByteBuffer out) {
+        writeString(out, workDir);
+        for (int index = 0; index < MAX_FILE_COUNT; index++) {
+            out.put((byte) (usable[index] ? 0 : 1));
+            if (usable[index]) {
+                continue;
+            }
+            out.put((byte) ((canRead[index] ? 1 : 0) | (canWrite[index] ? 2 : 0)));
+            writeString(out, fileNames[index]);
+            files[index].saveState(out);
+        }
+    }
+
+    public int getRetainedBytes() {
+        int bytes = strBuf.length;
+        for (VirtualFile file : files) {
+            if (file != null) {
+                bytes += file.getRetainedBytes();
+            }
+        }
+        return bytes;
+    }
+
+    public void loadState(ByteBuffer in) {
+        String dir = readString(in);
+        if (!dir.equals(workDir)) {
+            workDir = dir;
+            workDirInf = fileSys.getFileInf(workDir);
+        }
+        for (int index = 0; index < MAX_FILE_COUNT; index++) {
+            usable[index] = in.get() == 0;
+            if (usable[index]) {
+                if (files[index] != null) {
+                    files[index].release();
+                    files[index] = null;
+                }
+                continue;
+            }
+            int flags = in.get();
+            canRead[index] = (flags & 1) != 0;
+            canWrite[index] = (flags & 2) != 0;
+            fileNames[index] = readString(in);
+            if (files[index] == null) {
+                files[index] = new VirtualFile();
+            }
+            files[index].loadState(in);
+        }
+    }
+
+    public void checkState(ByteBuffer in) {
+        readString(in);
+        for (int index = 0; index < MAX_FILE_COUNT; index++) {
+            if (in.get() == 0) {
+                continue;
+            }
+            in.get();
+            readString(in);
+            VirtualFile.checkState(in);
+        }
+    }
+
+    private static void writeString(ByteBuffer out, String str) {
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        out.putInt(data.length);
+        out.put(data);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        byte[] data = new byte[length];
+        in.get(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
     /**
      * 判断dir是否是file的父目录
      */
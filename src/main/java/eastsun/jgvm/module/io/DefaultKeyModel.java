@@ -1,10 +1,13 @@
 package eastsun.jgvm.module.io;
 
 import eastsun.jgvm.module.KeyModel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * KeyModel的默认实现<p>
- * 该实现提供了两个回调方法:keyReleased与KeyPressed,当系统按键发生变化时应当确保调用这些方法
+ * 该实现提供了两个回调方法:keyReleased与KeyPressed,当系统按键发生变化时应当确保调用这些方法<p>
+ * 使用ReentrantLock与Condition而不是synchronized与wait同步,getchar等待按键时不会占住虚拟线程所在的平台线程
  * @author Eastsun
  * @version 2008-2-21
  */
@@ -16,6 +19,8 @@ public final class DefaultKeyModel implements KeyModel {
     private int keyCode;
     private KeyMap keyMap;
     private SysInfo keyInf;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pressed = lock.newCondition();
 
     public DefaultKeyModel(SysInfo keyInf) {
         this.keyInf = keyInf;
@@ -28,67 +33,87 @@ public final class DefaultKeyModel implements KeyModel {
         keyStatus = new boolean[keyValues.length];
     }
 
-    public synchronized void keyPressed(int rawKeyCode) {
-        hasKey = true;
-        keyCode = rawKeyCode;
-        for (int index = 0; index < keyValues.length; index++) {
-            if (rawKeyCode == keyValues[index]) {
-                keyStatus[index] = true;
-                break;
+    public void keyPressed(int rawKeyCode) {
+        lock.lock();
+        try {
+            hasKey = true;
+            keyCode = rawKeyCode;
+            for (int index = 0; index < keyValues.length; index++) {
+                if (rawKeyCode == keyValues[index]) {
+                    keyStatus[index] = true;
+                    break;
+                }
             }
+            pressed.signal();
+        } finally {
+            lock.unlock();
         }
-        notify();
     }
 
-    public synchronized void keyReleased(int rawKeyCode) {
-        if (keyCode == rawKeyCode) {
-            hasKey = false;
-        }
-        for (int index = 0; index < keyValues.length; index++) {
-            if (rawKeyCode == keyValues[index]) {
-                keyStatus[index] = false;
-                break;
+    public void keyReleased(int rawKeyCode) {
+        lock.lock();
+        try {
+            if (keyCode == rawKeyCode) {
+                hasKey = false;
+            }
+            for (int index = 0; index < keyValues.length; index++) {
+                if (rawKeyCode == keyValues[index]) {
+                    keyStatus[index] = false;
+                    break;
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized void releaseKey(char key) {
-        //System.out.printf("CheckKey :%2x%n", (int) key);
-        if ((key & 0x80) != 0) {
-            for (int index = 0; index < keyStatus.length; index++) {
-                if (keyStatus[index]) {
-                    hasKey = true;
-                    keyCode = keyValues[index];
-                    break;
+    public void releaseKey(char key) {
+        lock.lock();
+        try {
+            //System.out.printf("CheckKey :%2x%n", (int) key);
+            if ((key & 0x80) != 0) {
+                for (int index = 0; index < keyStatus.length; index++) {
+                    if (keyStatus[index]) {
+                        hasKey = true;
+                        keyCode = keyValues[index];
+                        break;
+                    }
                 }
-            }
-        } else {
-            for (int index = 0; index < keyStatus.length; index++) {
-                if (keyStatus[index] && key == keyMap.translate(keyValues[index])) {
-                    hasKey = true;
-                    keyCode = keyValues[index];
-                    break;
+            } else {
+                for (int index = 0; index < keyStatus.length; index++) {
+                    if (keyStatus[index] && key == keyMap.translate(keyValues[index])) {
+                        hasKey = true;
+                        keyCode = keyValues[index];
+                        break;
+                    }
                 }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized char checkKey(char key) {
-        //System.out.printf("CheckKey :%2x%n",(int)key);
-        if ((key & 0x80) != 0) {
-            for (int index = 0; index < keyStatus.length; index++) {
-                if (keyStatus[index]) {
-                    return keyMap.translate(keyValues[index]);
+    public char checkKey(char key) {
+        lock.lock();
+        try {
+            //System.out.printf("CheckKey :%2x%n",(int)key);
+            if ((key & 0x80) != 0) {
+                for (int index = 0; index < keyStatus.length; index++) {
+                    if (keyStatus[index]) {
+                        return keyMap.translate(keyValues[index]);
+                    }
                 }
-            }
-            return 0;
-        } else {
-            for (int index = 0; index < keyStatus.length; index++) {
-                if (keyStatus[index] && key == keyMap.translate(keyValues[index])) {
-                    return key;
+                return 0;
+            } else {
+                for (int index = 0; index < keyStatus.length; index++) {
+                    if (keyStatus[index] && key == keyMap.translate(keyValues[index])) {
+                        return key;
+                    }
                 }
+                return 0;
             }
-            return 0;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -96,24 +121,53 @@ public final class DefaultKeyModel implements KeyModel {
         return keyMap.translate(getRawKey());
     }
 
-    public synchronized char inkey() {
-        //System.out.printf("inkey");
-        if (hasKey) {
-            hasKey = false;
-            return keyMap.translate(keyCode);
-        } else {
-            return 0;
+    public char inkey() {
+        lock.lock();
+        try {
+            //System.out.printf("inkey");
+            if (hasKey) {
+                hasKey = false;
+                return keyMap.translate(keyCode);
+            } else {
+                return 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRawKey() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true) {
+                if (hasKey) {
+                    hasKey = false;
+                    return keyCode;
+                } else {
+                    pressed.await();
+                }
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
-    public synchronized int getRawKey() throws InterruptedException {
-        while (true) {
+    public int pollchar() {
+        int rawKey = pollRawKey();
+        return rawKey < 0 ? -1 : keyMap.translate(rawKey);
+    }
+
+    public int pollRawKey() {
+        lock.lock();
+        try {
             if (hasKey) {
                 hasKey = false;
                 return keyCode;
             } else {
-                wait();
+                return -1;
             }
+        } finally {
+            lock.unlock();
         }
     }
 
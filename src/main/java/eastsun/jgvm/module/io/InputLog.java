@@ -0,0 +1,113 @@
+package eastsun.jgvm.module.io;
+
+import eastsun.jgvm.module.KeyModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 输入记录文件的格式,由InputRecorder写出,InputReplayer读取<p>
+ * 文件以MAGIC与VERSION开始,接着是录制时SysInfo的各个键值,之后是一系列事件,以END结束.<p>
+ * 每个事件为:一个类型字节,与上一事件相隔的指令数,事件的值,后两者都是变长编码的整数.
+ * GETCHAR,INKEY,CHECK_KEY,RAW_KEY的值为返回的键值,TIME的值为与上次读取时钟的差.
+ * 与前一个事件完全相同的连续事件合并为一个REPEAT,其值为重复的次数
+ */
+final class InputLog {
+
+    static final byte[] MAGIC = {'G', 'V', 'M', 'R'};
+    static final int VERSION = 1;
+    static final int END = 0;
+    static final int GETCHAR = 1;
+    static final int INKEY = 2;
+    static final int CHECK_KEY = 3;
+    static final int RAW_KEY = 4;
+    static final int TIME = 5;
+    static final int REPEAT = 6;
+
+    private InputLog() {
+    }
+
+    /**
+     * 写出一个变长编码的整数,每字节7位,低位在前;负数先做zigzag变换
+     */
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        value = (value << 1) ^ (value >> 63);
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Unexpected end of input log");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        throw new IOException("Malformed input log");
+    }
+
+    /**
+     * 按getLeft,getRight,getUp,getDown,getEnter,getEsc,hasNumberKey,getNumberKey(0~9)的顺序写出SysInfo
+     */
+    static void writeSysInfo(ByteArrayOutputStream out, KeyModel.SysInfo info) {
+        writeVarLong(out, info.getLeft());
+        writeVarLong(out, info.getRight());
+        writeVarLong(out, info.getUp());
+        writeVarLong(out, info.getDown());
+        writeVarLong(out, info.getEnter());
+        writeVarLong(out, info.getEsc());
+        writeVarLong(out, info.hasNumberKey() ? 1 : 0);
+        for (int num = 0; num < 10; num++) {
+            writeVarLong(out, info.hasNumberKey() ? info.getNumberKey(num) : 0);
+        }
+    }
+
+    static KeyModel.SysInfo readSysInfo(InputStream in) throws IOException {
+        final int[] values = new int[17];
+        for (int index = 0; index < values.length; index++) {
+            values[index] = (int) readVarLong(in);
+        }
+        return new KeyModel.SysInfo() {
+
+            public int getLeft() {
+                return values[0];
+            }
+
+            public int getRight() {
+                return values[1];
+            }
+
+            public int getUp() {
+                return values[2];
+            }
+
+            public int getDown() {
+                return values[3];
+            }
+
+            public int getEnter() {
+                return values[4];
+            }
+
+            public int getEsc() {
+                return values[5];
+            }
+
+            public boolean hasNumberKey() {
+                return values[6] != 0;
+            }
+
+            public int getNumberKey(int num) {
+                return values[7 + num];
+            }
+        };
+    }
+}
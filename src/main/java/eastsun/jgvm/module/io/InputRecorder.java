@@ -0,0 +1,208 @@
+package eastsun.jgvm.module.io;
+
+import eastsun.jgvm.module.Clock;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.KeyModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 记录GVM得到的所有按键与时间,以便之后用InputReplayer重现同样的运行<p>
+ * getKeyModel()与getClock()返回的对象把调用转交给被包装的KeyModel与Clock,并把每次得到的结果连同当时的指令数记录下来.
+ * 记录保存在内存中,用writeTo写出.<p>
+ * 使用方法:用getKeyModel()与getClock()创建GVM,调用attach关联该GVM,每次loadApp之后调用start开始新的记录.<p>
+ * 注意:记录只在GVM执行线程中进行,writeTo应在GVM停止运行后调用
+ * @see InputLog
+ */
+public final class InputRecorder {
+
+    private final KeyModel key;
+    private final Clock clock;
+    private final KeyModel recordingKey;
+    private final Clock recordingClock;
+    private JGVM gvm;
+    private boolean recording;
+    private ByteArrayOutputStream log;
+    //上一个事件的指令数,类型,与上一事件的间隔及值
+    private long lastStep;
+    private int lastType;
+    private long lastDelta, lastValue;
+    private long repeat;
+    private long lastTime;
+
+    /**
+     * 创建一个InputRecorder
+     * @param key 实际提供按键的KeyModel
+     * @param clock 实际提供时间的Clock
+     */
+    public InputRecorder(KeyModel key, Clock clock) {
+        this.key = key;
+        this.clock = clock;
+        this.recordingKey = new RecordingKeyModel();
+        this.recordingClock = new RecordingClock();
+    }
+
+    /**
+     * 得到记录按键的KeyModel,应使用它创建GVM
+     */
+    public KeyModel getKeyModel() {
+        return recordingKey;
+    }
+
+    /**
+     * 得到记录时间的Clock,应使用它创建GVM
+     */
+    public Clock getClock() {
+        return recordingClock;
+    }
+
+    /**
+     * 关联使用该记录器的GVM,记录按键时从它得到当前的指令数
+     */
+    public void attach(JGVM gvm) {
+        this.gvm = gvm;
+    }
+
+    /**
+     * 丢弃之前的记录,开始新的记录,应在GVM的loadApp之后调用
+     */
+    public void start() {
+        log = new ByteArrayOutputStream();
+        log.write(InputLog.MAGIC, 0, InputLog.MAGIC.length);
+        log.write(InputLog.VERSION);
+        InputLog.writeSysInfo(log, key.getSysInfo());
+        lastStep = 0;
+        lastType = InputLog.END;
+        repeat = 0;
+        lastTime = 0;
+        recording = true;
+    }
+
+    /**
+     * 停止记录并丢弃已有的记录
+     */
+    public void discard() {
+        recording = false;
+        log = null;
+    }
+
+    /**
+     * 是否已经有可以写出的记录
+     */
+    public boolean hasRecord() {
+        return log != null;
+    }
+
+    /**
+     * 写出当前的记录
+     * @throws IllegalStateException 还没有调用过start
+     * @throws IOException 发生IO错误
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (log == null) {
+            throw new IllegalStateException("没有记录!");
+        }
+        flushRepeat();
+        log.writeTo(out);
+        out.write(InputLog.END);
+    }
+
+    private void record(int type, long step, long value) {
+        long delta = step - lastStep;
+        lastStep = step;
+        if (type == lastType && delta == lastDelta && value == lastValue) {
+            repeat++;
+            return;
+        }
+        flushRepeat();
+        log.write(type);
+        InputLog.writeVarLong(log, delta);
+        InputLog.writeVarLong(log, value);
+        lastType = type;
+        lastDelta = delta;
+        lastValue = value;
+    }
+
+    private void flushRepeat() {
+        if (repeat > 0) {
+            log.write(InputLog.REPEAT);
+            InputLog.writeVarLong(log, repeat);
+            repeat = 0;
+        }
+    }
+
+    private void recordKey(int type, long value) {
+        if (recording) {
+            record(type, gvm == null ? 0 : gvm.getStepCount(), value);
+        }
+    }
+
+    private class RecordingKeyModel implements KeyModel {
+
+        public void releaseKey(char c) {
+            key.releaseKey(c);
+        }
+
+        public char checkKey(char c) {
+            char result = key.checkKey(c);
+            recordKey(InputLog.CHECK_KEY, result);
+            return result;
+        }
+
+        public char getchar() throws InterruptedException {
+            char result = key.getchar();
+            recordKey(InputLog.GETCHAR, result);
+            return result;
+        }
+
+        public char inkey() {
+            char result = key.inkey();
+            recordKey(InputLog.INKEY, result);
+            return result;
+        }
+
+        public int getRawKey() throws InterruptedException {
+            int result = key.getRawKey();
+            recordKey(InputLog.RAW_KEY, result);
+            return result;
+        }
+
+        public int pollchar() {
+            int result = key.pollchar();
+            //没有读到键时这条指令会在之后重新执行,只记录读到的键,重现时与阻塞的getchar一致
+            if (result >= 0) {
+                recordKey(InputLog.GETCHAR, result);
+            }
+            return result;
+        }
+
+        public int pollRawKey() {
+            int result = key.pollRawKey();
+            if (result >= 0) {
+                recordKey(InputLog.RAW_KEY, result);
+            }
+            return result;
+        }
+
+        public SysInfo getSysInfo() {
+            return key.getSysInfo();
+        }
+    }
+
+    private class RecordingClock implements Clock {
+
+        public long currentTimeMillis(long stepCount) {
+            long time = clock.currentTimeMillis(stepCount);
+            if (recording) {
+                record(InputLog.TIME, stepCount, time - lastTime);
+                lastTime = time;
+            }
+            return time;
+        }
+
+        public void sleep(long millis, long stepCount) throws InterruptedException {
+            clock.sleep(millis, stepCount);
+        }
+    }
+}
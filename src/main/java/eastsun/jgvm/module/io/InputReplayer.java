@@ -0,0 +1,171 @@
+package eastsun.jgvm.module.io;
+
+import eastsun.jgvm.module.Clock;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.KeyModel;
+import eastsun.jgvm.util.IOUtil;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 重现InputRecorder记录的按键与时间<p>
+ * getKeyModel()与getClock()返回的对象不会阻塞也不会等待,按记录的顺序返回当时得到的结果,
+ * 因此对同一个程序,GVM可以以最快速度重现与录制时完全相同的运行.<p>
+ * 每次调用都会检查调用的种类与当时的指令数是否与记录一致,不一致或记录用完时抛出IllegalStateException.<p>
+ * 使用方法:用getKeyModel()与getClock()创建GVM,调用attach关联该GVM,然后loadApp并运行
+ * @see InputLog
+ */
+public final class InputReplayer {
+
+    private final ByteArrayInputStream in;
+    private final KeyModel.SysInfo sysInfo;
+    private final KeyModel replayKey;
+    private final Clock replayClock;
+    private JGVM gvm;
+    //当前事件的指令数,类型,与上一事件的间隔及值
+    private long lastStep;
+    private int lastType = InputLog.END;
+    private long lastDelta, lastValue;
+    //当前REPEAT还需重复的次数
+    private long repeat;
+    private long lastTime;
+
+    /**
+     * 从输入流读取全部记录并创建一个InputReplayer
+     * @param in 记录文件的输入流,不会被关闭
+     * @throws IOException 发生IO错误或者不是记录文件
+     */
+    public InputReplayer(InputStream in) throws IOException {
+        this.in = new ByteArrayInputStream(IOUtil.readAll(in));
+        for (byte b : InputLog.MAGIC) {
+            if (this.in.read() != b) {
+                throw new IOException("Not an input log");
+            }
+        }
+        int version = this.in.read();
+        if (version != InputLog.VERSION) {
+            throw new IOException("Unsupported input log version: " + version);
+        }
+        sysInfo = InputLog.readSysInfo(this.in);
+        replayKey = new ReplayKeyModel();
+        replayClock = new ReplayClock();
+    }
+
+    /**
+     * 得到重现按键的KeyModel,应使用它创建GVM
+     */
+    public KeyModel getKeyModel() {
+        return replayKey;
+    }
+
+    /**
+     * 得到重现时间的Clock,应使用它创建GVM
+     */
+    public Clock getClock() {
+        return replayClock;
+    }
+
+    /**
+     * 关联使用该对象的GVM,检查按键事件时从它得到当前的指令数
+     */
+    public void attach(JGVM gvm) {
+        this.gvm = gvm;
+    }
+
+    /**
+     * 记录中是否还有未重现的事件
+     */
+    public boolean hasNext() {
+        if (repeat > 0) {
+            return true;
+        }
+        in.mark(1);
+        int type = in.read();
+        in.reset();
+        return type > 0;
+    }
+
+    /**
+     * 读取下一个事件,检查它与这次调用是否一致
+     * @return 事件的值
+     */
+    private long next(int type, long step) {
+        if (repeat > 0) {
+            repeat--;
+        }
+        else {
+            try {
+                int t = in.read();
+                if (t == InputLog.REPEAT) {
+                    repeat = InputLog.readVarLong(in) - 1;
+                }
+                else if (t <= InputLog.END) {
+                    throw new IllegalStateException("输入记录已经用完!");
+                }
+                else {
+                    lastType = t;
+                    lastDelta = InputLog.readVarLong(in);
+                    lastValue = InputLog.readVarLong(in);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("读取输入记录失败: " + e.getMessage());
+            }
+        }
+        lastStep += lastDelta;
+        if (lastType != type || lastStep != step) {
+            throw new IllegalStateException("运行与输入记录不一致: 第" + step + "条指令处期望事件" + type
+                    + ",记录为第" + lastStep + "条指令处的事件" + lastType);
+        }
+        return lastValue;
+    }
+
+    private char nextKey(int type) {
+        return (char) next(type, gvm == null ? 0 : gvm.getStepCount());
+    }
+
+    private class ReplayKeyModel implements KeyModel {
+
+        public void releaseKey(char c) {
+        }
+
+        public char checkKey(char c) {
+            return nextKey(InputLog.CHECK_KEY);
+        }
+
+        public char getchar() {
+            return nextKey(InputLog.GETCHAR);
+        }
+
+        public char inkey() {
+            return nextKey(InputLog.INKEY);
+        }
+
+        public int getRawKey() {
+            return (int) next(InputLog.RAW_KEY, gvm == null ? 0 : gvm.getStepCount());
+        }
+
+        public int pollchar() {
+            return getchar();
+        }
+
+        public int pollRawKey() {
+            return getRawKey();
+        }
+
+        public SysInfo getSysInfo() {
+            return sysInfo;
+        }
+    }
+
+    private class ReplayClock implements Clock {
+
+        public long currentTimeMillis(long stepCount) {
+            lastTime += next(InputLog.TIME, stepCount);
+            return lastTime;
+        }
+
+        public void sleep(long millis, long stepCount) {
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package eastsun.jgvm.module.io;
+
+/**
+ * VirtualFile数据页的共享缓冲池,所有GVM共用<p>
+ * 文件关闭时VirtualFile把独占的页还给缓冲池,之后打开文件时优先从这里取页,反复打开关闭文件不会反复分配内存.
+ * 缓冲池最多保留MAX_PAGES页,多出的页交给垃圾回收,因此空闲时占用的内存有上限.<p>
+ * 取出的页内容未定义,VirtualFile只会读取写入过的部分.是线程安全的
+ */
+final class PagePool {
+
+    /**
+     * 缓冲池最多保留的页数
+     */
+    static final int MAX_PAGES = 256;
+    private static final byte[][] free = new byte[MAX_PAGES][];
+    private static int count;
+
+    private PagePool() {
+    }
+
+    /**
+     * 取出一页,缓冲池为空时新分配一页
+     * @return VirtualFile.PAGE_SIZE字节的数组,内容未定义
+     */
+    static byte[] take() {
+        synchronized (free) {
+            if (count > 0) {
+                byte[] page = free[--count];
+                free[count] = null;
+                return page;
+            }
+        }
+        return new byte[VirtualFile.PAGE_SIZE];
+    }
+
+    /**
+     * 归还一页,调用者之后不能再使用它
+     * @param page take得到的页,不能被其他VirtualFile引用
+     */
+    static void give(byte[] page) {
+        synchronized (free) {
+            if (count < MAX_PAGES) {
+                free[count++] = page;
+            }
+        }
+    }
+
+    /**
+     * 得到缓冲池中现有的字节数
+     */
+    static int getPooledBytes() {
+        synchronized (free) {
+            return count * VirtualFile.PAGE_SIZE;
+        }
+    }
+}
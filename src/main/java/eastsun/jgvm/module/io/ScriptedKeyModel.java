@@ -0,0 +1,199 @@
+package eastsun.jgvm.module.io;
+
+import eastsun.jgvm.module.KeyModel;
+
+/**
+ * 按预先给定的按键序列提供按键的KeyModel,用于无界面运行与测试<p>
+ * 序列中的每个键依次被"按下"period次查询(inkey或checkKey),之后换成下一个键,序列用完后从头开始.
+ * 序列中的0表示这段时间没有键按下.getchar总是立即返回序列中下一个尚未读取的非0键,不会阻塞.<p>
+ * 按键值直接使用GVM的键值,getRawKey与getchar返回相同的值.注意:不是线程安全的,应只在GVM执行线程中使用
+ */
+public final class ScriptedKeyModel implements KeyModel {
+
+    /**
+     * 与platform.KeyBoard中相同的GVM键值
+     */
+    public static final char KEY_ENTER = 13, KEY_ESC = 27, KEY_UP = 20, KEY_DOWN = 21, KEY_LEFT = 23, KEY_RIGHT = 22;
+    public static final char KEY_PAGE_UP = 19, KEY_PAGE_DOWN = 14, KEY_HELP = 25, KEY_SHIFT = 26, KEY_CAPS = 18, KEY_F1 = 28;
+    /**
+     * 使用上述键值的SysInfo,没有数字键
+     */
+    static final SysInfo SYS_INFO = new SysInfo() {
+
+        public int getLeft() {
+            return KEY_LEFT;
+        }
+
+        public int getRight() {
+            return KEY_RIGHT;
+        }
+
+        public int getUp() {
+            return KEY_UP;
+        }
+
+        public int getDown() {
+            return KEY_DOWN;
+        }
+
+        public int getEnter() {
+            return KEY_ENTER;
+        }
+
+        public int getEsc() {
+            return KEY_ESC;
+        }
+
+        public boolean hasNumberKey() {
+            return false;
+        }
+
+        public int getNumberKey(int num) {
+            return 0;
+        }
+    };
+    private final char[] keys;
+    private final int period;
+    //已经进行的查询次数,第polls/period个键为当前按下的键
+    private long polls;
+    //最近一个被inkey或getchar读取的键的序号
+    private long delivered = -1;
+
+    /**
+     * 创建一个ScriptedKeyModel
+     * @param keys 按键序列,至少要有一个非0的键
+     * @param period 每个键保持按下的查询次数,必须大于0
+     * @throws IllegalArgumentException 参数不合法
+     */
+    public ScriptedKeyModel(char[] keys, int period) {
+        boolean hasKey = false;
+        for (char key : keys) {
+            hasKey |= key != 0;
+        }
+        if (!hasKey || period <= 0) {
+            throw new IllegalArgumentException("keys must contain a key and period must be positive!");
+        }
+        this.keys = keys.clone();
+        this.period = period;
+    }
+
+    /**
+     * 解析按键序列,各项以逗号或空白分隔<p>
+     * 每项可以是单个字符,十进制的键值,NONE(没有键按下),或者ENTER,ESC,UP,DOWN,LEFT,RIGHT,SPACE,PGUP,PGDN,HELP,SHIFT,CAPS,F1~F4之一(不区分大小写)
+     * @param script 按键序列
+     * @return 键值序列
+     * @throws IllegalArgumentException 含有无法识别的项
+     */
+    public static char[] parseKeys(String script) {
+        String[] items = script.trim().split("[,\\s]+");
+        char[] result = new char[items.length];
+        for (int index = 0; index < items.length; index++) {
+            result[index] = parseKey(items[index]);
+        }
+        return result;
+    }
+
+    private static char parseKey(String item) {
+        if (item.length() == 1) {
+            return item.charAt(0);
+        }
+        switch (item.toUpperCase()) {
+            case "NONE":
+                return 0;
+            case "ENTER":
+                return KEY_ENTER;
+            case "ESC":
+                return KEY_ESC;
+            case "UP":
+                return KEY_UP;
+            case "DOWN":
+                return KEY_DOWN;
+            case "LEFT":
+                return KEY_LEFT;
+            case "RIGHT":
+                return KEY_RIGHT;
+            case "SPACE":
+                return ' ';
+            case "PGUP":
+                return KEY_PAGE_UP;
+            case "PGDN":
+                return KEY_PAGE_DOWN;
+            case "HELP":
+                return KEY_HELP;
+            case "SHIFT":
+                return KEY_SHIFT;
+            case "CAPS":
+                return KEY_CAPS;
+            case "F1":
+            case "F2":
+            case "F3":
+            case "F4":
+                return (char) (KEY_F1 + item.charAt(1) - '1');
+        }
+        try {
+            int value = Integer.parseInt(item);
+            if (value > 0 && value < 0x80) {
+                return (char) value;
+            }
+        } catch (NumberFormatException e) {
+        }
+        throw new IllegalArgumentException("Unknown key: " + item);
+    }
+
+    private char keyAt(long index) {
+        return keys[(int) (index % keys.length)];
+    }
+
+    public void releaseKey(char key) {
+        long index = polls / period;
+        if (delivered >= index && ((key & 0x80) != 0 || key == keyAt(index))) {
+            delivered = index - 1;
+        }
+    }
+
+    public char checkKey(char key) {
+        char current = keyAt(polls++ / period);
+        if ((key & 0x80) != 0) {
+            return current;
+        }
+        else {
+            return key == current ? key : 0;
+        }
+    }
+
+    public char getchar() {
+        delivered = Math.max(delivered + 1, polls / period);
+        while (keyAt(delivered) == 0) {
+            delivered++;
+        }
+        polls = Math.max(polls, delivered * period);
+        return keyAt(delivered);
+    }
+
+    public char inkey() {
+        long index = polls++ / period;
+        if (index > delivered) {
+            delivered = index;
+            return keyAt(index);
+        }
+        else {
+            return 0;
+        }
+    }
+
+    public int getRawKey() {
+        return getchar();
+    }
+
+    public int pollchar() {
+        return getchar();
+    }
+
+    public int pollRawKey() {
+        return getchar();
+    }
+
+    public SysInfo getSysInfo() {
+        return SYS_INFO;
+    }
+}
@@ -35,6 +35,24 @@ public final class Util {
         }
         return crc;
     }
+
+    /**
+     * 得到data从offset开始的length个字节的crc16码,结果与getCrc16Value(ReadableMemory, int, int)相同,
+     * 但直接读取数组,不需要逐字节调用getByte
+     */
+    public static char getCrc16Value(byte[] data, int offset, int length) {
+        char crc = 0, tmp;
+        while (--length >= 0) {
+            int b = data[offset++] & 0xff;
+            tmp = (char) ((crc >> 8) & 0xff);
+            crc <<= 4;
+            crc ^= CRC16_TAB[(tmp >> 4) ^ (b >> 4)];
+            tmp = (char) ((crc >> 8) & 0xff);
+            crc <<= 4;
+            crc ^= CRC16_TAB[(tmp >> 4) ^ (b & 0x0f)];
+        }
+        return crc;
+    }
     private static final char[] CRC16_TAB = {
         0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7,
         0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef
@@ -3,6 +3,9 @@ package eastsun.jgvm.module.io;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * 虚拟文件,使用内存模拟文件操作<p>
@@ -11,39 +14,86 @@ import java.io.OutputStream;
  *     limit描述的是虚拟文件当前存储的数据总量,外部可以读取或修改或增加数据到虚拟文件.这个值在调用readFromStream时自动初始化,并且内部自动维护<p>
  *     position表示下一个读/写数据的地址,相当于普通文件操作中的文件指针.其初始值应该由调用者在调用readFromStream方法后正确设置<p>
  * 对于一个含有数据,并正确初始化的VirtualFile,应有以下关系成立:<p>
- *     0<=position<=limit<=capacity
+ *     0<=position<=limit<=capacity<p>
+ * 数据按PAGE_SIZE字节分页保存.share得到的VirtualFile与原文件共享所有页,
+ * 任何一方改写一个共享页之前先复制该页(写时复制),因此复制文件的开销只与之后实际改写的页数有关.<p>
+ * 页在写入数据时才从PagePool取得,release时把独占的页还给PagePool
  * @author Eastsun
  * @version 2008-2-25
  */
 final class VirtualFile {
 
-    //每次增量的最小值:128K
-    private static final int MIN_ADD_CAPS = 0x20000;
-    private static final int MAX_COUNT = 30;
-
-    //内存块,最多支持10块,也就是1280K,对GVmaker来说足够了
-    private byte[][] bufs = new byte[MAX_COUNT][];
-    //caps[k]表示第0,..k-1块内存的总容量
-    private int[] caps = new int[MAX_COUNT + 1];
-    //内存块数量
-    private int count;
-    //当前所在内存块下标
-    private int index;
+    /**
+     * 每页的字节数
+     */
+    static final int PAGE_SIZE = 0x1000;
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final byte[][] NO_PAGES = new byte[0][];
+    private static final boolean[] NO_SHARED = new boolean[0];
+    //数据页,前pageCount个有效
+    private byte[][] pages = NO_PAGES;
+    private int pageCount;
+    //shared[n]表示第n页可能被其他VirtualFile引用,改写前必须复制
+    private boolean[] shared = NO_SHARED;
     //文件长度
     private int limit;
     //the index of the next element to be read or written
     private int position;
 
     /**
-     * 使用一个初始容量构造VirtualFile
-     * @param size
+     * 构造一个空的VirtualFile,写入数据时才分配空间
+     */
+    public VirtualFile() {
+    }
+
+    private VirtualFile(VirtualFile src) {
+        pages = src.pages.clone();
+        shared = new boolean[pages.length];
+        pageCount = src.pageCount;
+        limit = src.limit;
+        position = src.position;
+        Arrays.fill(shared, 0, pageCount, true);
+        Arrays.fill(src.shared, 0, pageCount, true);
+    }
+
+    /**
+     * 得到一个与该文件内容,长度及文件指针都相同的VirtualFile<p>
+     * 两者共享所有的数据页,之后任何一方改写数据时才复制被改写的页,互不影响
+     * @return 新的VirtualFile
+     */
+    public VirtualFile share() {
+        return new VirtualFile(this);
+    }
+
+    /**
+     * 清空文件并释放所有页,独占的页还给PagePool,与其他VirtualFile共享的页留给对方
+     */
+    public void release() {
+        for (int n = 0; n < pageCount; n++) {
+            if (!shared[n]) {
+                PagePool.give(pages[n]);
+            }
+            pages[n] = null;
+        }
+        pages = NO_PAGES;
+        shared = NO_SHARED;
+        pageCount = 0;
+        position = limit = 0;
+    }
+
+    /**
+     * 得到该文件独占的字节数,即不与其他VirtualFile共享的页以及页表
      */
-    public VirtualFile(int size) {
-        bufs[0] = new byte[size];
-        for (int n = 1; n <= MAX_COUNT; n++) {
-            caps[n] = size;
+    public int getRetainedBytes() {
+        int count = 0;
+        for (int n = 0; n < pageCount; n++) {
+            if (!shared[n]) {
+                count++;
+            }
         }
-        count = 1;
+        //页表中每页一个引用与一个boolean
+        return count * PAGE_SIZE + pages.length * 5;
     }
 
     /**
@@ -51,7 +101,7 @@ final class VirtualFile {
      * @return capacity
      */
     public int capacity() {
-        return caps[count];
+        return pageCount << PAGE_SHIFT;
     }
 
     /**
@@ -80,13 +130,6 @@ final class VirtualFile {
             return -1;
         }
         position = newPos;
-        //修改index,使其满足caps[index]<=position<caps[index+1]
-        while (index < MAX_COUNT && caps[index] < caps[index + 1] && caps[index + 1] <= position) {
-            index++;
-        }
-        while (caps[index] > position) {
-            index--;
-        }
         return position;
     }
 
@@ -98,11 +141,8 @@ final class VirtualFile {
         if (position >= limit) {
             return -1;
         }
-        int c = bufs[index][position - caps[index]] & 0xff;
+        int c = pages[position >>> PAGE_SHIFT][position & PAGE_MASK] & 0xff;
         position++;
-        if (position >= caps[index + 1]) {
-            index++;
-        }
         return c;
     }
 
@@ -111,14 +151,11 @@ final class VirtualFile {
             return -1;
         }
         ensureCapacity(position + 1);
-        bufs[index][position - caps[index]] = (byte) ch;
+        writablePage(position >>> PAGE_SHIFT)[position & PAGE_MASK] = (byte) ch;
         position++;
         if (position > limit) {
             limit = position;
         }
-        if (position >= caps[index + 1]) {
-            index++;
-        }
         return ch;
     }
 
@@ -126,7 +163,7 @@ final class VirtualFile {
      * 将position,limit清零
      */
     public void refresh() {
-        index = position = limit = 0;
+        position = limit = 0;
     }
 
     /**
@@ -137,28 +174,21 @@ final class VirtualFile {
      */
     public void readFromStream(InputStream in) throws IOException {
         limit = 0;
-        int length;
-        int n = 0;
-        for (;;) {
-            //需要增加容量
-            if (n == count) {
-                bufs[n] = new byte[MIN_ADD_CAPS];
-                for (int k = n + 1; k <= MAX_COUNT; k++) {
-                    caps[k] = caps[n] + MIN_ADD_CAPS;
+        for (int n = 0;; n++) {
+            ensureCapacity(limit + 1);
+            byte[] page = writablePage(n);
+            int length = 0;
+            while (length < PAGE_SIZE) {
+                int count = in.read(page, length, PAGE_SIZE - length);
+                if (count == -1) {
+                    break;
                 }
-                count++;
+                length += count;
             }
-            length = in.read(bufs[n]);
-            if (length == -1) {
+            limit += length;
+            if (length < PAGE_SIZE) {
                 break;
             }
-            else {
-                limit += length;
-                if (length < bufs[n].length) {
-                    break;
-                }
-            }
-            n++;
         }
     }
 
@@ -169,27 +199,82 @@ final class VirtualFile {
      * @throws java.io.IOException 发生IO错误
      */
     public void writeToStream(OutputStream out) throws IOException {
-        int n = 0;
-        while (limit > caps[n + 1]) {
-            out.write(bufs[n++]);
-        }
-        if (limit > caps[n]) {
-            out.write(bufs[n], 0, limit - caps[n]);
+        for (int n = 0; n << PAGE_SHIFT < limit; n++) {
+            out.write(pages[n], 0, Math.min(limit - (n << PAGE_SHIFT), PAGE_SIZE));
         }
         out.close();
     }
-    //确保至少有minCap大小的内存可用
 
+    /**
+     * 把文件长度,文件指针以及文件内容写入out
+     */
+    public void saveState(ByteBuffer out) {
+        out.putInt(limit);
+        out.putInt(position);
+        for (int n = 0; n << PAGE_SHIFT < limit; n++) {
+            out.put(pages[n], 0, Math.min(limit - (n << PAGE_SHIFT), PAGE_SIZE));
+        }
+    }
+
+    /**
+     * 从in恢复saveState写入的状态
+     * @throws IllegalArgumentException 文件长度或文件指针不正确,或者in中的数据少于文件长度
+     */
+    public void loadState(ByteBuffer in) {
+        int newLimit = in.getInt();
+        int newPos = in.getInt();
+        checkLength(in, newLimit, newPos);
+        refresh();
+        ensureCapacity(newLimit);
+        for (int n = 0; n << PAGE_SHIFT < newLimit; n++) {
+            in.get(writablePage(n), 0, Math.min(newLimit - (n << PAGE_SHIFT), PAGE_SIZE));
+        }
+        limit = newLimit;
+        position = newPos;
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态
+     * @throws IllegalArgumentException 文件长度或文件指针不正确,或者in中的数据少于文件长度
+     */
+    public static void checkState(ByteBuffer in) {
+        int newLimit = in.getInt();
+        int newPos = in.getInt();
+        checkLength(in, newLimit, newPos);
+        IOUtil.skip(in, newLimit);
+    }
+
+    //在分配内存之前检查文件长度,避免错误的数据导致分配很大的内存
+    private static void checkLength(ByteBuffer in, int newLimit, int newPos) {
+        if (newLimit < 0 || newPos < 0 || newPos > newLimit || newLimit > in.remaining()) {
+            throw new IllegalArgumentException("Invalid file state: " + newLimit + "," + newPos);
+        }
+    }
+
+    /**
+     * 得到可以改写的第n页,该页是共享页时先复制一份
+     */
+    private byte[] writablePage(int n) {
+        if (shared[n]) {
+            pages[n] = pages[n].clone();
+            shared[n] = false;
+        }
+        return pages[n];
+    }
+
+    //确保至少有minCap大小的内存可用
     private void ensureCapacity(int minCap) {
-        if (caps[count] >= minCap) {
+        int count = (minCap + PAGE_MASK) >>> PAGE_SHIFT;
+        if (count <= pageCount) {
             return;
         }
-        //每次至少增加128K
-        int addCap = Math.max(MIN_ADD_CAPS, minCap - caps[count]);
-        bufs[count] = new byte[addCap];
-        for (int n = count + 1; n <= MAX_COUNT; n++) {
-            caps[n] = caps[count] + addCap;
+        if (count > pages.length) {
+            int length = Math.max(count, Math.max(pages.length * 2, 4));
+            pages = Arrays.copyOf(pages, length);
+            shared = Arrays.copyOf(shared, length);
+        }
+        while (pageCount < count) {
+            pages[pageCount++] = PagePool.take();
         }
-        count++;
     }
 }
@@ -0,0 +1,21 @@
+package eastsun.jgvm.module.ram;
+
+/**
+ * 可以把数据迁移到外部byte数组中的Ram<p>
+ * RamManager的平坦内存模式使用这种Ram,把所有内存模块放到同一个byte数组中,使每次读写只需一次数组访问
+ */
+public interface RelocatableRam extends Ram {
+
+    /**
+     * 把该Ram的当前内容复制到data中从offset开始的size()个字节,此后该Ram的读写都作用于这块区域<p>
+     * 注意:迁移后该Ram不再检查地址是否超出自己的范围,应由调用者保证
+     * @param data 新的数据存储数组
+     * @param offset 该Ram在data中的开始位置
+     */
+    void relocate(byte[] data, int offset);
+
+    /**
+     * 得到该Ram独占的数据字节数,迁移后数据属于外部数组,返回0
+     */
+    int getRetainedBytes();
+}
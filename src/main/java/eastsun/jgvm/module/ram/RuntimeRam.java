@@ -1,16 +1,78 @@
 package eastsun.jgvm.module.ram;
 
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
- * 运行时内存,提供运行时相关信息
+ * 运行时内存,提供运行时相关信息<p>
+ * 内存按PAGE_SIZE字节分页,被改写过的页记录在脏页表中,供RewindBuffer只比较改变了的部分.
+ * 通过setByte的改写会自动记录;平坦内存模式下RamManager直接改写迁移后的数组,由它调用markDirty记录<p>
+ * 没有被迁移时数据按页分别保存,share得到的RuntimeRam与原内存共享所有页,
+ * 任何一方改写一个共享页之前先复制该页(写时复制).迁移到平坦内存后数据被复制到目标数组,不再共享.<p>
+ * 新建或清空时所有页都指向同一个全为0的共享页,第一次改写时才分配,因此程序没有用到的内存不占用空间
  * @author Eastsun
  */
-public final class RuntimeRam implements Ram {
+public final class RuntimeRam implements RelocatableRam {
 
+    /**
+     * 脏页表中每页的字节数
+     */
+    public static final int PAGE_SIZE = 0x100;
+    private static final int PAGE_SHIFT = 8;
+    //所有RuntimeRam共用的全0页,总是被标记为共享,不会被改写
+    private static final byte[] ZERO_PAGE = new byte[PAGE_SIZE];
     private int startAddr,  regionStartAddr,  regionEndAddr;
+    //迁移后数据所在的数组,没有迁移时为null
     private byte[] buffer;
+    //数据在buffer中的开始位置
+    private int offset;
+    //没有迁移时的数据页,迁移后为null
+    private byte[][] pages;
+    //共享页表,第n位表示第n页可能被其他RuntimeRam引用,改写前必须复制
+    private final long[] shared;
+    private final int size;
+    //脏页表,第n位表示第n页自上次clearDirty以来被改写过
+    private final long[] dirty;
 
     public RuntimeRam(int size) {
-        buffer = new byte[size];
+        this.size = size;
+        pages = new byte[getPageCount()][];
+        shared = new long[(pages.length + 63) >>> 6];
+        dirty = new long[shared.length];
+        clear();
+    }
+
+    private RuntimeRam(RuntimeRam src) {
+        size = src.size;
+        startAddr = src.startAddr;
+        regionStartAddr = src.regionStartAddr;
+        regionEndAddr = src.regionEndAddr;
+        shared = new long[src.shared.length];
+        dirty = new long[shared.length];
+        markAllDirty();
+        if (src.pages == null) {
+            //src已迁移到平坦内存,只能复制
+            pages = new byte[getPageCount()][];
+            for (int n = 0; n < pages.length; n++) {
+                pages[n] = new byte[PAGE_SIZE];
+                System.arraycopy(src.buffer, src.offset + (n << PAGE_SHIFT), pages[n], 0, Math.min(PAGE_SIZE, size - (n << PAGE_SHIFT)));
+            }
+        } else {
+            pages = src.pages.clone();
+            Arrays.fill(shared, -1L);
+            Arrays.fill(src.shared, -1L);
+        }
+    }
+
+    /**
+     * 得到一个与该内存的数据,开始地址以及当前函数的内存区域都相同的RuntimeRam,它没有被迁移<p>
+     * 该内存没有迁移时两者共享所有的页,之后任何一方改写数据时才复制被改写的页,互不影响;
+     * 已经迁移到平坦内存时只能复制全部数据
+     * @return 新的RuntimeRam
+     */
+    public RuntimeRam share() {
+        return new RuntimeRam(this);
     }
 
     /**
@@ -46,7 +108,7 @@ public final class RuntimeRam implements Ram {
     }
 
     public int size() {
-        return buffer.length;
+        return size;
     }
 
     public int getRamType() {
@@ -62,16 +124,212 @@ public final class RuntimeRam implements Ram {
     }
 
     public byte getByte(int addr) {
-        return buffer[addr - startAddr];
+        int index = addr - startAddr;
+        if (pages == null) {
+            return buffer[index + offset];
+        }
+        return pages[index >>> PAGE_SHIFT][index & (PAGE_SIZE - 1)];
     }
 
     public void setByte(int addr, byte data) {
-        buffer[addr - startAddr] = data;
+        int index = addr - startAddr;
+        if (pages == null) {
+            buffer[index + offset] = data;
+        } else {
+            writablePage(index >>> PAGE_SHIFT)[index & (PAGE_SIZE - 1)] = data;
+        }
+        dirty[index >>> (PAGE_SHIFT + 6)] |= 1L << (index >>> PAGE_SHIFT);
+    }
+
+    /**
+     * 得到可以改写的第n页,该页是共享页时先复制一份
+     */
+    private byte[] writablePage(int n) {
+        long bit = 1L << n;
+        if ((shared[n >>> 6] & bit) != 0) {
+            pages[n] = pages[n].clone();
+            shared[n >>> 6] &= ~bit;
+        }
+        return pages[n];
+    }
+
+    /**
+     * 把从addr开始的count个字节读入dst
+     * @param addr 开始地址
+     * @param dst 目标数组
+     * @param dstOffset 在dst中的开始位置
+     * @param count 字节数
+     */
+    public void getBytes(int addr, byte[] dst, int dstOffset, int count) {
+        int index = addr - startAddr;
+        if (pages == null) {
+            System.arraycopy(buffer, index + offset, dst, dstOffset, count);
+            return;
+        }
+        while (count > 0) {
+            int pos = index & (PAGE_SIZE - 1);
+            int len = Math.min(count, PAGE_SIZE - pos);
+            System.arraycopy(pages[index >>> PAGE_SHIFT], pos, dst, dstOffset, len);
+            index += len;
+            dstOffset += len;
+            count -= len;
+        }
     }
 
     public void clear() {
-        for (int index = buffer.length - 1; index >= 0; index--) {
-            buffer[index] = 0;
+        if (pages == null) {
+            Arrays.fill(buffer, offset, offset + size, (byte) 0);
+        } else {
+            Arrays.fill(pages, ZERO_PAGE);
+            Arrays.fill(shared, -1L);
+        }
+        markAllDirty();
+    }
+
+    public void relocate(byte[] data, int offset) {
+        getBytes(startAddr, data, offset, size);
+        buffer = data;
+        this.offset = offset;
+        pages = null;
+        markAllDirty();
+    }
+
+    /**
+     * 得到内存的页数,最后一页可能不足PAGE_SIZE字节
+     */
+    public int getPageCount() {
+        return (size + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+    }
+
+    /**
+     * 得到该内存独占的字节数:没有迁移时为不与其他RuntimeRam共享的页以及页表,迁移后数据属于平坦内存,为0
+     */
+    public int getRetainedBytes() {
+        if (pages == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int n = 0; n < pages.length; n++) {
+            if ((shared[n >>> 6] & (1L << n)) == 0) {
+                count++;
+            }
+        }
+        //页表中每页一个引用
+        return count * PAGE_SIZE + pages.length * 4;
+    }
+
+    /**
+     * 记录从addr开始的count个字节已被改写,超出该内存的部分被忽略
+     * @param addr 开始地址
+     * @param count 字节数
+     */
+    public void markDirty(int addr, int count) {
+        int start = Math.max(addr - startAddr, 0);
+        int end = Math.min(addr - startAddr + count, size);
+        if (start >= end) {
+            return;
+        }
+        for (int page = start >>> PAGE_SHIFT, last = (end - 1) >>> PAGE_SHIFT; page <= last; page++) {
+            dirty[page >>> 6] |= 1L << page;
+        }
+    }
+
+    /**
+     * 把所有页记为脏页
+     */
+    public void markAllDirty() {
+        Arrays.fill(dirty, -1L);
+    }
+
+    /**
+     * 得到第page页及之后的第一个脏页
+     * @return 页号,没有时返回-1
+     */
+    public int nextDirtyPage(int page) {
+        int count = getPageCount();
+        while (page < count) {
+            long bits = dirty[page >>> 6] >>> page;
+            if (bits != 0) {
+                page += Long.numberOfTrailingZeros(bits);
+                return page < count ? page : -1;
+            }
+            page = (page | 63) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * 清空脏页表
+     */
+    public void clearDirty() {
+        Arrays.fill(dirty, 0L);
+    }
+
+    /**
+     * 把当前函数的内存区域与全部内存数据写入out
+     */
+    public void saveState(ByteBuffer out) {
+        saveRegion(out);
+        if (pages == null) {
+            out.put(buffer, offset, size);
+            return;
+        }
+        for (int n = 0; n < pages.length; n++) {
+            out.put(pages[n], 0, Math.min(PAGE_SIZE, size - (n << PAGE_SHIFT)));
+        }
+    }
+
+    /**
+     * 只把当前函数的内存区域写入out,saveState写入的就是它之后接着全部内存数据
+     */
+    public void saveRegion(ByteBuffer out) {
+        out.putInt(regionStartAddr);
+        out.putInt(regionEndAddr);
+    }
+
+    /**
+     * 从in恢复saveState写入的状态
+     */
+    public void loadState(ByteBuffer in) {
+        regionStartAddr = in.getInt();
+        regionEndAddr = in.getInt();
+        if (pages == null) {
+            in.get(buffer, offset, size);
+        } else {
+            for (int n = 0; n < pages.length; n++) {
+                int len = Math.min(PAGE_SIZE, size - (n << PAGE_SHIFT));
+                if (isZero(in, len)) {
+                    //全为0的页仍然使用共享的全0页
+                    in.position(in.position() + len);
+                    pages[n] = ZERO_PAGE;
+                    shared[n >>> 6] |= 1L << n;
+                } else {
+                    in.get(writablePage(n), 0, len);
+                }
+            }
+        }
+        markAllDirty();
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变该内存
+     */
+    public void checkState(ByteBuffer in) {
+        IOUtil.skip(in, 8 + size);
+    }
+
+    /**
+     * in中从当前位置开始的len个字节是否都为0,不改变in的位置;不足len个字节时返回false
+     */
+    private static boolean isZero(ByteBuffer in, int len) {
+        if (in.remaining() < len) {
+            return false;
+        }
+        for (int index = in.position(), end = index + len; index < end; index++) {
+            if (in.get(index) != 0) {
+                return false;
+            }
         }
+        return true;
     }
 }
@@ -3,20 +3,27 @@ package eastsun.jgvm.module.ram;
 import eastsun.jgvm.module.*;
 
 /**
- * 用于显存与缓存的Ram
+ * 用于显存与缓存的Ram<p>
+ * 其数据保存在getInternalData()数组中从getInternalOffset()开始的size()个字节,
+ * 安装到平坦内存模式的RamManager后,这个数组会被替换为RamManager的内存数组
  * @author Eastsun
  * @version 2008/1/19
  */
-public final class ScreenRam implements RelativeRam {
+public final class ScreenRam implements RelativeRam, RelocatableRam {
 
     private byte[] buffer;
+    private int offset;
+    private final int size;
     private int type;
     private int startAddr;
     private ScreenModel screen;
+    //是否已迁移到外部数组
+    private boolean relocated;
 
     public ScreenRam(ScreenModel screen, byte[] buffer, int type) {
         this.screen = screen;
         this.buffer = buffer;
+        this.size = buffer.length;
         this.type = type;
     }
 
@@ -25,7 +32,7 @@ public final class ScreenRam implements RelativeRam {
     }
 
     public int size() {
-        return buffer.length;
+        return size;
     }
 
     public int getRamType() {
@@ -41,20 +48,42 @@ public final class ScreenRam implements RelativeRam {
     }
 
     public byte getByte(int addr) throws IndexOutOfBoundsException {
-        return buffer[addr - startAddr];
+        return buffer[addr - startAddr + offset];
     }
 
     public void setByte(int addr, byte data) throws IndexOutOfBoundsException {
-        buffer[addr - startAddr] = data;
+        buffer[addr - startAddr + offset] = data;
     }
 
     public void clear() {
-        for (int index = buffer.length - 1; index >= 0; index--) {
+        for (int index = offset + size - 1; index >= offset; index--) {
             buffer[index] = 0;
         }
     }
 
+    public void relocate(byte[] data, int offset) {
+        System.arraycopy(buffer, this.offset, data, offset, size);
+        buffer = data;
+        this.offset = offset;
+        relocated = true;
+    }
+
+    public int getRetainedBytes() {
+        return relocated ? 0 : size;
+    }
+
+    /**
+     * 得到保存数据的数组,注意其中可能还包含其它Ram的数据
+     * @see #getInternalOffset()
+     */
     public byte[] getInternalData() {
         return buffer;
     }
+
+    /**
+     * 得到该Ram的数据在getInternalData()数组中的开始位置
+     */
+    public int getInternalOffset() {
+        return offset;
+    }
 }
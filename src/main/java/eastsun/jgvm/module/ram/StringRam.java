@@ -1,35 +1,49 @@
 package eastsun.jgvm.module.ram;
 
 import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.util.IOUtil;
+import java.nio.ByteBuffer;
 
 /**
  * 字符串堆内存模块
  * @author Eastsun
  * @version 1.0 2008/1/19
  */
-public final class StringRam implements Ram {
+public final class StringRam implements RelocatableRam {
 
     private byte[] buffer;
     private int offset,  startAddr;
+    //数据在buffer中的开始位置
+    private int base;
+    private final int size;
+    //是否已迁移到外部数组
+    private boolean relocated;
 
     public StringRam(int size) {
         buffer = new byte[size];
+        this.size = size;
         offset = 0;
     }
 
     /**
      * 从lav文件中读取一个以0结尾的字符串数组
      * @param source 数据源
+     * @param pos 字符串在lav文件中的位置
      * @return addr 这个数据保存在StringRam中的地址
+     * @throws IndexOutOfBoundsException 字符串超出了字符堆的末尾
      */
-    public int addString(LavApp source) {
+    public int addString(LavApp source, int pos) {
         int addr = offset + startAddr;
         byte b;
         do {
-            b = (byte) source.getUint8();
-            buffer[offset++] = b;
+            //迁移到平坦内存后buffer之后是其它内存,必须自己检查边界
+            if (offset >= size) {
+                throw new IndexOutOfBoundsException("字符串超出字符堆: " + addr);
+            }
+            b = source.getByte(pos++);
+            buffer[base + offset++] = b;
         } while (b != 0);
-        if (offset >= buffer.length * 3 / 4) {
+        if (offset >= size * 3 / 4) {
             offset = 0;
         }
         return addr;
@@ -38,7 +52,7 @@ public final class StringRam implements Ram {
     /**
      * 该Ram不允许直接写内存,只能通过addString()方法想里面写数据
      * @throws IndexOutOfBoundsException 调用此方法总是抛出该异常
-     * @see #addString(LavApp)
+     * @see #addString(LavApp, int)
      */
     public void setByte(int addr, byte data) {
         throw new IndexOutOfBoundsException("常字符串不能修改: " + addr);
@@ -48,7 +62,7 @@ public final class StringRam implements Ram {
      * {@inheritDoc}
      */
     public int size() {
-        return buffer.length;
+        return size;
     }
 
     /**
@@ -76,7 +90,7 @@ public final class StringRam implements Ram {
      * {@inheritDoc}
      */
     public byte getByte(int addr) {
-        return buffer[addr - startAddr];
+        return buffer[addr - startAddr + base];
     }
 
     /**
@@ -85,4 +99,55 @@ public final class StringRam implements Ram {
     public void clear() {
         offset = 0;
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void relocate(byte[] data, int offset) {
+        System.arraycopy(buffer, base, data, offset, size);
+        buffer = data;
+        base = offset;
+        relocated = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getRetainedBytes() {
+        return relocated ? 0 : size;
+    }
+
+    /**
+     * 把下一个字符串的写入位置与全部内存数据写入out
+     */
+    public void saveState(ByteBuffer out) {
+        out.putInt(offset);
+        out.put(buffer, base, size);
+    }
+
+    /**
+     * 从in恢复saveState写入的状态
+     * @throws IllegalArgumentException 下一个字符串的写入位置不在内存范围内
+     */
+    public void loadState(ByteBuffer in) {
+        offset = readOffset(in);
+        in.get(buffer, base, size);
+    }
+
+    /**
+     * 检查并跳过saveState写入的状态,不改变该内存
+     * @throws IllegalArgumentException 下一个字符串的写入位置不在内存范围内
+     */
+    public void checkState(ByteBuffer in) {
+        readOffset(in);
+        IOUtil.skip(in, size);
+    }
+
+    private int readOffset(ByteBuffer in) {
+        int p = in.getInt();
+        if (p < 0 || p >= size) {
+            throw new IllegalArgumentException("Invalid string offset: " + p);
+        }
+        return p;
+    }
 }
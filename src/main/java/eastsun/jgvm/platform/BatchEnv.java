@@ -0,0 +1,349 @@
+package eastsun.jgvm.platform;
+
+import eastsun.jgvm.module.GvmConfig;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.VirtualClock;
+import eastsun.jgvm.module.io.ActionKeyModel;
+import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.FileSystem;
+import eastsun.jgvm.module.io.ScriptedKeyModel;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 以动作批量驱动多个GVM的环境,供自动玩家与模糊测试使用<p>
+ * 环境含有固定个数的GVM.reset让所有GVM加载同一个LavApp,之后每次step给每个GVM一个动作(一个按键),
+ * 在线程池中并行执行这些GVM,直到各自执行了refresh,开始等待按键,程序结束,或者这一步已执行maxSteps条指令.<p>
+ * 观测是所有GVM的屏幕,每个FRAME_BYTES字节,每像素1位,每行WIDTH/8字节,高位在左,1为黑色,按GVM的顺序依次放在同一个数组中.
+ * reset与step每次都复用这个数组.<p>
+ * 每个GVM使用ActionKeyModel,VirtualClock以及不改动文件系统的DefaultFileModel,Delay不会真正等待,存档也不会留到下次reset,
+ * 因此同样的动作序列总是得到同样的观测.
+ * GVM以非阻塞模式运行,等待按键时这一步立即结束,不占用线程,因此线程数可以远少于GVM的个数.
+ * 重新reset或close时释放原来的GVM,打开的文件不会写回文件系统.<p>
+ * 用作程序时以随机的动作运行一个lav程序并输出每秒执行的步数,用法:<p>
+ * BatchEnv [-envs GVM个数] [-threads 线程数] [-steps 步数] [-root 根目录] lav文件<p>
+ * 注意:不是线程安全的,reset,step与close应在同一个线程中调用
+ */
+public final class BatchEnv {
+
+    /**
+     * 每个GVM的观测的字节数
+     */
+    public static final int FRAME_BYTES = ScreenModel.WIDTH * ScreenModel.HEIGHT / 8;
+    private static final String USAGE = "Usage: BatchEnv [-envs n] [-threads n] [-steps n] [-root dir] app.lav";
+    /**
+     * runFrame每批执行的指令数
+     */
+    private static final int BATCH_STEPS = 100000;
+    private final GvmConfig config;
+    private final FileSystem fileSys;
+    private final int maxSteps;
+    private final ForkJoinPool pool;
+    private final Slot[] slots;
+    private final byte[] observations;
+    private final boolean[] done;
+    private LavApp app;
+    //当前这一步还没有停下的GVM数,由GVM执行线程减少
+    private CountDownLatch pending;
+
+    /**
+     * 创建一个BatchEnv
+     * @param count GVM的个数
+     * @param threads 执行GVM的线程数
+     * @param maxSteps 每个GVM每一步最多执行的指令数
+     * @param config GVM的配置
+     * @param fileSys GVM打开文件时使用的文件系统
+     * @throws IllegalArgumentException count,threads或maxSteps不是正数
+     */
+    public BatchEnv(int count, int threads, int maxSteps, GvmConfig config, FileSystem fileSys) {
+        if (count <= 0 || threads <= 0 || maxSteps <= 0) {
+            throw new IllegalArgumentException("count, threads and maxSteps must be positive!");
+        }
+        this.config = config;
+        this.fileSys = fileSys;
+        this.maxSteps = maxSteps;
+        pool = new ForkJoinPool(threads);
+        slots = new Slot[count];
+        for (int index = 0; index < count; index++) {
+            slots[index] = new Slot();
+        }
+        observations = new byte[count * FRAME_BYTES];
+        done = new boolean[count];
+    }
+
+    /**
+     * 得到GVM的个数
+     */
+    public int getCount() {
+        return slots.length;
+    }
+
+    /**
+     * 释放原来的GVM,创建新的GVM并加载app,然后不按任何键执行第一步
+     * @param app 要运行的程序,所有GVM共用
+     * @return 观测数组,下次reset或step时被改写
+     * @throws IllegalStateException 已经close
+     * @throws InterruptedException 等待GVM执行时当前线程被中断
+     */
+    public byte[] reset(LavApp app) throws InterruptedException {
+        this.app = app;
+        for (Slot slot : slots) {
+            slot.init();
+        }
+        pending = new CountDownLatch(slots.length);
+        for (Slot slot : slots) {
+            slot.limit = maxSteps;
+            pool.execute(slot);
+        }
+        pending.await();
+        collect();
+        return observations;
+    }
+
+    /**
+     * 执行一步:第n个GVM按下actions[n]并保持,直到执行了refresh,开始等待按键,程序结束或者执行了maxSteps条指令<p>
+     * 已经结束的GVM不再执行;正在等待按键的GVM得到动作0时继续等待
+     * @param actions 每个GVM的动作,为GVM键值,0表示不按键,见ScriptedKeyModel中的常量
+     * @return 观测数组,下次reset或step时被改写
+     * @throws IllegalArgumentException actions的长度与GVM的个数不同
+     * @throws IllegalStateException 还没有reset
+     * @throws InterruptedException 等待GVM执行时当前线程被中断
+     */
+    public byte[] step(char[] actions) throws InterruptedException {
+        if (actions.length != slots.length) {
+            throw new IllegalArgumentException("actions.length: " + actions.length);
+        }
+        if (app == null) {
+            throw new IllegalStateException("没有加载程序!");
+        }
+        CountDownLatch latch = new CountDownLatch(slots.length);
+        pending = latch;
+        for (int index = 0; index < slots.length; index++) {
+            Slot slot = slots[index];
+            if (done[index] || slot.waiting && actions[index] == 0) {
+                latch.countDown();
+                continue;
+            }
+            slot.limit = slot.gvm.getStepCount() + maxSteps;
+            slot.keys.press(actions[index]);
+            pool.execute(slot);
+        }
+        latch.await();
+        collect();
+        return observations;
+    }
+
+    /**
+     * 得到观测数组,内容为最近一次reset或step后的观测
+     */
+    public byte[] getObservations() {
+        return observations;
+    }
+
+    /**
+     * 得到每个GVM是否已经结束,程序正常结束或者执行出错都算结束.返回的数组在下次reset或step时被改写
+     */
+    public boolean[] getDones() {
+        return done;
+    }
+
+    /**
+     * 第index个GVM是否正在等待按键
+     */
+    public boolean isWaiting(int index) {
+        return slots[index].waiting;
+    }
+
+    /**
+     * 得到第index个GVM自加载程序以来执行的指令数
+     */
+    public long getStepCount(int index) {
+        return slots[index].gvm.getStepCount();
+    }
+
+    /**
+     * 得到第index个GVM执行时发生的错误,没有时返回null
+     */
+    public RuntimeException getError(int index) {
+        return slots[index].error;
+    }
+
+    /**
+     * 释放所有GVM并关闭线程池,之后不能再使用该环境
+     */
+    public void close() {
+        app = null;
+        pool.shutdown();
+        //reset或step被中断时可能还有GVM在运行,这些GVM只能丢弃
+        if (pending == null || pending.getCount() == 0) {
+            for (Slot slot : slots) {
+                slot.dispose();
+            }
+        }
+    }
+
+    private void collect() {
+        for (int index = 0; index < slots.length; index++) {
+            Slot slot = slots[index];
+            done[index] = slot.error != null || slot.gvm.isEnd();
+            //此时GVM没有运行,直接复制显存
+            slot.screen.copyFrame(observations, index * FRAME_BYTES);
+        }
+    }
+
+    /**
+     * 一个GVM及其执行任务,每一步在线程池中执行一次run
+     */
+    private final class Slot implements Runnable {
+
+        private ActionKeyModel keys;
+        private ScreenModel screen;
+        private JGVM gvm;
+        //这一步最多执行到的指令数
+        private long limit;
+        //最近一步是否因为等待按键而结束
+        private boolean waiting;
+        private RuntimeException error;
+
+        void init() {
+            dispose();
+            keys = new ActionKeyModel();
+            screen = ScreenModel.newScreenModel();
+            gvm = JGVM.newGVM(config, new DefaultFileModel(fileSys, false), screen, keys, new VirtualClock());
+            gvm.setNonBlocking(true);
+            gvm.loadApp(app);
+            waiting = false;
+            error = null;
+        }
+
+        void dispose() {
+            if (gvm != null) {
+                gvm.dispose();
+                gvm = null;
+            }
+        }
+
+        public void run() {
+            waiting = false;
+            try {
+                while (!gvm.isEnd() && gvm.getStepCount() < limit) {
+                    int result = gvm.runFrame((int) Math.min(BATCH_STEPS, limit - gvm.getStepCount()));
+                    if (result == JGVM.STOP_BY_REFRESH) {
+                        break;
+                    }
+                    if (result == JGVM.WAITING_FOR_INPUT) {
+                        waiting = true;
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                //线程池被关闭
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            pending.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int envs = 64;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int steps = 1000;
+        String root = "GVM_ROOT";
+        String lav = null;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-envs":
+                        envs = Integer.parseInt(value);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "-steps":
+                        steps = Integer.parseInt(value);
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lav == null) {
+                throw new IllegalArgumentException("No lav file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(lav);
+        if (!file.isFile()) {
+            file = new File(root, lav);
+        }
+        LavApp app;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            app = LavApp.createLavApp(file.getName(), in);
+        }
+        char[] keys = {0, ScriptedKeyModel.KEY_UP, ScriptedKeyModel.KEY_DOWN, ScriptedKeyModel.KEY_LEFT,
+            ScriptedKeyModel.KEY_RIGHT, ScriptedKeyModel.KEY_ENTER, ScriptedKeyModel.KEY_ESC, ' '};
+        Random random = new Random(0);
+        char[] actions = new char[envs];
+        //同时运行很多GVM,使用按页分配的非平坦内存,没有用到的页不占用空间,fork时也可以按页共享
+        BatchEnv env = new BatchEnv(envs, threads, 1000000, new GvmConfig(0x6000, 1024, 512, 0x10, false), new FileSysSE(root));
+        env.reset(app);
+        long start = System.nanoTime();
+        long instructions = 0;
+        int finished = 0;
+        for (int step = 0; step < steps; step++) {
+            for (int index = 0; index < envs; index++) {
+                actions[index] = keys[random.nextInt(keys.length)];
+            }
+            env.step(actions);
+            boolean[] dones = env.getDones();
+            for (int index = 0; index < envs; index++) {
+                if (dones[index]) {
+                    finished++;
+                }
+            }
+            if (finished > 0) {
+                //有GVM结束时全部重新开始
+                for (int index = 0; index < envs; index++) {
+                    instructions += env.getStepCount(index);
+                }
+                env.reset(app);
+                finished = 0;
+            }
+        }
+        long time = System.nanoTime() - start;
+        for (int index = 0; index < envs; index++) {
+            instructions += env.getStepCount(index);
+        }
+        env.close();
+
+        System.out.println("app:          " + file.getName());
+        System.out.println("envs:         " + envs + " threads: " + threads);
+        System.out.printf("env steps/s:  %.0f%n", (double) steps * envs * 1e9 / Math.max(time, 1));
+        System.out.printf("MIPS:         %.2f%n", instructions * 1e3 / Math.max(time, 1));
+    }
+}
@@ -12,6 +12,11 @@ public final class Config {
     private static int delay;
     private static boolean isDelayEnabled;
 
+    // 这几项可以省略,省略时使用默认值
+    private static int rewindMemory = 4096;
+    private static int rewindFrames = 1800;
+    private static int rewindFrameSteps = 10000;
+
     private static int backgroundColor;
     private static int foregroundColor;
     private static int pixelScale;
@@ -70,7 +75,21 @@ public final class Config {
             pixelScale = Integer.parseInt(ini.get("UI", "pixelScale"));
         } catch (NullPointerException | NumberFormatException e) {
             configLoadingException = e;
+            return;
         }
+
+        try {
+            rewindMemory = getInt(ini, "Run", "rewindMemory", rewindMemory);
+            rewindFrames = getInt(ini, "Run", "rewindFrames", rewindFrames);
+            rewindFrameSteps = getInt(ini, "Run", "rewindFrameSteps", rewindFrameSteps);
+        } catch (NumberFormatException e) {
+            configLoadingException = e;
+        }
+    }
+
+    private static int getInt(IniEditor ini, String section, String option, int defaultValue) {
+        String value = ini.get(section, option);
+        return value == null ? defaultValue : Integer.parseInt(value);
     }
 
     public static Exception getConfigLoadingException() {
@@ -100,4 +119,16 @@ public final class Config {
     public static int getPixelScale() {
         return pixelScale;
     }
+
+    public static int getRewindMemory() {
+        return rewindMemory;
+    }
+
+    public static int getRewindFrames() {
+        return rewindFrames;
+    }
+
+    public static int getRewindFrameSteps() {
+        return rewindFrameSteps;
+    }
 }
@@ -0,0 +1,97 @@
+package eastsun.jgvm.platform;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * 把每像素1位的屏幕帧转换为已按像素倍数放大的RGB图像<p>
+ * 使用一张256项的查找表把帧中的一个字节直接转换为8*scale个像素,并且只转换与上次相比有变化的行,
+ * 绘制时不需要再由Java2D缩放.<p>
+ * 注意:不是线程安全的,应只在事件线程中使用
+ */
+public final class FrameRenderer {
+
+    private final int width, height, scale;
+    private final int bytesPerLine;
+    //lut[b*8*scale...]: 字节b对应的8*scale个像素
+    private final int[] lut;
+    //放大后的一行源像素,共scale行
+    private final int[] band;
+    //上次转换的帧,用于找出变化的行
+    private final byte[] shown;
+    private boolean valid;
+    private final BufferedImage image;
+    private final WritableRaster raster;
+
+    /**
+     * 创建一个FrameRenderer
+     * @param width 屏幕宽度,应为8的倍数
+     * @param height 屏幕高度
+     * @param scale 像素放大倍数
+     * @param bgColor 背景色,格式为0xrrggbb
+     * @param fgColor 前景色,格式为0xrrggbb
+     */
+    public FrameRenderer(int width, int height, int scale, int bgColor, int fgColor) {
+        this.width = width;
+        this.height = height;
+        this.scale = scale;
+        this.bytesPerLine = width / 8;
+        this.shown = new byte[bytesPerLine * height];
+        this.band = new int[width * scale * scale];
+        this.image = new BufferedImage(width * scale, height * scale, BufferedImage.TYPE_INT_RGB);
+        this.raster = image.getRaster();
+
+        int pixels = 8 * scale;
+        lut = new int[256 * pixels];
+        for (int b = 0; b < 256; b++) {
+            for (int bit = 0; bit < 8; bit++) {
+                int color = (b & (0x80 >>> bit)) != 0 ? fgColor : bgColor;
+                int from = b * pixels + bit * scale;
+                for (int n = 0; n < scale; n++) {
+                    lut[from + n] = color;
+                }
+            }
+        }
+    }
+
+    /**
+     * 得到转换后的图像,大小为(width*scale)x(height*scale)
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * 把一帧转换到图像中,只转换与上次调用相比有变化的行
+     * @param frame 每像素1位的屏幕数据,每字节最高位对应最左边的像素
+     * @return 转换后的图像,即getImage()
+     */
+    public BufferedImage render(byte[] frame) {
+        int pixels = 8 * scale;
+        int scaledWidth = width * scale;
+        for (int row = 0, offset = 0; row < height; row++, offset += bytesPerLine) {
+            if (valid && sameRow(frame, offset)) {
+                continue;
+            }
+            for (int index = 0, pos = 0; index < bytesPerLine; index++, pos += pixels) {
+                System.arraycopy(lut, (frame[offset + index] & 0xff) * pixels, band, pos, pixels);
+            }
+            for (int n = 1; n < scale; n++) {
+                System.arraycopy(band, 0, band, n * scaledWidth, scaledWidth);
+            }
+            raster.setDataElements(0, row * scale, scaledWidth, scale, band);
+            System.arraycopy(frame, offset, shown, offset, bytesPerLine);
+        }
+        valid = true;
+        return image;
+    }
+
+    private boolean sameRow(byte[] frame, int offset) {
+        for (int index = offset, end = offset + bytesPerLine; index < end; index++) {
+            if (frame[index] != shown[index]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
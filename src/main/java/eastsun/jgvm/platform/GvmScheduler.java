@@ -0,0 +1,640 @@
+package eastsun.jgvm.platform;
+
+import eastsun.jgvm.module.Clock;
+import eastsun.jgvm.module.GvmConfig;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.io.ActionKeyModel;
+import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.FileSystem;
+import eastsun.jgvm.module.io.ScriptedKeyModel;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 在固定个数的工作线程上轮流运行许多GVM的协作式调度器<p>
+ * 每个GVM以非阻塞模式运行,每次被调度时最多执行sliceSteps条指令(一个时间片),之后让出工作线程.
+ * 等待按键的GVM停放在调度器中,直到Task.press给出按键;执行Delay的GVM不会挂起线程,而是停放到Delay结束的时刻.
+ * 因此工作线程总是在运行可以执行的GVM,不会为等待按键或Delay而空闲.<p>
+ * 可以执行的GVM按虚拟运行时间排队:每个时间片中工作线程用去的CPU时间按权重折算后计入虚拟运行时间,总是先调度虚拟运行时间最少的GVM,
+ * 因此同时可以执行的GVM分得的CPU时间与权重成正比.工作线程被操作系统换下的时间不计入;JVM不支持线程CPU时间时改用实际经过的时间.停放后重新就绪的GVM的虚拟运行时间至少提高到最近被调度的值,
+ * 不会因为停放了很久而在之后长时间独占线程.<p>
+ * 每个GVM统计执行的指令数,运行时间以及从就绪到被调度的延迟(调度延迟);调度器另外统计所有调度延迟的分布.<p>
+ * 用作程序时打开若干GVM运行同一个lav程序并随机按键,运行一段时间后输出吞吐量,每个GVM每秒执行的指令数以及调度延迟,用法:<p>
+ * GvmScheduler [-vms GVM个数] [-threads 线程数] [-slice 时间片指令数] [-seconds 秒数] [-root 根目录] lav文件
+ */
+public final class GvmScheduler {
+
+    /**
+     * Task.getState的返回值:可以执行,正在排队
+     */
+    public static final int READY = 0;
+    /**
+     * 正在某个工作线程中执行
+     */
+    public static final int RUNNING = 1;
+    /**
+     * 执行了Delay,停放到Delay结束
+     */
+    public static final int SLEEPING = 2;
+    /**
+     * 等待按键,停放到有键按下
+     */
+    public static final int WAITING = 3;
+    /**
+     * 程序已经结束,出错,或者已经关闭
+     */
+    public static final int ENDED = 4;
+    /**
+     * 默认的权重
+     */
+    public static final int DEFAULT_WEIGHT = 1024;
+    private static final String USAGE = "Usage: GvmScheduler [-vms n] [-threads n] [-slice n] [-seconds n] [-root dir] app.lav";
+    //用于得到工作线程的CPU时间,不支持时为null
+    private static final ThreadMXBean CPU_TIMER = cpuTimer();
+    private final GvmConfig config;
+    private final FileSystem fileSys;
+    private final int sliceSteps;
+    private final Thread[] workers;
+    private final Set<Task> tasks = ConcurrentHashMap.newKeySet();
+    //以下状态都由lock保护
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    //可以执行的GVM,按虚拟运行时间排序
+    private final PriorityQueue<Task> ready = new PriorityQueue<>(64,
+            (a, b) -> a.vruntime != b.vruntime ? Long.compare(a.vruntime, b.vruntime) : Long.compare(a.id, b.id));
+    //执行了Delay的GVM,按醒来的时间排序
+    private final PriorityQueue<Task> sleeping = new PriorityQueue<>(64,
+            (a, b) -> a.wakeTime != b.wakeTime ? Long.compare(a.wakeTime - b.wakeTime, 0) : Long.compare(a.id, b.id));
+    //最近被调度的GVM的虚拟运行时间,只增不减
+    private long minVruntime;
+    private long nextId;
+    //调度延迟的分布,第n项为延迟在[2^(n-1),2^n)纳秒中的次数
+    private final long[] latencyCounts = new long[64];
+    private boolean closed;
+
+    /**
+     * 创建一个GvmScheduler并启动工作线程
+     * @param config 每个GVM的配置
+     * @param fileSys GVM打开文件时使用的文件系统,所有GVM共用.GVM只读取文件,不会改动它(见DefaultFileModel的writeBack)
+     * @param threads 工作线程数,通常为CPU核数
+     * @param sliceSteps 每个时间片最多执行的指令数
+     * @throws IllegalArgumentException threads或sliceSteps不是正数
+     */
+    public GvmScheduler(GvmConfig config, FileSystem fileSys, int threads, int sliceSteps) {
+        if (threads <= 0 || sliceSteps <= 0) {
+            throw new IllegalArgumentException("threads and sliceSteps must be positive!");
+        }
+        this.config = config;
+        this.fileSys = fileSys;
+        this.sliceSteps = sliceSteps;
+        workers = new Thread[threads];
+        for (int index = 0; index < threads; index++) {
+            workers[index] = new Thread(this::work, "GvmScheduler-" + index);
+            workers[index].setDaemon(true);
+            workers[index].start();
+        }
+    }
+
+    /**
+     * 创建一个运行app的GVM并开始调度
+     * @param app 要运行的程序,可以被多个GVM共用
+     * @return 新的任务
+     * @throws IllegalStateException 调度器已经关闭
+     */
+    public Task open(LavApp app) {
+        Task task = new Task(app);
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("调度器已经关闭!");
+            }
+            task.id = nextId++;
+            tasks.add(task);
+            makeReady(task, System.nanoTime());
+        } finally {
+            lock.unlock();
+        }
+        return task;
+    }
+
+    /**
+     * 得到没有结束的GVM数
+     */
+    public int getTaskCount() {
+        return tasks.size();
+    }
+
+    /**
+     * 得到工作线程数
+     */
+    public int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     * 得到至今所有调度延迟中的第p分位数的上界
+     * @param p 0到1之间的分位,如0.99
+     * @return 以纳秒计的延迟上界,还没有调度过时为0
+     */
+    public long getLatencyPercentile(double p) {
+        lock.lock();
+        try {
+            long total = 0;
+            for (long count : latencyCounts) {
+                total += count;
+            }
+            long rank = (long) Math.ceil(total * p);
+            for (int bucket = 0; bucket < latencyCounts.length; bucket++) {
+                rank -= latencyCounts[bucket];
+                if (rank <= 0 && latencyCounts[bucket] > 0) {
+                    return 1L << bucket;
+                }
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 关闭所有GVM并结束工作线程,不等待正在执行的时间片结束
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Task task : tasks) {
+            task.close();
+        }
+    }
+
+    private void work() {
+        try {
+            Task task;
+            while ((task = next()) != null) {
+                runSlice(task);
+            }
+        } catch (InterruptedException e) {
+            //结束工作线程
+        }
+    }
+
+    /**
+     * 取出下一个要执行的GVM,没有时等待直到有GVM就绪或者醒来
+     * @return 要执行的GVM,调度器已经关闭时为null
+     */
+    private Task next() throws InterruptedException {
+        lock.lock();
+        try {
+            for (;;) {
+                if (closed) {
+                    return null;
+                }
+                long now = System.nanoTime();
+                Task task;
+                while ((task = sleeping.peek()) != null && task.wakeTime - now <= 0) {
+                    sleeping.poll();
+                    //调度延迟从应当醒来的时刻算起
+                    makeReady(task, task.wakeTime);
+                }
+                task = ready.poll();
+                if (task != null) {
+                    task.state = RUNNING;
+                    task.woken = false;
+                    minVruntime = Math.max(minVruntime, task.vruntime);
+                    long latency = Math.max(now - task.readyTime, 0);
+                    latencyCounts[64 - Long.numberOfLeadingZeros(latency)]++;
+                    task.latencyNanos += latency;
+                    task.maxLatencyNanos = Math.max(task.maxLatencyNanos, latency);
+                    task.dispatchCount++;
+                    return task;
+                }
+                task = sleeping.peek();
+                if (task == null) {
+                    available.await();
+                } else {
+                    available.awaitNanos(task.wakeTime - now);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 执行task的一个时间片,然后根据停止的原因把它放回就绪队列,停放,或者结束
+     */
+    private void runSlice(Task task) throws InterruptedException {
+        long start = System.nanoTime();
+        long cpuStart = cpuTime();
+        int result;
+        try {
+            result = task.gvm.runSteps(sliceSteps);
+        } catch (InterruptedException e) {
+            //工作线程被中断,放回就绪队列后退出
+            result = JGVM.STOP_BY_COUNT;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            task.error = e;
+            result = JGVM.STOP_BY_END;
+        }
+        long end = System.nanoTime();
+        long cpuEnd = cpuTime();
+        //计入虚拟运行时间的是这个时间片用去的CPU时间,不能得到时用实际经过的时间
+        long used = cpuStart < 0 || cpuEnd < 0 ? end - start : Math.min(cpuEnd - cpuStart, end - start);
+        long delay = task.clock.takeDelay();
+        boolean dispose = false;
+        lock.lock();
+        try {
+            task.runNanos += end - start;
+            task.steps = task.gvm.getStepCount();
+            task.vruntime += used * DEFAULT_WEIGHT / task.weight;
+            if (task.state == ENDED) {
+                //执行期间被关闭
+                dispose = true;
+            } else if (result == JGVM.STOP_BY_END) {
+                task.state = ENDED;
+                dispose = true;
+            } else if (result == JGVM.WAITING_FOR_INPUT && !task.woken) {
+                task.state = WAITING;
+            } else if (delay > 0) {
+                task.state = SLEEPING;
+                task.wakeTime = end + delay * 1000000;
+                sleeping.add(task);
+                if (sleeping.peek() == task) {
+                    //可能有工作线程在等待更晚醒来的GVM
+                    available.signal();
+                }
+            } else {
+                makeReady(task, end);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (dispose) {
+            task.dispose();
+        }
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private static ThreadMXBean cpuTimer() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        try {
+            if (bean.isCurrentThreadCpuTimeSupported()) {
+                if (!bean.isThreadCpuTimeEnabled()) {
+                    bean.setThreadCpuTimeEnabled(true);
+                }
+                return bean;
+            }
+        } catch (UnsupportedOperationException | SecurityException e) {
+            //不能启用,使用实际经过的时间
+        }
+        return null;
+    }
+
+    /**
+     * 得到当前线程的CPU时间,以纳秒计
+     * @return CPU时间,不支持时为-1
+     */
+    private static long cpuTime() {
+        return CPU_TIMER == null ? -1 : CPU_TIMER.getCurrentThreadCpuTime();
+    }
+
+    /**
+     * 把task放入就绪队列,应在持有lock时调用
+     * @param time 就绪的时刻,以System.nanoTime()计
+     */
+    private void makeReady(Task task, long time) {
+        task.state = READY;
+        task.readyTime = time;
+        task.vruntime = Math.max(task.vruntime, minVruntime);
+        ready.add(task);
+        available.signal();
+    }
+
+    /**
+     * 由调度器运行的一个GVM.除getScreenModel得到的ScreenModel外,所有方法都可以在任意线程中调用
+     */
+    public final class Task {
+
+        private final ActionKeyModel keys = new ActionKeyModel();
+        private final ScreenModel screen = ScreenModel.newScreenModel();
+        private final ParkingClock clock = new ParkingClock();
+        private final JGVM gvm;
+        private final long openTime = System.nanoTime();
+        //以下字段由lock保护
+        private long id;
+        private int state;
+        private int weight = DEFAULT_WEIGHT;
+        private long vruntime;
+        //进入就绪队列的时刻,以及SLEEPING时醒来的时刻
+        private long readyTime, wakeTime;
+        //执行期间是否有键按下
+        private boolean woken;
+        private long latencyNanos, maxLatencyNanos, dispatchCount;
+        private volatile long steps, runNanos;
+        private volatile RuntimeException error;
+
+        private Task(LavApp app) {
+            gvm = JGVM.newGVM(config, new DefaultFileModel(fileSys, false), screen, keys, clock);
+            gvm.setNonBlocking(true);
+            gvm.loadApp(app);
+        }
+
+        /**
+         * 得到GVM的ScreenModel,应通过它的FrameExchange读取屏幕,或者添加监听器
+         */
+        public ScreenModel getScreenModel() {
+            return screen;
+        }
+
+        /**
+         * 按下key并保持到下一次press,press(0)松开所有键;等待按键的GVM会被重新调度
+         * @see ActionKeyModel#press(char)
+         */
+        public void press(char key) {
+            keys.press(key);
+            if (key == 0) {
+                return;
+            }
+            lock.lock();
+            try {
+                if (state == WAITING) {
+                    makeReady(this, System.nanoTime());
+                } else if (state == RUNNING) {
+                    //这个时间片可能已经没有读到按键,结束时不要停放
+                    woken = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 得到当前状态
+         * @return READY,RUNNING,SLEEPING,WAITING或ENDED之一
+         */
+        public int getState() {
+            lock.lock();
+            try {
+                return state;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 设置权重,同时可以执行的GVM分得的CPU时间与权重成正比
+         * @param weight 权重,默认为DEFAULT_WEIGHT
+         * @throws IllegalArgumentException weight不是正数
+         */
+        public void setWeight(int weight) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive!");
+            }
+            lock.lock();
+            try {
+                this.weight = weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 得到GVM执行时发生的错误,没有时返回null
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        /**
+         * 得到至今执行的指令数,每个时间片结束时更新
+         */
+        public long getStepCount() {
+            return steps;
+        }
+
+        /**
+         * 得到至今在工作线程中执行的纳秒数
+         */
+        public long getRunNanos() {
+            return runNanos;
+        }
+
+        /**
+         * 得到自打开以来平均每秒执行的指令数
+         */
+        public double getInstructionsPerSecond() {
+            return steps * 1e9 / Math.max(System.nanoTime() - openTime, 1);
+        }
+
+        /**
+         * 得到被调度的次数
+         */
+        public long getDispatchCount() {
+            lock.lock();
+            try {
+                return dispatchCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 得到平均调度延迟,以纳秒计
+         */
+        public long getMeanLatencyNanos() {
+            lock.lock();
+            try {
+                return dispatchCount == 0 ? 0 : latencyNanos / dispatchCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 得到最大调度延迟,以纳秒计
+         */
+        public long getMaxLatencyNanos() {
+            lock.lock();
+            try {
+                return maxLatencyNanos;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 结束GVM;正在执行时在这个时间片结束后释放
+         */
+        public void close() {
+            int old;
+            lock.lock();
+            try {
+                old = state;
+                if (old == READY) {
+                    ready.remove(this);
+                } else if (old == SLEEPING) {
+                    sleeping.remove(this);
+                }
+                state = ENDED;
+            } finally {
+                lock.unlock();
+            }
+            if (old != RUNNING && old != ENDED) {
+                dispose();
+            }
+        }
+
+        private void dispose() {
+            gvm.dispose();
+            tasks.remove(this);
+        }
+    }
+
+    /**
+     * 使用系统时间的时钟,但sleep不挂起线程,只记下Delay的时间,由调度器在时间片结束后停放GVM.
+     * Delay之后GVM总是结束当前这批指令,因此停放发生在执行下一条指令之前
+     */
+    private static final class ParkingClock implements Clock {
+
+        private long delay;
+
+        public long currentTimeMillis(long stepCount) {
+            return System.currentTimeMillis();
+        }
+
+        public void sleep(long millis, long stepCount) {
+            delay += millis;
+        }
+
+        long takeDelay() {
+            long result = delay;
+            delay = 0;
+            return result;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int slice = 10000;
+        int seconds = 10;
+        String root = "GVM_ROOT";
+        String lav = null;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-vms":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "-slice":
+                        slice = Integer.parseInt(value);
+                        break;
+                    case "-seconds":
+                        seconds = Integer.parseInt(value);
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lav == null) {
+                throw new IllegalArgumentException("No lav file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(lav);
+        if (!file.isFile()) {
+            file = new File(root, lav);
+        }
+        LavApp app;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            app = LavApp.createLavApp(file.getName(), in);
+        }
+        //同时运行很多GVM,使用按页分配的非平坦内存,没有用到的页不占用空间,fork时也可以按页共享
+        GvmScheduler scheduler = new GvmScheduler(new GvmConfig(0x6000, 1024, 512, 0x10, false), new FileSysSE(root),
+                threads, slice);
+        List<Task> list = new ArrayList<>(count);
+        long start = System.nanoTime();
+        for (int index = 0; index < count; index++) {
+            list.add(scheduler.open(app));
+        }
+        //每10毫秒给随机的一部分GVM一个随机的按键,模拟用户的操作
+        char[] keys = {ScriptedKeyModel.KEY_UP, ScriptedKeyModel.KEY_DOWN, ScriptedKeyModel.KEY_LEFT,
+            ScriptedKeyModel.KEY_RIGHT, ScriptedKeyModel.KEY_ENTER, ScriptedKeyModel.KEY_ESC, ' '};
+        Random random = new Random(0);
+        long deadline = start + seconds * 1000000000L;
+        while (System.nanoTime() - deadline < 0) {
+            for (int n = Math.max(count / 50, 1); n > 0; n--) {
+                list.get(random.nextInt(count)).press(keys[random.nextInt(keys.length)]);
+            }
+            Thread.sleep(10);
+        }
+        long time = System.nanoTime() - start;
+        int[] states = new int[ENDED + 1];
+        double[] rates = new double[count];
+        long instructions = 0, busy = 0;
+        for (int index = 0; index < count; index++) {
+            Task task = list.get(index);
+            states[task.getState()]++;
+            rates[index] = task.getInstructionsPerSecond();
+            instructions += task.getStepCount();
+            busy += task.getRunNanos();
+        }
+        Arrays.sort(rates);
+        scheduler.close();
+
+        System.out.println("app:                " + file.getName());
+        System.out.println("vms:                " + count + " threads: " + threads + " slice: " + slice);
+        System.out.println("states:             ready " + states[READY] + ", running " + states[RUNNING] + ", sleeping "
+                + states[SLEEPING] + ", waiting " + states[WAITING] + ", ended " + states[ENDED]);
+        System.out.printf("MIPS:               %.2f%n", instructions * 1e3 / time);
+        System.out.printf("thread utilization: %.1f%%%n", busy * 100.0 / time / threads);
+        System.out.printf("per-VM ips:         min %.0f, median %.0f, max %.0f%n", rates[0], rates[count / 2], rates[count - 1]);
+        System.out.printf("sched latency:      p50 < %.1f us, p99 < %.1f us, max < %.1f us%n",
+                scheduler.getLatencyPercentile(0.5) / 1e3, scheduler.getLatencyPercentile(0.99) / 1e3,
+                scheduler.getLatencyPercentile(1) / 1e3);
+    }
+}
@@ -0,0 +1,184 @@
+package eastsun.jgvm.platform;
+
+import eastsun.jgvm.module.Clock;
+import eastsun.jgvm.module.GvmConfig;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.RealClock;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.VirtualClock;
+import eastsun.jgvm.module.KeyModel;
+import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.InputRecorder;
+import eastsun.jgvm.module.io.InputReplayer;
+import eastsun.jgvm.module.io.ScriptedKeyModel;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 不使用任何AWT或Swing类,以最快速度运行一个lav程序,然后输出执行的指令数,所用时间与MIPS<p>
+ * 按键由ScriptedKeyModel按给定的序列提供,结束后可以把屏幕保存为PBM图像.
+ * 默认使用VirtualClock,Delay不会真正等待;指定-realtime时使用系统时间.
+ * 可以用-record把这次运行的输入保存下来,或者用-replay重现保存的输入,此时忽略-keys与-realtime.用法:<p>
+ * HeadlessRunner [-steps 最多执行的指令数] [-keys 按键序列] [-period 每个键保持的查询次数]
+ * [-dump 图像文件] [-root 根目录] [-realtime] [-record 记录文件] [-replay 记录文件] lav文件<p>
+ * lav文件不存在时在根目录(默认为GVM_ROOT)中查找
+ */
+public final class HeadlessRunner {
+
+    private static final String USAGE = "Usage: HeadlessRunner [-steps n] [-keys script] [-period n] [-dump file.pbm] [-root dir] [-realtime] [-record file] [-replay file] app.lav";
+    private static final int BATCH_STEPS = 100000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long maxSteps = Long.MAX_VALUE;
+        String keys = "ENTER";
+        int period = 50;
+        String dump = null;
+        String root = "GVM_ROOT";
+        String lav = null;
+        boolean realtime = false;
+        String record = null;
+        String replay = null;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (arg.equals("-realtime")) {
+                    realtime = true;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-steps":
+                        maxSteps = Long.parseLong(value);
+                        break;
+                    case "-keys":
+                        keys = value;
+                        break;
+                    case "-period":
+                        period = Integer.parseInt(value);
+                        break;
+                    case "-dump":
+                        dump = value;
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    case "-record":
+                        record = value;
+                        break;
+                    case "-replay":
+                        replay = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lav == null) {
+                throw new IllegalArgumentException("No lav file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(lav);
+        if (!file.isFile()) {
+            file = new File(root, lav);
+        }
+        LavApp app;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            app = LavApp.createLavApp(file.getName(), in);
+        }
+
+        KeyModel keyModel;
+        Clock clock;
+        InputReplayer replayer = null;
+        if (replay != null) {
+            try (InputStream in = new FileInputStream(replay)) {
+                replayer = new InputReplayer(in);
+            }
+            keyModel = replayer.getKeyModel();
+            clock = replayer.getClock();
+        } else {
+            keyModel = new ScriptedKeyModel(ScriptedKeyModel.parseKeys(keys), period);
+            clock = realtime ? RealClock.INSTANCE : new VirtualClock();
+        }
+        InputRecorder recorder = null;
+        if (record != null) {
+            recorder = new InputRecorder(keyModel, clock);
+            keyModel = recorder.getKeyModel();
+            clock = recorder.getClock();
+        }
+
+        ScreenModel screenModel = ScreenModel.newScreenModel();
+        JGVM gvm = JGVM.newGVM(new GvmConfig(0x6000, 1024, 512, 0x10, true), new DefaultFileModel(new FileSysSE(root)), screenModel,
+                keyModel, clock);
+        if (replayer != null) {
+            replayer.attach(gvm);
+        }
+        if (recorder != null) {
+            recorder.attach(gvm);
+        }
+        gvm.loadApp(app);
+        if (recorder != null) {
+            recorder.start();
+        }
+
+        long start = System.nanoTime();
+        try {
+            while (!gvm.isEnd() && gvm.getStepCount() < maxSteps) {
+                gvm.runSteps((int) Math.min(BATCH_STEPS, maxSteps - gvm.getStepCount()));
+            }
+        } catch (IllegalStateException e) {
+            //记录用完时正常结束重现
+            if (replayer == null || replayer.hasNext()) {
+                throw e;
+            }
+        }
+        long time = System.nanoTime() - start;
+        long steps = gvm.getStepCount();
+
+        System.out.println("app:          " + file.getName());
+        System.out.println("end:          " + gvm.isEnd());
+        System.out.println("instructions: " + steps);
+        System.out.printf("time:         %.1f ms%n", time / 1e6);
+        System.out.printf("MIPS:         %.2f%n", steps * 1e3 / Math.max(time, 1));
+
+        if (dump != null) {
+            //GVM已经停止,直接复制显存
+            byte[] frame = new byte[screenModel.getWidth() * screenModel.getHeight() / 8];
+            screenModel.copyFrame(frame, 0);
+            writePbm(dump, frame, screenModel.getWidth(), screenModel.getHeight());
+        }
+        if (recorder != null) {
+            try (OutputStream out = new FileOutputStream(record)) {
+                recorder.writeTo(out);
+            }
+        }
+        gvm.dispose();
+    }
+
+    /**
+     * 保存为二进制PBM格式,该格式与屏幕数据一样为每像素1位,最高位在左,1为黑色
+     */
+    private static void writePbm(String fileName, byte[] frame, int width, int height) throws IOException {
+        try (OutputStream out = new FileOutputStream(fileName)) {
+            out.write(("P4\n" + width + " " + height + "\n").getBytes("US-ASCII"));
+            out.write(frame, 0, width * height / 8);
+        }
+    }
+}
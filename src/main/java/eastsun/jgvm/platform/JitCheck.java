@@ -0,0 +1,143 @@
+package eastsun.jgvm.platform;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 检查GVM的指令分派循环DefaultGVM.execute能否被C2(第4层)编译<p>
+ * 在一个新的JVM中以-XX:+PrintCompilation用HeadlessRunner运行一个lav程序,分析编译日志.
+ * execute达到第4层时退出码为0,否则为1.callSystem等其它方法只输出结果,不影响退出码.
+ * 结果与JVM参数,编译阈值以及机器负载有关,因此不在check中运行,需要时用gradle jitCheck单独运行.
+ * 用法:<p>
+ * JitCheck [-steps 指令数] [-root 根目录] lav文件
+ */
+public final class JitCheck {
+
+    private static final String USAGE = "Usage: JitCheck [-steps n] [-root dir] app.lav";
+    private static final String GVM_CLASS = "eastsun.jgvm.module.DefaultGVM";
+    /**
+     * 必须达到第4层的方法
+     */
+    private static final String REQUIRED = "execute";
+    /**
+     * 只输出编译层次的方法
+     */
+    private static final String[] REPORTED = {"runSteps", "callSystem"};
+    //PrintCompilation的一行:时间,编译号,属性,层次,方法名.HeadlessRunner的输出可能与它混在同一行,所以不匹配行首
+    private static final Pattern LINE = Pattern.compile(
+            "\\d+\\s+\\d+\\s+([%sbn! ]*?)\\s*(\\d)\\s+" + Pattern.quote(GVM_CLASS) + "::(\\w+)\\b(.*)$");
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long steps = 20000000;
+        String root = "GVM_ROOT";
+        String lav = null;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-steps":
+                        steps = Long.parseLong(value);
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lav == null) {
+                throw new IllegalArgumentException("No lav file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.add("-XX:+PrintCompilation");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HeadlessRunner.class.getName());
+        command.add("-steps");
+        command.add(String.valueOf(steps));
+        command.add("-root");
+        command.add(root);
+        command.add(lav);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        //每个方法达到的最高层次,以及第4层代码被废弃的次数
+        int requiredTier = -1;
+        int[] reportedTier = new int[REPORTED.length];
+        Arrays.fill(reportedTier, -1);
+        int deoptimized = 0;
+        boolean osr = false;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                Matcher m = LINE.matcher(line);
+                if (!m.find()) {
+                    continue;
+                }
+                int tier = Integer.parseInt(m.group(2));
+                String method = m.group(3);
+                boolean notEntrant = m.group(4).contains("made not entrant");
+                if (method.equals(REQUIRED)) {
+                    if (notEntrant) {
+                        if (tier == 4) {
+                            deoptimized++;
+                        }
+                    } else if (tier > requiredTier) {
+                        requiredTier = tier;
+                        osr = m.group(1).indexOf('%') >= 0;
+                    }
+                    continue;
+                }
+                for (int index = 0; index < REPORTED.length; index++) {
+                    if (method.equals(REPORTED[index]) && !notEntrant) {
+                        reportedTier[index] = Math.max(reportedTier[index], tier);
+                    }
+                }
+            }
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            System.out.println("HeadlessRunner exited with " + exit);
+            System.exit(1);
+        }
+
+        System.out.println("app:          " + lav);
+        System.out.println("steps:        " + steps);
+        System.out.printf("%-14s%s%s%s%n", REQUIRED + ":", tierName(requiredTier),
+                osr ? " (OSR)" : "", deoptimized > 0 ? ", deoptimized " + deoptimized + " times" : "");
+        for (int index = 0; index < REPORTED.length; index++) {
+            System.out.printf("%-14s%s%n", REPORTED[index] + ":", tierName(reportedTier[index]));
+        }
+        if (requiredTier < 4) {
+            System.out.println("FAILED: " + GVM_CLASS + "::" + REQUIRED + " did not reach tier 4");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static String tierName(int tier) {
+        return tier < 0 ? "not compiled" : "tier " + tier;
+    }
+}
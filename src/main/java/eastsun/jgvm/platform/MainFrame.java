@@ -3,12 +3,17 @@ package eastsun.jgvm.platform;
 import eastsun.jgvm.module.GvmConfig;
 import eastsun.jgvm.module.JGVM;
 import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.RealClock;
+import eastsun.jgvm.module.RewindBuffer;
+import eastsun.jgvm.module.RunControl;
 import eastsun.jgvm.module.ScreenModel;
 import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.InputRecorder;
 
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
@@ -27,13 +32,22 @@ public class MainFrame extends JFrame {
     private final JFileChooser fileChooser;
     private final JLabel msgLabel;
     private final ScreenPane screenPane;
-    private JMenuItem menuItemLoad, menuItemRun, menuItemStop, menuMemEdit;
+    private JMenuItem menuItemLoad, menuItemRun, menuItemStep, menuItemStop, menuItemRewind, menuItemSaveRecord, menuMemEdit;
+    // 记录运行时的输入,可以保存下来用HeadlessRunner重现
+    private final InputRecorder recorder;
+    private boolean isRecordEnabled;
+    // 运行时每帧记录状态,可以倒带;配置中没有分配内存时为null
+    private final RewindBuffer rewindBuffer;
 
     private Status status;
 
     private static final int steps = Config.getSteps();
     private static final int delay = Config.getDelay();
     private static volatile boolean isDelayEnabled = Config.isDelayEnabled();
+    // 不减速时每批执行的指令数,暂停与停止在批与批之间响应
+    private static final int BATCH_STEPS = 10000;
+    // 每按一次倒带键退回的帧数,按住时连续退回
+    private static final int REWIND_FRAMES = 10;
 
 
     public MainFrame() {
@@ -43,7 +57,16 @@ public class MainFrame extends JFrame {
 
         ScreenModel screenModel = ScreenModel.newScreenModel();
 
-        gvm = JGVM.newGVM(new GvmConfig(), new DefaultFileModel(new FileSysSE("GVM_ROOT")), screenModel, keyBoard.getKeyModel());
+        recorder = new InputRecorder(keyBoard.getKeyModel(), RealClock.INSTANCE);
+        gvm = JGVM.newGVM(new GvmConfig(0x6000, 1024, 512, 0x10, true), new DefaultFileModel(new FileSysSE("GVM_ROOT")), screenModel,
+                recorder.getKeyModel(), recorder.getClock());
+        recorder.attach(gvm);
+        if (Config.getRewindMemory() > 0) {
+            rewindBuffer = new RewindBuffer(Config.getRewindMemory() * 1024, Config.getRewindFrames(), Config.getRewindFrameSteps());
+            gvm.setRewindBuffer(rewindBuffer);
+        } else {
+            rewindBuffer = null;
+        }
 
         screenPane = new ScreenPane(screenModel);
 
@@ -74,30 +97,43 @@ public class MainFrame extends JFrame {
         case INITIAL:
             menuItemLoad.setEnabled(true);
             menuItemRun.setEnabled(false);
+            menuItemStep.setEnabled(false);
             menuItemStop.setEnabled(false);
+            menuItemRewind.setEnabled(false);
+            menuItemSaveRecord.setEnabled(false);
             menuItemRun.setText("运行");
             msgLabel.setText("准备就绪");
             break;
         case LOADED:
             menuItemLoad.setEnabled(true);
             menuItemRun.setEnabled(true);
+            menuItemStep.setEnabled(false);
             menuItemStop.setEnabled(false);
+            menuItemRewind.setEnabled(false);
+            menuItemSaveRecord.setEnabled(recorder.hasRecord());
             menuItemRun.setText("运行");
             msgLabel.setText("已加载 [" + lavApp.getName() + "]");
             break;
         case RUNNING:
             menuItemLoad.setEnabled(false);
             menuItemRun.setEnabled(true);
+            menuItemStep.setEnabled(false);
             menuItemStop.setEnabled(true);
+            menuItemRewind.setEnabled(rewindBuffer != null);
+            menuItemSaveRecord.setEnabled(false);
             menuItemRun.setText("暂停");
             msgLabel.setText("正在运行");
             break;
         case PAUSED:
             menuItemLoad.setEnabled(false);
             menuItemRun.setEnabled(true);
+            menuItemStep.setEnabled(true);
             menuItemStop.setEnabled(true);
+            menuItemRewind.setEnabled(false);
+            menuItemSaveRecord.setEnabled(false);
             menuItemRun.setText("继续");
-            msgLabel.setText("已暂停");
+            RenderScheduler scheduler = screenPane.getRenderScheduler();
+            msgLabel.setText("已暂停 (显示 " + scheduler.getPresentedFrames() + " 帧, 丢弃 " + scheduler.getDroppedFrames() + " 帧)");
             break;
         }
     }
@@ -133,6 +169,10 @@ public class MainFrame extends JFrame {
             updateStatus(newStatus);
         });
 
+        menuItemStep = menuFile.add(new JMenuItem("单步"));
+        menuItemStep.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F7, 0));
+        menuItemStep.addActionListener(e -> vmThread.step());
+
         menuItemStop = menuFile.add(new JMenuItem("停止"));
         menuItemStop.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F6, 0));
         menuItemStop.addActionListener(e -> {
@@ -140,6 +180,17 @@ public class MainFrame extends JFrame {
             // updateStatus(Status.LOADED); // VMThread结束时会更新status
         });
 
+        menuItemRewind = menuFile.add(new JMenuItem("倒带"));
+        menuItemRewind.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F8, 0));
+        menuItemRewind.setEnabled(false);
+        menuItemRewind.addActionListener(e -> vmThread.rewind(REWIND_FRAMES));
+
+        menuFile.addSeparator();
+
+        menuItemSaveRecord = menuFile.add(new JMenuItem("保存输入记录"));
+        menuItemSaveRecord.setEnabled(false);
+        menuItemSaveRecord.addActionListener(e -> saveRecord());
+
         menuFile.addSeparator();
 
         JMenuItem menuItemExit = menuFile.add(new JMenuItem("退出"));
@@ -154,6 +205,17 @@ public class MainFrame extends JFrame {
         menuEnableDelay.addItemListener(e -> isDelayEnabled = menuEnableDelay.isSelected());
         menuEnableDelay.setSelected(isDelayEnabled);
 
+        JCheckBoxMenuItem menuUncapped = new JCheckBoxMenuItem("不限制帧率");
+        menuSet.add(menuUncapped);
+
+        menuUncapped.addItemListener(e -> screenPane.getRenderScheduler().setCapped(!menuUncapped.isSelected()));
+
+        JCheckBoxMenuItem menuRecord = new JCheckBoxMenuItem("录制输入");
+        menuSet.add(menuRecord);
+
+        // 下次运行时生效
+        menuRecord.addItemListener(e -> isRecordEnabled = menuRecord.isSelected());
+
         return menuBar;
     }
 
@@ -172,29 +234,43 @@ public class MainFrame extends JFrame {
         }
     }
 
+    private void saveRecord() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(lavApp.getName() + ".gvmr"));
+        if (chooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(chooser.getSelectedFile()))) {
+                recorder.writeTo(out);
+            } catch (IOException e) {
+                e.printStackTrace();
+
+                JOptionPane.showMessageDialog(this, "保存失败:" + e.getMessage(), TITLE, JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
     private void start() {
         gvm.loadApp(lavApp);
+        if (isRecordEnabled) {
+            recorder.start();
+        } else {
+            recorder.discard();
+        }
 
         vmThread = new VMThread();
         vmThread.start();
-        screenPane.startRendering();
     }
 
     private void resume() {
-        screenPane.startRendering();
         vmThread.setPaused(false);
     }
 
     private void pause() {
         vmThread.setPaused(true);
-        screenPane.stopRendering();
     }
 
     private void stop() {
-        screenPane.stopRendering();
-
         if (vmThread != null && vmThread.isAlive()) {
-            vmThread.interrupt();
+            vmThread.terminate();
             try {
                 vmThread.join();
             } catch (InterruptedException e) {
@@ -205,24 +281,21 @@ public class MainFrame extends JFrame {
 
     private class VMThread extends Thread {
 
-        private boolean isPaused;
-
-        VMThread() {
-            setPaused(false);
-        }
+        private final RunControl control = new RunControl(false);
+        // 请求退回的帧数,由执行线程在批与批之间处理
+        private final AtomicInteger rewindRequest = new AtomicInteger();
 
         public void run() {
             try {
-                int step = 0;
-                while (!(gvm.isEnd() || isInterrupted())) {
-                    while (isPaused()) {
-                        synchronized (this) {
-                            wait();
-                        }
+                int count;
+                while (!gvm.isEnd() && (count = control.acquire(isDelayEnabled ? steps : BATCH_STEPS)) > 0) {
+                    int frames = rewindRequest.getAndSet(0);
+                    if (frames > 0 && rewindBuffer.stepBack(frames) >= 0) {
+                        // 倒带后之前的输入记录已经无法重现这次运行
+                        recorder.discard();
                     }
-                    gvm.nextStep();
-                    if (++step >= steps && isDelayEnabled) {
-                        step = 0;
+                    // runSteps结束时会通知screenPane重绘被修改的区域
+                    if (gvm.runSteps(count) == JGVM.STOP_BY_COUNT && isDelayEnabled) {
                         Thread.sleep(0, delay);
                     }
                 }
@@ -237,15 +310,29 @@ public class MainFrame extends JFrame {
             }
         }
 
-        synchronized boolean isPaused() {
-            return isPaused;
+        void setPaused(boolean p) {
+            if (p) {
+                control.pause();
+            } else {
+                control.resume();
+            }
         }
 
-        synchronized void setPaused(boolean p) {
-            if (p != isPaused) {
-                isPaused = p;
-                notifyAll();
-            }
+        void step() {
+            control.step();
+        }
+
+        /**
+         * 请求退回frames帧,在当前这批指令结束后生效;阻塞在getchar等系统函数中时要等它返回
+         */
+        void rewind(int frames) {
+            rewindRequest.addAndGet(frames);
+        }
+
+        void terminate() {
+            control.stop();
+            // 中断可能阻塞在getchar等系统函数中的执行线程
+            interrupt();
         }
     }
 
@@ -0,0 +1,134 @@
+package eastsun.jgvm.platform;
+
+import java.awt.DisplayMode;
+import java.awt.EventQueue;
+import java.awt.GraphicsEnvironment;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+/**
+ * 屏幕重绘调度器,把GVM发出的帧就绪信号合并为对组件的重绘<p>
+ * 限制帧率时每个显示刷新周期最多重绘一次,不限制时每次在事件线程空闲时立即重绘.<p>
+ * 没有新帧时不做任何工作.调度器统计实际显示的帧数,以及在显示前就被新帧覆盖而丢弃的帧数
+ */
+public final class RenderScheduler {
+
+    private static final int DEFAULT_REFRESH_RATE = 60;
+    private final JComponent target;
+    private final long frameInterval;
+    private volatile boolean capped = true;
+    //是否已经向事件线程提交了重绘任务
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    //等待重绘的区域,组件坐标,访问时需同步
+    private final Rectangle dirty = new Rectangle();
+    //就绪的帧数,只由GVM执行线程修改
+    private volatile long readyFrames;
+    //显示与丢弃的帧数,只由事件线程修改
+    private volatile long presentedFrames, droppedFrames;
+    //以下只在事件线程中访问
+    private long countedFrames;
+    private long lastPresentTime;
+    private final Timer delayTimer;
+
+    /**
+     * 创建一个调度器,帧率上限为默认屏幕的刷新率
+     * @param target 需要重绘的组件
+     */
+    public RenderScheduler(JComponent target) {
+        this.target = target;
+        this.frameInterval = 1000000000L / getRefreshRate();
+        delayTimer = new Timer(0, e -> present());
+        delayTimer.setRepeats(false);
+    }
+
+    private static int getRefreshRate() {
+        try {
+            int rate = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getRefreshRate();
+            return rate == DisplayMode.REFRESH_RATE_UNKNOWN ? DEFAULT_REFRESH_RATE : rate;
+        } catch (HeadlessException e) {
+            return DEFAULT_REFRESH_RATE;
+        }
+    }
+
+    /**
+     * 设置是否限制帧率,不限制时适合测试性能
+     */
+    public void setCapped(boolean capped) {
+        this.capped = capped;
+    }
+
+    public boolean isCapped() {
+        return capped;
+    }
+
+    /**
+     * 得到已经显示的帧数
+     */
+    public long getPresentedFrames() {
+        return presentedFrames;
+    }
+
+    /**
+     * 得到在显示前就被新帧覆盖的帧数
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * 通知有新的一帧就绪,可以在任何线程中调用,不会阻塞
+     * @param x 需要重绘区域的左上角横坐标,组件坐标
+     * @param y 需要重绘区域的左上角纵坐标,组件坐标
+     * @param width 需要重绘区域的宽度
+     * @param height 需要重绘区域的高度
+     */
+    public void frameReady(int x, int y, int width, int height) {
+        synchronized (dirty) {
+            if (dirty.isEmpty()) {
+                dirty.setBounds(x, y, width, height);
+            } else {
+                dirty.add(new Rectangle(x, y, width, height));
+            }
+        }
+        readyFrames++;
+        if (scheduled.compareAndSet(false, true)) {
+            EventQueue.invokeLater(this::onFrameReady);
+        }
+    }
+
+    private void onFrameReady() {
+        if (capped) {
+            long wait = lastPresentTime + frameInterval - System.nanoTime();
+            if (wait > 0) {
+                delayTimer.setInitialDelay((int) ((wait + 999999) / 1000000));
+                delayTimer.restart();
+                return;
+            }
+        }
+        present();
+    }
+
+    private void present() {
+        //先清除标志,之后就绪的帧会重新提交任务
+        scheduled.set(false);
+        Rectangle rect;
+        synchronized (dirty) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            rect = dirty.getBounds();
+            dirty.setBounds(0, 0, 0, 0);
+        }
+        long ready = readyFrames;
+        if (ready - countedFrames > 1) {
+            droppedFrames += ready - countedFrames - 1;
+        }
+        countedFrames = ready;
+        presentedFrames++;
+        lastPresentTime = System.nanoTime();
+        target.paintImmediately(rect);
+    }
+}
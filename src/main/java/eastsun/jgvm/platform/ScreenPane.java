@@ -1,68 +1,75 @@
 package eastsun.jgvm.platform;
 
+import eastsun.jgvm.module.FrameExchange;
+import eastsun.jgvm.module.ScreenChangeListener;
 import eastsun.jgvm.module.ScreenModel;
-import eastsun.jgvm.module.ram.ScreenRam;
 
 import java.awt.*;
-import java.awt.image.*;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.awt.image.BufferedImage;
 import javax.swing.JPanel;
 
 /**
+ * 显示GVM屏幕的面板,只在ScreenModel通知屏幕改变时重绘被修改的区域<p>
+ * 重绘通过RenderScheduler调度,多次通知会被合并为一次重绘.绘制时使用FrameExchange中最近发布的完整帧,不直接读取GVM正在修改的显存.
+ * 帧由FrameRenderer转换为已放大的图像,绘制时不需要缩放
  * @version Aug 13, 2008
  * @author Eastsun
  */
 public class ScreenPane extends JPanel {
-    private final BufferedImage bufImg;
-
-    private final Timer renderTimer = new Timer();
-    private TimerTask renderTimerTask;
+    private final FrameExchange frames;
+    //把帧转换为已放大的图像
+    private final FrameRenderer renderer;
+    private final int screenWidth, screenHeight;
+    private final RenderScheduler scheduler;
 
     public ScreenPane(ScreenModel screenModel) {
-        int screenWidth = screenModel.getWidth();
-        int screenHeight = screenModel.getHeight();
+        screenWidth = screenModel.getWidth();
+        screenHeight = screenModel.getHeight();
 
         final int bgColor = Config.getBackgroundColor();
         final int fgColor = Config.getForegroundColor();
-
-        ColorModel colorModel = new IndexColorModel(1, 2,
-                new int[] { bgColor, fgColor },
-                0, false, -1, DataBuffer.TYPE_BYTE);
-        WritableRaster raster = WritableRaster.createPackedRaster(
-                new DataBufferByte(((ScreenRam) screenModel.getGraphRam()).getInternalData(), screenWidth * screenHeight / 8),
-                screenWidth, screenHeight, 1, new Point(0, 0));
-        bufImg = new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
-
         final int pixelScale = Config.getPixelScale();
 
+        frames = screenModel.getFrameExchange();
+        renderer = new FrameRenderer(screenWidth, screenHeight, pixelScale, bgColor, fgColor);
+
         setPreferredSize(new Dimension(screenWidth * pixelScale, screenHeight * pixelScale));
-    }
 
-    @Override
-    protected void paintComponent(Graphics g) {
-        g.drawImage(bufImg, 0, 0, getWidth(), getHeight(), null);
-    }
+        scheduler = new RenderScheduler(this);
 
-    private void renderScreen() {
-        repaint();
+        screenModel.addScreenChangeListener(new ScreenChangeListener() {
+            public void screenChanged(ScreenModel screen, int x, int y, int width, int height) {
+                repaintScreen(x, y, width, height);
+            }
+        });
     }
 
-    public void startRendering() {
-        final int delay = 1000 / 60; // 60fps
-        renderTimer.scheduleAtFixedRate(renderTimerTask = new RenderTimerTask(), delay, delay);
+    /**
+     * 得到该面板使用的重绘调度器,可以用来设置帧率限制或读取帧数统计
+     */
+    public RenderScheduler getRenderScheduler() {
+        return scheduler;
     }
 
-    public void stopRendering() {
-        if (renderTimerTask != null) {
-            renderTimerTask.cancel();
+    @Override
+    protected void paintComponent(Graphics g) {
+        BufferedImage image = renderer.render(frames.getFrame(frames.acquire()));
+        if (image.getWidth() == getWidth() && image.getHeight() == getHeight()) {
+            g.drawImage(image, 0, 0, null);
+        } else {
+            g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
         }
     }
 
-    private class RenderTimerTask extends TimerTask {
-        @Override
-        public void run() {
-            EventQueue.invokeLater(ScreenPane.this::renderScreen);
-        }
+    /**
+     * 重绘屏幕上的一块区域,坐标为GVM屏幕坐标,可以在任何线程中调用
+     */
+    private void repaintScreen(int x, int y, int width, int height) {
+        int w = getWidth(), h = getHeight();
+        int left = x * w / screenWidth;
+        int top = y * h / screenHeight;
+        int right = ((x + width) * w + screenWidth - 1) / screenWidth;
+        int bottom = ((y + height) * h + screenHeight - 1) / screenHeight;
+        scheduler.frameReady(left, top, right - left, bottom - top);
     }
 }
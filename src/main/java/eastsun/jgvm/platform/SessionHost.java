@@ -0,0 +1,418 @@
+package eastsun.jgvm.platform;
+
+import eastsun.jgvm.module.GvmConfig;
+import eastsun.jgvm.module.JGVM;
+import eastsun.jgvm.module.KeyModel;
+import eastsun.jgvm.module.LavApp;
+import eastsun.jgvm.module.RealClock;
+import eastsun.jgvm.module.RunControl;
+import eastsun.jgvm.module.ScreenModel;
+import eastsun.jgvm.module.io.ActionKeyModel;
+import eastsun.jgvm.module.io.DefaultFileModel;
+import eastsun.jgvm.module.io.FileSystem;
+import eastsun.jgvm.module.io.ScriptedKeyModel;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 同时运行大量GVM会话的宿主,每个会话在自己的线程中运行一个GVM<p>
+ * 线程由构造时给定的ThreadFactory创建.newThreadFactory在支持虚拟线程的JVM上返回创建虚拟线程的工厂,
+ * 否则返回创建栈较小的后台平台线程的工厂.会话使用ActionKeyModel接收按键,等待按键,Delay以及暂停都不使用synchronized,
+ * 在虚拟线程中等待时不会占住平台线程,因此大量空闲的会话只占用内存.<p>
+ * 每个会话执行batchSteps条指令后挂起batchDelayNanos纳秒,以限制不停运行的程序占用的CPU,为0时不挂起.<p>
+ * 用作程序时打开若干会话运行同一个lav程序,等它们都开始等待按键后,输出每个空闲会话占用的内存,
+ * GVM报告的独占字节数以及按键唤醒会话的延迟.默认在虚拟线程上运行,JVM不支持虚拟线程时报错退出,
+ * 指定-platform时使用平台线程.输出中包括线程的种类与Java版本.用法:<p>
+ * SessionHost [-sessions 会话数] [-samples 唤醒次数] [-root 根目录] [-platform] lav文件
+ */
+public final class SessionHost {
+
+    private static final String USAGE = "Usage: SessionHost [-sessions n] [-samples n] [-root dir] [-platform] app.lav";
+    /**
+     * 不支持虚拟线程时平台线程的栈大小
+     */
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+    private final GvmConfig config;
+    private final FileSystem fileSys;
+    private final ThreadFactory threads;
+    private final int batchSteps;
+    private final long batchDelayNanos;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 创建一个SessionHost
+     * @param config 每个会话中GVM的配置
+     * @param fileSys GVM打开文件时使用的文件系统,所有会话共用
+     * @param threads 创建会话线程的工厂,见newThreadFactory
+     * @param batchSteps 每批执行的指令数
+     * @param batchDelayNanos 每批指令之后挂起的纳秒数
+     * @throws IllegalArgumentException batchSteps不是正数或者batchDelayNanos为负数
+     */
+    public SessionHost(GvmConfig config, FileSystem fileSys, ThreadFactory threads, int batchSteps, long batchDelayNanos) {
+        if (batchSteps <= 0 || batchDelayNanos < 0) {
+            throw new IllegalArgumentException("batchSteps must be positive, batchDelayNanos can't be negative!");
+        }
+        this.config = config;
+        this.fileSys = fileSys;
+        this.threads = threads;
+        this.batchSteps = batchSteps;
+        this.batchDelayNanos = batchDelayNanos;
+    }
+
+    /**
+     * 得到创建会话线程的工厂:JVM支持虚拟线程时创建虚拟线程,否则创建栈较小的后台平台线程
+     */
+    public static ThreadFactory newThreadFactory() {
+        try {
+            //Thread.ofVirtual().name("GVM-", 0).factory(),通过反射调用以便在不支持虚拟线程的JVM上运行
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            ofVirtual = builder.getMethod("name", String.class, long.class).invoke(ofVirtual, "GVM-", 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(ofVirtual);
+        } catch (ReflectiveOperationException e) {
+            //不支持虚拟线程
+        }
+        return newPlatformThreadFactory();
+    }
+
+    /**
+     * 得到创建栈较小的后台平台线程的工厂
+     */
+    public static ThreadFactory newPlatformThreadFactory() {
+        return r -> {
+            Thread thread = new Thread(null, r, "GVM", PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * thread是否是虚拟线程,JVM不支持虚拟线程时总是返回false
+     */
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 打开一个运行app的会话,GVM立即开始运行
+     * @param app 要运行的程序,可以被多个会话共用
+     * @return 新的会话
+     */
+    public Session open(LavApp app) {
+        Session session = new Session(app);
+        sessions.add(session);
+        session.thread.start();
+        return session;
+    }
+
+    /**
+     * 得到当前没有结束的会话数
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * 结束所有会话,不等待它们的线程退出
+     */
+    public void close() {
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * 一个会话,在自己的线程中运行一个GVM.除getScreenModel得到的ScreenModel外,所有方法都可以在任意线程中调用
+     */
+    public final class Session {
+
+        private final ActionKeyModel keys = new ActionKeyModel();
+        private final ScreenModel screen = ScreenModel.newScreenModel();
+        private final RunControl control = new RunControl(false);
+        private final JGVM gvm;
+        private final Thread thread;
+        private volatile boolean ended;
+        //最近一次开始等待按键以及等到按键的时间,以System.nanoTime()计
+        private volatile long waitTime, wakeTime;
+
+        private Session(LavApp app) {
+            keys.setWaitListener(() -> waitTime = System.nanoTime());
+            gvm = JGVM.newGVM(config, new DefaultFileModel(fileSys), screen, new TimedKeyModel(), RealClock.INSTANCE);
+            gvm.loadApp(app);
+            thread = threads.newThread(this::run);
+        }
+
+        /**
+         * 得到会话的ScreenModel,应通过它的FrameExchange读取屏幕,或者添加监听器
+         */
+        public ScreenModel getScreenModel() {
+            return screen;
+        }
+
+        /**
+         * 按下key并保持到下一次press,press(0)松开所有键
+         * @see ActionKeyModel#press(char)
+         */
+        public void press(char key) {
+            keys.press(key);
+        }
+
+        /**
+         * GVM是否正在等待按键
+         */
+        public boolean isWaiting() {
+            return keys.isWaiting();
+        }
+
+        /**
+         * 会话是否已经结束
+         */
+        public boolean isEnded() {
+            return ended;
+        }
+
+        /**
+         * 得到GVM最近一次等到按键的时间,以System.nanoTime()计,还没有等待过时为0
+         */
+        public long getWakeTime() {
+            return wakeTime;
+        }
+
+        /**
+         * 得到会话中GVM独占的内存字节数,GVM正在运行时得到的是近似值
+         * @see JGVM#getRetainedBytes()
+         */
+        public long getRetainedBytes() {
+            return gvm.getRetainedBytes();
+        }
+
+        /**
+         * 暂停运行
+         */
+        public void pause() {
+            control.pause();
+        }
+
+        /**
+         * 恢复运行
+         */
+        public void resume() {
+            control.resume();
+        }
+
+        /**
+         * 结束会话,GVM在当前这批指令结束,或者等待按键,Delay被打断后停止
+         */
+        public void close() {
+            control.stop();
+            keys.cancel();
+            thread.interrupt();
+        }
+
+        private void run() {
+            try {
+                int count;
+                while (!gvm.isEnd() && (count = control.acquire(batchSteps)) > 0) {
+                    if (gvm.runSteps(count) == JGVM.STOP_BY_COUNT && batchDelayNanos > 0) {
+                        LockSupport.parkNanos(batchDelayNanos);
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                gvm.dispose();
+                ended = true;
+                sessions.remove(this);
+            }
+        }
+
+        /**
+         * 把调用转交给keys,并记录等到按键的时间
+         */
+        private class TimedKeyModel implements KeyModel {
+
+            public void releaseKey(char key) {
+                keys.releaseKey(key);
+            }
+
+            public char checkKey(char key) {
+                return keys.checkKey(key);
+            }
+
+            public char getchar() throws InterruptedException {
+                return (char) getRawKey();
+            }
+
+            public char inkey() {
+                return keys.inkey();
+            }
+
+            public int getRawKey() throws InterruptedException {
+                long start = waitTime;
+                int key = keys.getRawKey();
+                if (waitTime != start) {
+                    wakeTime = System.nanoTime();
+                }
+                return key;
+            }
+
+            public int pollchar() {
+                return keys.pollchar();
+            }
+
+            public int pollRawKey() {
+                return keys.pollRawKey();
+            }
+
+            public SysInfo getSysInfo() {
+                return keys.getSysInfo();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = 1000;
+        int samples = 200;
+        String root = "GVM_ROOT";
+        String lav = null;
+        boolean platform = false;
+        try {
+            for (int index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (!arg.startsWith("-")) {
+                    lav = arg;
+                    continue;
+                }
+                if (arg.equals("-platform")) {
+                    platform = true;
+                    continue;
+                }
+                if (index + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + arg);
+                }
+                String value = args[++index];
+                switch (arg) {
+                    case "-sessions":
+                        count = Integer.parseInt(value);
+                        break;
+                    case "-samples":
+                        samples = Integer.parseInt(value);
+                        break;
+                    case "-root":
+                        root = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+            }
+            if (lav == null) {
+                throw new IllegalArgumentException("No lav file");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        //不能得到虚拟线程时报错,而不是悄悄地输出平台线程的结果
+        ThreadFactory factory = platform ? newPlatformThreadFactory() : newThreadFactory();
+        if (!platform && !isVirtual(factory.newThread(() -> {
+        }))) {
+            System.err.println("Virtual threads are not supported by Java " + System.getProperty("java.version") +
+                    ", use -platform to measure platform threads");
+            System.exit(1);
+            return;
+        }
+        File file = new File(lav);
+        if (!file.isFile()) {
+            file = new File(root, lav);
+        }
+        LavApp app;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            app = LavApp.createLavApp(file.getName(), in);
+        }
+        //空闲会话以内存为主要开销,使用按页分配的非平坦内存
+        SessionHost host = new SessionHost(new GvmConfig(0x6000, 1024, 512, 0x10, false), new FileSysSE(root),
+                factory, 10000, 1000000);
+        Runtime runtime = Runtime.getRuntime();
+        long before = usedMemory(runtime);
+
+        List<Session> list = new ArrayList<>(count);
+        for (int index = 0; index < count; index++) {
+            list.add(host.open(app));
+        }
+        //等待所有会话开始等待按键,最多等30秒
+        long deadline = System.nanoTime() + 30000000000L;
+        int waiting = 0;
+        while (System.nanoTime() - deadline < 0) {
+            waiting = 0;
+            for (Session session : list) {
+                if (session.isWaiting()) {
+                    waiting++;
+                }
+            }
+            if (waiting == count) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        long after = usedMemory(runtime);
+        long retained = 0;
+        for (Session session : list) {
+            retained += session.getRetainedBytes();
+        }
+
+        //依次按下ENTER唤醒一个等待中的会话,测量从press到GVM等到按键的时间
+        long[] latency = new long[samples];
+        int measured = 0;
+        for (int index = 0; index < samples; index++) {
+            Session session = list.get(index % count);
+            if (!session.isWaiting()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            session.press(ScriptedKeyModel.KEY_ENTER);
+            while (session.getWakeTime() - start < 0 && !session.isEnded()) {
+                Thread.yield();
+            }
+            latency[measured++] = session.getWakeTime() - start;
+            session.press((char) 0);
+        }
+        Arrays.sort(latency, 0, measured);
+        host.close();
+
+        System.out.println("app:              " + file.getName());
+        System.out.println("threads:          " + (platform ? "platform" : "virtual") + ", Java " + System.getProperty("java.version"));
+        System.out.println("sessions:         " + count + " (" + waiting + " waiting for input)");
+        System.out.printf("heap/session:     %.1f KB%n", (after - before) / 1024.0 / count);
+        System.out.printf("retained/session: %.1f KB%n", retained / 1024.0 / count);
+        if (measured > 0) {
+            System.out.printf("wake-up latency:  median %.1f us, p99 %.1f us, max %.1f us (%d samples)%n",
+                    latency[measured / 2] / 1e3, latency[(int) (measured * 0.99)] / 1e3, latency[measured - 1] / 1e3, measured);
+        }
+    }
+
+    private static long usedMemory(Runtime runtime) throws InterruptedException {
+        for (int n = 0; n < 3; n++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -3,6 +3,8 @@ package eastsun.jgvm.util;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 public class IOUtil {
     public static final byte[] readAll(InputStream in) throws IOException {
@@ -14,4 +16,15 @@ public class IOUtil {
         }
         return bout.toByteArray();
     }
+
+    /**
+     * 跳过in中的count个字节
+     * @throws BufferUnderflowException in中剩余的字节不足count个
+     */
+    public static void skip(ByteBuffer in, int count) {
+        if (count < 0 || count > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        in.position(in.position() + count);
+    }
 }